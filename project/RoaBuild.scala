@@ -28,6 +28,7 @@ object RoaBuild extends Build {
       "commons-logging" % "commons-logging",
       "org.slf4j" % "slf4j-log4j12"))
     .settings(name := roaName)
+    .settings(SolrDaemon.settings: _*)
     .settings(
       libraryDependencies ++=
         compile(
@@ -39,6 +40,102 @@ object RoaBuild extends Build {
         )
 }
 
+/**
+  * Tasks keeping a warm MicroSolrCloudCluster running in a background JVM across test runs,
+  * see ixxus.solr.ClusterDaemon. Tests attach with ClusterDaemon.attach().
+  */
+object SolrDaemon {
+  val solrDaemonStart = taskKey[String]("Start the Solr cluster daemon, or reuse a running one; returns its zkHost")
+  val solrDaemonStop = taskKey[Unit]("Stop the Solr cluster daemon")
+  val solrDaemonNodes = settingKey[Int]("Number of Solr nodes the daemon runs")
+  val solrDaemonDir = settingKey[File]("State directory shared by the daemon and the tests")
+
+  val configSet = "data_driven_schema_configs"
+
+  lazy val settings = Seq(
+    solrDaemonNodes := 2,
+    solrDaemonDir := sys.props.get("roa.solr.daemon.dir").map(file).getOrElse(Path.userHome / ".roa" / "solr-daemon"),
+    javaOptions in Test += s"-Droa.solr.daemon.dir=${solrDaemonDir.value}",
+    solrDaemonStart := {
+      val dir = solrDaemonDir.value
+      val config = (resourceDirectory in Compile).value / "solr" / "configsets" / configSet / "conf"
+      start(dir, (fullClasspath in Compile).value.files, solrDaemonNodes.value, Seq(configSet -> config), streams.value.log)
+    },
+    solrDaemonStop := stop(solrDaemonDir.value, streams.value.log)
+  )
+
+  private val startupTimeoutMs = 5 * 60 * 1000L
+
+  def start(dir: File, classpath: Seq[File], nodes: Int, configs: Seq[(String, File)], log: Logger): String = {
+    running(dir) match {
+      case Some(zkHost) =>
+        log.info(s"Reusing the Solr daemon at $zkHost")
+        zkHost
+      case None =>
+        IO.delete(dir / "daemon.properties")
+        IO.createDirectory(dir)
+        val javaBin = file(sys.props("java.home")) / "bin" / "java"
+        val command = Seq(javaBin.getAbsolutePath, "-Xmx2g", "-cp", Path.makeString(classpath),
+          "ixxus.solr.ClusterDaemon", dir.getAbsolutePath, nodes.toString) ++
+          configs.map { case (name, conf) => s"$name=${conf.getAbsolutePath}" }
+        val logFile = dir / "daemon.log"
+        val process = new java.lang.ProcessBuilder(command: _*)
+          .redirectErrorStream(true)
+          .redirectOutput(java.lang.ProcessBuilder.Redirect.appendTo(logFile))
+          .start()
+        // the daemon must outlive sbt, so its input is never read
+        process.getOutputStream.close()
+        val deadline = System.currentTimeMillis + startupTimeoutMs
+        while (!(dir / "daemon.properties").exists) {
+          if (!process.isAlive) sys.error(s"Solr daemon exited with ${process.exitValue}, see $logFile")
+          if (System.currentTimeMillis > deadline) {
+            process.destroyForcibly()
+            sys.error(s"Solr daemon did not start in time, see $logFile")
+          }
+          Thread.sleep(100)
+        }
+        val zkHost = state(dir)("zkHost")
+        log.info(s"Started the Solr daemon at $zkHost, logging to $logFile")
+        zkHost
+    }
+  }
+
+  def stop(dir: File, log: Logger): Unit = running(dir) match {
+    case Some(zkHost) =>
+      IO.touch(dir / "stop")
+      log.info(s"Asked the Solr daemon at $zkHost to stop")
+    case None =>
+      log.info("No Solr daemon is running")
+  }
+
+  /**
+    * @return the zkHost of the daemon whose state file is in `dir`, if its ZooKeeper still accepts connections
+    */
+  private def running(dir: File): Option[String] = {
+    if (!(dir / "daemon.properties").exists) None
+    else {
+      val zkHost = state(dir)("zkHost")
+      val Array(host, port) = zkHost.takeWhile(_ != '/').split(":")
+      val socket = new java.net.Socket()
+      try {
+        socket.connect(new java.net.InetSocketAddress(host, port.toInt), 1000)
+        Some(zkHost)
+      } catch {
+        case _: java.io.IOException => None
+      } finally {
+        socket.close()
+      }
+    }
+  }
+
+  private def state(dir: File): Map[String, String] = {
+    val props = new java.util.Properties
+    IO.load(props, dir / "daemon.properties")
+    import scala.collection.JavaConverters._
+    props.asScala.toMap
+  }
+}
+
 object V {
   // pick a side :)
   //val scala =  "2.12.2"
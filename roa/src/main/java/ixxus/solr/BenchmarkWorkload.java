@@ -0,0 +1,13 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.SolrClient;
+
+/**
+ * A unit of work run against one collection by the benchmark harnesses. Implementations time each
+ * operation into {@code latencies}; throughput is derived from its count and the run's wall time.
+ */
+@FunctionalInterface
+public interface BenchmarkWorkload {
+
+  void run(SolrClient client, String collection, LatencyStats latencies) throws Exception;
+}
@@ -0,0 +1,173 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.CollectionAdminRequest;
+import org.apache.solr.client.solrj.response.RequestStatusState;
+import org.apache.solr.common.cloud.ClusterState;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.SolrjNamedThreadFactory;
+import org.apache.zookeeper.server.DataTree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Creates many collections concurrently with async CREATE requests, keeping at most a fixed number
+ * in flight, and measures what that costs the Overseer and ZooKeeper.
+ * <p>
+ * Each collection is placed explicitly with {@code createNodeSet}, rotating over the live nodes, so
+ * the Overseer does not compute placements. A single thread polls the async request status of the
+ * CREATEs in flight and frees their slot as soon as they complete.
+ */
+class BulkCollectionCreator {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private static final long STATUS_POLL_MS = 25;
+  /**
+   * How long an async id may be unknown to the Overseer before its CREATE counts as failed
+   */
+  private static final long NOT_FOUND_GRACE_MS = 5000;
+
+  private final MicroSolrCloudCluster cluster;
+  private final int maxInFlight;
+  private final long timeoutMs;
+
+  BulkCollectionCreator(MicroSolrCloudCluster cluster, int maxInFlight, long timeoutMs) {
+    if (maxInFlight <= 0) {
+      throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+    }
+    this.cluster = cluster;
+    this.maxInFlight = maxInFlight;
+    this.timeoutMs = timeoutMs;
+  }
+
+  BulkCreateReport create(List<String> names, String configName, int numShards, int replicationFactor) throws Exception {
+    CloudSolrClient client = cluster.getSolrClient();
+    BulkCreateReport report = new BulkCreateReport();
+    DataTree dataTree = cluster.getZkServer().getZKDatabase().getDataTree();
+    report.znodesBefore = dataTree.getNodeCount();
+    report.watchesBefore = dataTree.getWatchCount();
+
+    List<String> nodes = new ArrayList<>(client.getZkStateReader().getClusterState().getLiveNodes());
+    Collections.sort(nodes);
+    int replicas = numShards * replicationFactor;
+    int nodesPerCollection = Math.min(nodes.size(), replicas);
+
+    Semaphore window = new Semaphore(maxInFlight);
+    Map<String, Long> inFlight = new ConcurrentHashMap<>();
+    ExecutorService poller = ExecutorUtil.newMDCAwareSingleThreadExecutor(new SolrjNamedThreadFactory("bulk-create-status"));
+    OverseerQueueMonitor monitor = new OverseerQueueMonitor(cluster.getZkServer(), cluster.zkChroot(), 100_000, 50).start();
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    try {
+      Future<?> polling = poller.submit(() -> {
+        pollStatus(inFlight, window, report, names.size(), deadline);
+        return null;
+      });
+      for (int i = 0; i < names.size(); i++) {
+        String name = names.get(i);
+        StringBuilder nodeSet = new StringBuilder();
+        for (int n = 0; n < nodesPerCollection; n++) {
+          if (n > 0) nodeSet.append(',');
+          nodeSet.append(nodes.get((i * nodesPerCollection + n) % nodes.size()));
+        }
+        if (!window.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+          throw new TimeoutException("Timed out waiting for a free slot to create " + name);
+        }
+        long submitted = System.nanoTime();
+        String asyncId = name + "-create";
+        try {
+          CollectionAdminRequest.createCollection(name, configName, numShards, replicationFactor)
+              .setMaxShardsPerNode(replicas)
+              .setCreateNodeSet(nodeSet.toString())
+              .processAsync(asyncId, client);
+          inFlight.put(asyncId, submitted);
+        } catch (Exception e) {
+          log.warn("Could not submit CREATE of {}", name, e);
+          synchronized (report) {
+            report.failed.add(name);
+          }
+          window.release();
+        }
+      }
+      polling.get();
+      report.createMs = MicroSolrCloudCluster.elapsedMs(start);
+
+      while (!allVisible(client.getZkStateReader().getClusterState(), report.created)) {
+        if (System.nanoTime() > deadline) {
+          throw new TimeoutException("Created collections did not all become visible in the cluster state");
+        }
+        Thread.sleep(10);
+      }
+      report.stateVisibleMs = MicroSolrCloudCluster.elapsedMs(start);
+    } finally {
+      poller.shutdownNow();
+      poller.awaitTermination(10, TimeUnit.SECONDS);
+      monitor.close();
+    }
+
+    report.znodesAfter = dataTree.getNodeCount();
+    report.watchesAfter = dataTree.getWatchCount();
+    report.collectionQueueLatency = monitor.getLatencies(OverseerQueueMonitor.COLLECTION_QUEUE);
+    report.stateUpdateLatency = monitor.getLatencies(OverseerQueueMonitor.STATE_UPDATE_QUEUE);
+    for (OverseerQueueMonitor.DepthSample sample : monitor.getSamples()) {
+      report.maxCollectionQueueDepth = Math.max(report.maxCollectionQueueDepth,
+          sample.getDepth(OverseerQueueMonitor.COLLECTION_QUEUE));
+      report.maxStateUpdateQueueDepth = Math.max(report.maxStateUpdateQueueDepth,
+          sample.getDepth(OverseerQueueMonitor.STATE_UPDATE_QUEUE));
+    }
+    log.info("Bulk created collections: {}", report);
+    return report;
+  }
+
+  /**
+   * Poll the status of the CREATEs in flight until {@code total} have finished, one way or the other
+   */
+  private void pollStatus(Map<String, Long> inFlight, Semaphore window, BulkCreateReport report,
+                          int total, long deadline) throws Exception {
+    CloudSolrClient client = cluster.getSolrClient();
+    while (true) {
+      synchronized (report) {
+        if (report.created.size() + report.failed.size() >= total) return;
+      }
+      if (System.nanoTime() > deadline) {
+        throw new TimeoutException(inFlight.size() + " collection CREATEs did not complete in time");
+      }
+      for (Map.Entry<String, Long> entry : inFlight.entrySet()) {
+        String asyncId = entry.getKey();
+        RequestStatusState state = CollectionAdminRequest.requestStatus(asyncId).process(client).getRequestStatus();
+        boolean lost = state == RequestStatusState.NOT_FOUND
+            && MicroSolrCloudCluster.elapsedMs(entry.getValue()) > NOT_FOUND_GRACE_MS;
+        if (state != RequestStatusState.COMPLETED && state != RequestStatusState.FAILED && !lost) continue;
+        report.createLatency.recordSince(entry.getValue());
+        String name = asyncId.substring(0, asyncId.length() - "-create".length());
+        if (lost) {
+          log.warn("CREATE of {} is unknown to the Overseer, counting it as failed", name);
+        }
+        synchronized (report) {
+          (state == RequestStatusState.COMPLETED ? report.created : report.failed).add(name);
+        }
+        inFlight.remove(asyncId);
+        window.release();
+        if (lost) continue;
+        try {
+          CollectionAdminRequest.deleteAsyncId(asyncId).process(client);
+        } catch (Exception e) {
+          log.warn("Could not delete the status of {}", asyncId, e);
+        }
+      }
+      Thread.sleep(STATUS_POLL_MS);
+    }
+  }
+
+  private static boolean allVisible(ClusterState state, List<String> collections) {
+    for (String collection : collections) {
+      if (!state.hasCollection(collection)) return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,51 @@
+package ixxus.solr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Outcome of {@link MicroSolrCloudCluster#createCollections(String, int, String, int, int, int)}
+ */
+public class BulkCreateReport {
+
+  public final List<String> created = new ArrayList<>();
+  public final List<String> failed = new ArrayList<>();
+  /**
+   * time from submitting each CREATE until its async status was COMPLETED or FAILED
+   */
+  public final LatencyStats createLatency = new LatencyStats();
+  /**
+   * time each CREATE spent in the Overseer collection queue, and each resulting state change in the
+   * state update queue until visible
+   */
+  public LatencyStats collectionQueueLatency;
+  public LatencyStats stateUpdateLatency;
+  public int maxCollectionQueueDepth;
+  public int maxStateUpdateQueueDepth;
+  public long znodesBefore;
+  public long znodesAfter;
+  public long watchesBefore;
+  public long watchesAfter;
+  /**
+   * time from the first submission until every CREATE had completed
+   */
+  public long createMs;
+  /**
+   * time from the first submission until the cluster's ZkStateReader knew every created collection
+   */
+  public long stateVisibleMs;
+
+  public double collectionsPerSecond() {
+    return createMs == 0 ? 0 : created.size() * 1000.0 / createMs;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.ROOT, "%d created, %d failed in %d ms (%.1f/s), visible after %d ms; create %s; "
+            + "collection queue max depth %d %s; state update queue max depth %d %s; znodes %d -> %d, watches %d -> %d",
+        created.size(), failed.size(), createMs, collectionsPerSecond(), stateVisibleMs, createLatency,
+        maxCollectionQueueDepth, collectionQueueLatency, maxStateUpdateQueueDepth, stateUpdateLatency,
+        znodesBefore, znodesAfter, watchesBefore, watchesAfter);
+  }
+}
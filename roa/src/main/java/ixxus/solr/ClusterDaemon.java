@@ -0,0 +1,171 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.CollectionAdminRequest;
+import org.apache.solr.common.cloud.SolrZkClient;
+import org.apache.solr.common.cloud.ZkConfigManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+
+/**
+ * Keeps a {@link MicroSolrCloudCluster} and its ZooKeeper running in a background process across test
+ * runs, so tests attach to a warm cluster with {@link #attach()} instead of starting their own.
+ * <p>
+ * The daemon publishes its ZooKeeper address in {@code daemon.properties} in its state directory,
+ * {@code ~/.roa/solr-daemon} unless {@value #STATE_DIR_PROPERTY} says otherwise, and stops when a
+ * {@code stop} file appears there or the process is terminated. Every {@link DaemonSession} works in
+ * a collection namespace of its own, tied to an ephemeral znode; collections of namespaces whose
+ * session has gone, e.g. because the test JVM was killed, are deleted by the daemon.
+ * <p>
+ * Usage: {@code ClusterDaemon <stateDir> <nodeCount> [<configName>=<configDir> ...]}
+ */
+public class ClusterDaemon {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String STATE_DIR_PROPERTY = "roa.solr.daemon.dir";
+
+  static final String STATE_FILE = "daemon.properties";
+  static final String STOP_FILE = "stop";
+  static final String SESSIONS_ZNODE = "/daemon_sessions";
+
+  private static final long SWEEP_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+
+  /**
+   * @return the state directory tests and the daemon agree on
+   */
+  public static Path defaultStateDir() {
+    String dir = System.getProperty(STATE_DIR_PROPERTY);
+    return dir != null ? Paths.get(dir) : Paths.get(System.getProperty("user.home"), ".roa", "solr-daemon");
+  }
+
+  /**
+   * Attach to the running daemon of the default state directory in a new collection namespace
+   *
+   * @throws IllegalStateException if no daemon is running
+   */
+  public static DaemonSession attach() throws Exception {
+    return attach(defaultStateDir());
+  }
+
+  public static DaemonSession attach(Path stateDir) throws Exception {
+    Path stateFile = stateDir.resolve(STATE_FILE);
+    if (!Files.exists(stateFile)) {
+      throw new IllegalStateException("No Solr daemon is running in " + stateDir + "; start it with the solrDaemonStart task");
+    }
+    Properties state = new Properties();
+    try (Reader in = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8)) {
+      state.load(in);
+    }
+    return new DaemonSession(state.getProperty("zkHost"));
+  }
+
+  /**
+   * Ask the daemon of {@code stateDir} to shut down, without waiting for it
+   */
+  public static void requestStop(Path stateDir) throws IOException {
+    Files.createDirectories(stateDir);
+    Files.write(stateDir.resolve(STOP_FILE), new byte[0]);
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: ClusterDaemon <stateDir> <nodeCount> [<configName>=<configDir> ...]");
+      System.exit(1);
+    }
+    Path stateDir = Paths.get(args[0]);
+    Files.createDirectories(stateDir);
+    Files.deleteIfExists(stateDir.resolve(STOP_FILE));
+
+    MicroSolrClusterBuilder builder = new MicroSolrClusterBuilder(Integer.parseInt(args[1]),
+        Files.createTempDirectory(stateDir, "cluster-"));
+    for (int i = 2; i < args.length; i++) {
+      String[] config = args[i].split("=", 2);
+      builder.addConfig(config[0], Paths.get(config[1]));
+    }
+    MicroSolrCloudCluster cluster = builder.configure();
+
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(cluster, stateDir), "solr-daemon-shutdown"));
+
+    cluster.getZkClient().makePath(SESSIONS_ZNODE, false, true);
+    Properties state = new Properties();
+    state.setProperty("zkHost", cluster.getZkServer().getZkAddress());
+    state.setProperty("pid", ManagementFactory.getRuntimeMXBean().getName().split("@")[0]);
+    state.setProperty("nodes", args[1]);
+    Path tmp = stateDir.resolve(STATE_FILE + ".tmp");
+    try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      state.store(out, "MicroSolrCloudCluster daemon");
+    }
+    Files.move(tmp, stateDir.resolve(STATE_FILE), StandardCopyOption.ATOMIC_MOVE);
+    log.info("Solr daemon running, zkHost={}", state.getProperty("zkHost"));
+
+    long nextSweep = System.nanoTime();
+    while (!Files.exists(stateDir.resolve(STOP_FILE))) {
+      if (System.nanoTime() >= nextSweep) {
+        try {
+          sweepAbandonedNamespaces(cluster);
+        } catch (Exception e) {
+          log.warn("Could not sweep abandoned session collections", e);
+        }
+        nextSweep = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MS);
+      }
+      Thread.sleep(250);
+    }
+    log.info("Stop requested");
+    // the shutdown hook shuts the cluster down
+    System.exit(0);
+  }
+
+  private static synchronized void shutdown(MicroSolrCloudCluster cluster, Path stateDir) {
+    try {
+      Files.deleteIfExists(stateDir.resolve(STATE_FILE));
+      Files.deleteIfExists(stateDir.resolve(STOP_FILE));
+      cluster.shutdown();
+      log.info("Solr daemon stopped");
+    } catch (Exception e) {
+      log.error("Error stopping the Solr daemon", e);
+    }
+  }
+
+  /**
+   * Delete the collections, then the config sets, of namespaces whose session znode has gone
+   */
+  static void sweepAbandonedNamespaces(MicroSolrCloudCluster cluster) throws Exception {
+    CloudSolrClient client = cluster.getSolrClient();
+    SolrZkClient zkClient = cluster.getZkClient();
+    Set<String> live = new HashSet<>(zkClient.getChildren(SESSIONS_ZNODE, null, true));
+    List<String> collections = CollectionAdminRequest.listCollections(client);
+    for (String collection : collections) {
+      Matcher m = DaemonSession.NAMESPACED.matcher(collection);
+      if (m.matches() && !live.contains(m.group(1))) {
+        log.info("Deleting {}, left behind by an abandoned session", collection);
+        CollectionAdminRequest.deleteCollection(collection).process(client);
+      }
+    }
+    ZkConfigManager configManager = new ZkConfigManager(zkClient);
+    for (String config : configManager.listConfigs()) {
+      Matcher m = DaemonSession.NAMESPACED.matcher(config);
+      if (m.matches() && !live.contains(m.group(1))) {
+        log.info("Deleting config set {}, left behind by an abandoned session", config);
+        configManager.deleteConfigDir(config);
+      }
+    }
+  }
+}
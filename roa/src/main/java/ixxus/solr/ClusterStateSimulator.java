@@ -0,0 +1,268 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.common.cloud.CompositeIdRouter;
+import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.SolrZkClient;
+import org.apache.solr.common.cloud.ZkStateReader;
+import org.apache.solr.common.util.IOUtils;
+import org.apache.solr.common.util.Utils;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.DataTree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Writes a synthetic cluster state, made of fake live nodes and collections in the
+ * {@code state.json} format, into its own chroot of the embedded {@link ZkTestServer}, for measuring
+ * how real {@link CloudSolrClient}s and {@link ZkStateReader}s scale with the size of the cluster
+ * state without starting any cores.
+ * <p>
+ * Nothing acts on the simulated state: there is no Overseer under the chroot, and the live node
+ * names and base URLs do not point at running servers.
+ */
+public class ClusterStateSimulator implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * znode operations per multi request; keeps each request well under jute.maxbuffer
+   */
+  private static final int BATCH_SIZE = 200;
+
+  /**
+   * Client-side cost of loading and following the simulated cluster state
+   */
+  public static class ClientStats {
+    public long startupMs;
+    /**
+     * heap retained by the client, measured after GC; approximate, and JVM-wide
+     */
+    public long heapBytes;
+    /**
+     * server-side watches the client added
+     */
+    public long watches;
+    /**
+     * time from a state.json write until a watched collection reflected it
+     */
+    public final LatencyStats stateUpdateLatency = new LatencyStats();
+    /**
+     * time from a live node appearing until the client listed it
+     */
+    public final LatencyStats liveNodeLatency = new LatencyStats();
+
+    @Override
+    public String toString() {
+      return "startup " + startupMs + " ms, heap " + (heapBytes >> 10) + " KB, " + watches + " watches, state update "
+          + stateUpdateLatency + ", live node " + liveNodeLatency;
+    }
+  }
+
+  private final ZkTestServer zkServer;
+  private final String chroot;
+  private final SolrZkClient zkClient;
+  private final List<String> liveNodes = new ArrayList<>();
+  private final List<String> collections = new ArrayList<>();
+  private final Map<String, Map<String, Object>> states = new HashMap<>();
+  private final List<CloudSolrClient> clients = new ArrayList<>();
+
+  /**
+   * @param zkServer the server to write into
+   * @param chroot   the chroot to write the simulated cluster under, e.g. {@code /sim}; must not be
+   *                 the chroot of a real cluster
+   */
+  public ClusterStateSimulator(ZkTestServer zkServer, String chroot) throws Exception {
+    this.zkServer = Objects.requireNonNull(zkServer);
+    this.chroot = chroot;
+    try (SolrZkClient root = new SolrZkClient(zkServer.getZkHost(), MicroSolrCloudCluster.ZK_TIMEOUT)) {
+      root.makePath(chroot, false, true);
+    }
+    this.zkClient = new SolrZkClient(getZkHost(), MicroSolrCloudCluster.ZK_TIMEOUT);
+    zkClient.makePath(ZkStateReader.LIVE_NODES_ZKNODE, false, true);
+    zkClient.makePath(ZkStateReader.COLLECTIONS_ZKNODE, false, true);
+    zkClient.makePath(ZkStateReader.CLUSTER_STATE, "{}".getBytes("UTF-8"), CreateMode.PERSISTENT, null, false, true);
+    zkClient.makePath(ZkStateReader.ALIASES, "{}".getBytes("UTF-8"), CreateMode.PERSISTENT, null, false, true);
+  }
+
+  /**
+   * @return the ZooKeeper connection string of the simulated cluster
+   */
+  public String getZkHost() {
+    return zkServer.getZkAddress(chroot);
+  }
+
+  /**
+   * Add fake live nodes to the simulated cluster
+   */
+  public ClusterStateSimulator addLiveNodes(int count) throws Exception {
+    List<Op> ops = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      String node = "127.0.0.1:" + (20000 + liveNodes.size()) + "_solr";
+      liveNodes.add(node);
+      ops.add(Op.create(ZkStateReader.LIVE_NODES_ZKNODE + "/" + node, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+    }
+    multi(ops);
+    return this;
+  }
+
+  /**
+   * Add collections to the simulated cluster, spreading their replicas round robin over the live nodes
+   */
+  public ClusterStateSimulator addCollections(int count, int numShards, int replicationFactor) throws Exception {
+    if (liveNodes.isEmpty()) {
+      throw new IllegalStateException("Add live nodes before collections");
+    }
+    DocRouter router = new CompositeIdRouter();
+    List<DocRouter.Range> ranges = router.partitionRange(numShards, router.fullRange());
+    List<Op> ops = new ArrayList<>();
+    int replicaCounter = collections.size() * numShards * replicationFactor;
+    for (int c = 0; c < count; c++) {
+      String name = "sim" + collections.size();
+      Map<String, Object> shards = new LinkedHashMap<>();
+      for (int s = 0; s < numShards; s++) {
+        Map<String, Object> replicas = new LinkedHashMap<>();
+        for (int r = 0; r < replicationFactor; r++) {
+          String node = liveNodes.get(replicaCounter++ % liveNodes.size());
+          Map<String, Object> replica = new LinkedHashMap<>();
+          replica.put(ZkStateReader.CORE_NAME_PROP, name + "_shard" + (s + 1) + "_replica" + (r + 1));
+          replica.put(ZkStateReader.BASE_URL_PROP, "http://" + node.replace("_", "/"));
+          replica.put(ZkStateReader.NODE_NAME_PROP, node);
+          replica.put(ZkStateReader.STATE_PROP, Replica.State.ACTIVE.toString());
+          if (r == 0) replica.put(ZkStateReader.LEADER_PROP, "true");
+          replicas.put("core_node" + (s * replicationFactor + r + 1), replica);
+        }
+        Map<String, Object> shard = new LinkedHashMap<>();
+        shard.put("range", ranges.get(s).toString());
+        shard.put(ZkStateReader.STATE_PROP, "active");
+        shard.put("replicas", replicas);
+        shards.put("shard" + (s + 1), shard);
+      }
+      Map<String, Object> state = new LinkedHashMap<>();
+      state.put("shards", shards);
+      state.put("router", Collections.singletonMap("name", CompositeIdRouter.NAME));
+      state.put(ZkStateReader.MAX_SHARDS_PER_NODE, Integer.toString(numShards * replicationFactor));
+      state.put(ZkStateReader.REPLICATION_FACTOR, Integer.toString(replicationFactor));
+      state.put(ZkStateReader.AUTO_ADD_REPLICAS, "false");
+      collections.add(name);
+      states.put(name, state);
+
+      String path = ZkStateReader.COLLECTIONS_ZKNODE + "/" + name;
+      ops.add(Op.create(path, Utils.toJSON(Collections.singletonMap(ZkStateReader.CONFIGNAME_PROP, "sim")),
+          ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+      ops.add(Op.create(ZkStateReader.getCollectionPath(name), Utils.toJSON(Collections.singletonMap(name, state)),
+          ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+      if (ops.size() >= BATCH_SIZE) {
+        multi(ops);
+      }
+    }
+    multi(ops);
+    log.info("Simulated cluster under {} has {} live nodes and {} collections", chroot, liveNodes.size(), collections.size());
+    return this;
+  }
+
+  private void multi(List<Op> ops) throws Exception {
+    if (ops.isEmpty()) return;
+    zkClient.multi(ops, true);
+    ops.clear();
+  }
+
+  public List<String> getCollections() {
+    return Collections.unmodifiableList(collections);
+  }
+
+  /**
+   * Start a new {@link CloudSolrClient} on the simulated cluster, watching the first {@code watched}
+   * collections, and measure what that costs. Then apply {@code updates} replica state changes to the
+   * watched collections and add {@code updates} live nodes, timing how long the client takes to see
+   * each one. The client stays open until this simulator is closed.
+   */
+  public ClientStats measureClient(int watched, int updates) throws Exception {
+    ClientStats stats = new ClientStats();
+    DataTree dataTree = zkServer.getZKDatabase().getDataTree();
+    long watchesBefore = dataTree.getWatchCount();
+    long heapBefore = HeapUsage.usedAfterGc();
+
+    long start = System.nanoTime();
+    CloudSolrClient client = new CloudSolrClient.Builder().withZkHost(getZkHost()).build();
+    clients.add(client);
+    client.connect();
+    ZkStateReader reader = client.getZkStateReader();
+    List<String> watchedCollections = collections.subList(0, Math.min(watched, collections.size()));
+    for (String collection : watchedCollections) {
+      // keeps the collection's state.json watched for the life of the client
+      reader.registerCollectionStateWatcher(collection, (liveNodes, state) -> false);
+    }
+    for (String collection : watchedCollections) {
+      reader.waitForState(collection, 30, TimeUnit.SECONDS, (liveNodes, state) -> state != null);
+    }
+    stats.startupMs = MicroSolrCloudCluster.elapsedMs(start);
+    stats.heapBytes = HeapUsage.usedAfterGc() - heapBefore;
+    stats.watches = dataTree.getWatchCount() - watchesBefore;
+
+    for (int i = 0; i < updates && !watchedCollections.isEmpty(); i++) {
+      String collection = watchedCollections.get(i % watchedCollections.size());
+      String state = (i / watchedCollections.size()) % 2 == 0 ? Replica.State.DOWN.toString() : Replica.State.ACTIVE.toString();
+      long t0 = System.nanoTime();
+      setFirstReplicaState(collection, state);
+      reader.waitForState(collection, 30, TimeUnit.SECONDS, (liveNodes, coll) -> coll != null
+          && coll.getSlices().iterator().next().getReplicas().iterator().next().getState().toString().equals(state));
+      stats.stateUpdateLatency.recordSince(t0);
+    }
+    for (int i = 0; i < updates; i++) {
+      long t0 = System.nanoTime();
+      addLiveNodes(1);
+      String node = liveNodes.get(liveNodes.size() - 1);
+      // ZkStateReader of Solr 6.6 has no waitForLiveNodes
+      long deadline = t0 + TimeUnit.SECONDS.toNanos(30);
+      while (!reader.getClusterState().getLiveNodes().contains(node)) {
+        if (System.nanoTime() - deadline > 0) {
+          throw new TimeoutException("Client did not see live node " + node + " within 30 s");
+        }
+        Thread.sleep(1);
+      }
+      stats.liveNodeLatency.recordSince(t0);
+    }
+    log.info("Client on {} collections ({} watched): {}", collections.size(), watchedCollections.size(), stats);
+    return stats;
+  }
+
+  /**
+   * Rewrite a collection's state.json with the state of its first replica changed
+   */
+  @SuppressWarnings("unchecked")
+  public void setFirstReplicaState(String collection, String replicaState) throws Exception {
+    Map<String, Object> state = states.get(collection);
+    Map<String, Object> shard = (Map<String, Object>) ((Map<String, Object>) state.get("shards")).values().iterator().next();
+    Map<String, Object> replica = (Map<String, Object>) ((Map<String, Object>) shard.get("replicas")).values().iterator().next();
+    replica.put(ZkStateReader.STATE_PROP, replicaState);
+    zkClient.setData(ZkStateReader.getCollectionPath(collection), Utils.toJSON(Collections.singletonMap(collection, state)), true);
+  }
+
+  /**
+   * Close the clients started by {@link #measureClient(int, int)} and remove the simulated cluster
+   */
+  @Override
+  public void close() {
+    for (CloudSolrClient client : clients) {
+      IOUtils.closeQuietly(client);
+    }
+    clients.clear();
+    zkClient.close();
+    // the chroot itself can only be deleted from outside it
+    try (SolrZkClient root = new SolrZkClient(zkServer.getZkHost(), MicroSolrCloudCluster.ZK_TIMEOUT)) {
+      root.clean(chroot);
+    } catch (Exception e) {
+      log.warn("Could not remove the simulated cluster under {}", chroot, e);
+    }
+  }
+}
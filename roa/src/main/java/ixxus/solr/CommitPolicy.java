@@ -0,0 +1,57 @@
+package ixxus.solr;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Hard and soft auto-commit settings of a collection, expressed as the Config API properties
+ * {@code updateHandler.autoCommit.*} and {@code updateHandler.autoSoftCommit.*}. A negative value
+ * disables that trigger.
+ */
+public class CommitPolicy {
+
+  private final String name;
+  private long autoCommitMaxTimeMs = 15000;
+  private long autoCommitMaxDocs = -1;
+  private boolean openSearcher = false;
+  private long autoSoftCommitMaxTimeMs = -1;
+
+  public CommitPolicy(String name) {
+    this.name = Objects.requireNonNull(name);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public CommitPolicy withAutoCommit(long maxTimeMs, long maxDocs, boolean openSearcher) {
+    this.autoCommitMaxTimeMs = maxTimeMs;
+    this.autoCommitMaxDocs = maxDocs;
+    this.openSearcher = openSearcher;
+    return this;
+  }
+
+  public CommitPolicy withAutoSoftCommit(long maxTimeMs) {
+    this.autoSoftCommitMaxTimeMs = maxTimeMs;
+    return this;
+  }
+
+  /**
+   * @return the body of a Config API {@code set-property} command applying this policy
+   */
+  public Map<String, Object> toProperties() {
+    Map<String, Object> props = new LinkedHashMap<>();
+    props.put("updateHandler.autoCommit.maxTime", autoCommitMaxTimeMs);
+    props.put("updateHandler.autoCommit.maxDocs", autoCommitMaxDocs);
+    props.put("updateHandler.autoCommit.openSearcher", openSearcher);
+    props.put("updateHandler.autoSoftCommit.maxTime", autoSoftCommitMaxTimeMs);
+    return props;
+  }
+
+  @Override
+  public String toString() {
+    return name + "{autoCommit=" + autoCommitMaxTimeMs + "ms/" + autoCommitMaxDocs + " docs"
+        + (openSearcher ? " openSearcher" : "") + ", autoSoftCommit=" + autoSoftCommitMaxTimeMs + "ms}";
+  }
+}
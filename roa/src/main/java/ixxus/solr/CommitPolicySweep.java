@@ -0,0 +1,350 @@
+package ixxus.solr;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.CollectionAdminRequest;
+import org.apache.solr.client.solrj.request.GenericSolrRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.cloud.ClusterStateUtil;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.ZkConfigManager;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SolrjNamedThreadFactory;
+import org.apache.solr.common.util.Utils;
+import org.apache.solr.core.ConfigOverlay;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Indexes the same documents once per {@link CommitPolicy} and reports indexing throughput, segment
+ * count, merge time and NRT visibility lag side by side.
+ * <p>
+ * The commit settings of the shared configset come from JVM-wide system properties, so each policy
+ * gets its own collection on its own copy of the base config set, and the policy is applied to it
+ * with the Config API before indexing starts. Merge times come from the index writer merge timers,
+ * which the collections are created with enabled; visibility lag is measured by an
+ * {@link NrtVisibilityProbe} running alongside the load. Segments and merges are read from the
+ * leader cores in-process, so the sweep is not supported with forked nodes.
+ */
+public class CommitPolicySweep {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * Measurements of one policy
+   */
+  public static class Result {
+    public final String policy;
+    public final long docs;
+    public final long wallMs;
+    /**
+     * segments per shard leader after the load, averaged over shards
+     */
+    public final double segmentsPerShard;
+    public final long merges;
+    /**
+     * total merge time over all shard leaders; derived from the merge timers' mean, so approximate
+     */
+    public final long mergeMs;
+    /**
+     * commits of all shard replicas, soft ones included
+     */
+    public final long commits;
+    public final long softCommits;
+    /**
+     * visibility lag percentiles of the slowest replica
+     */
+    public final double visibilityP50Ms;
+    public final double visibilityP99Ms;
+    public final long visibilityTimeouts;
+
+    Result(String policy, long docs, long wallMs, double segmentsPerShard, long merges, long mergeMs,
+           long commits, long softCommits, NrtVisibilityProbe probe) {
+      this.policy = policy;
+      this.docs = docs;
+      this.wallMs = wallMs;
+      this.segmentsPerShard = segmentsPerShard;
+      this.merges = merges;
+      this.mergeMs = mergeMs;
+      this.commits = commits;
+      this.softCommits = softCommits;
+      double p50 = Double.NaN, p99 = Double.NaN;
+      for (LatencyStats lag : probe.getLags().values()) {
+        p50 = Double.isNaN(p50) ? lag.percentileMs(0.5) : Math.max(p50, lag.percentileMs(0.5));
+        p99 = Double.isNaN(p99) ? lag.percentileMs(0.99) : Math.max(p99, lag.percentileMs(0.99));
+      }
+      this.visibilityP50Ms = p50;
+      this.visibilityP99Ms = p99;
+      long timeouts = 0;
+      for (long t : probe.getTimeouts().values()) timeouts += t;
+      this.visibilityTimeouts = timeouts;
+    }
+
+    public double docsPerSecond() {
+      return wallMs == 0 ? 0 : docs * 1000.0 / wallMs;
+    }
+  }
+
+  private final MicroSolrCloudCluster cluster;
+  private final String baseConfigName;
+  private final int numShards;
+  private final int replicationFactor;
+  private int batchSize = 500;
+  private int indexingThreads = 4;
+  private long markerIntervalMs = 100;
+  private long settleMs = 5000;
+
+  /**
+   * @param cluster           the cluster to run on
+   * @param baseConfigName    the config set the policies are applied to a copy of; it must already be uploaded
+   * @param numShards         shards of each policy's collection
+   * @param replicationFactor replicas per shard of each policy's collection
+   */
+  public CommitPolicySweep(MicroSolrCloudCluster cluster, String baseConfigName, int numShards, int replicationFactor) {
+    this.cluster = Objects.requireNonNull(cluster);
+    this.baseConfigName = Objects.requireNonNull(baseConfigName);
+    this.numShards = numShards;
+    this.replicationFactor = replicationFactor;
+  }
+
+  public CommitPolicySweep withBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+    return this;
+  }
+
+  public CommitPolicySweep withIndexingThreads(int indexingThreads) {
+    this.indexingThreads = indexingThreads;
+    return this;
+  }
+
+  /**
+   * How often the visibility probe writes markers during the load, 100 ms by default
+   */
+  public CommitPolicySweep withMarkerIntervalMs(long markerIntervalMs) {
+    this.markerIntervalMs = markerIntervalMs;
+    return this;
+  }
+
+  /**
+   * How long the visibility probe keeps polling after the load finished, 5 s by default. Markers
+   * not visible within this time of being written are counted as lost.
+   */
+  public CommitPolicySweep withSettleMs(long settleMs) {
+    this.settleMs = settleMs;
+    return this;
+  }
+
+  /**
+   * @param docs supplies the document stream; called once per policy and must yield the same documents
+   */
+  public List<Result> run(List<CommitPolicy> policies, Supplier<Iterator<SolrInputDocument>> docs) throws Exception {
+    List<Result> results = new ArrayList<>();
+    for (CommitPolicy policy : policies) {
+      results.add(run(policy, docs.get()));
+    }
+    log.info("Commit policy comparison:\n{}", toTable(results));
+    return results;
+  }
+
+  private Result run(CommitPolicy policy, Iterator<SolrInputDocument> docs) throws Exception {
+    CloudSolrClient client = cluster.getSolrClient();
+    ConfigSetVariant configCopy = new ConfigSetVariant("commit_" + policy.getName());
+    configCopy.install(cluster.getZkClient(), baseConfigName);
+    String configName = configCopy.configName(baseConfigName);
+    String collection = "commit_" + policy.getName();
+    CollectionAdminRequest.createCollection(collection, configName, numShards, replicationFactor)
+        .setMaxShardsPerNode(numShards * replicationFactor)
+        .setProperties(Collections.singletonMap("solr.indexMetrics.merge", "true"))
+        .process(client);
+    try {
+      waitForActive(collection);
+      applyPolicy(collection, configName, policy);
+      waitForActive(collection);
+
+      long wallMs;
+      long count;
+      try (NrtVisibilityProbe probe = new NrtVisibilityProbe(cluster, collection, markerIntervalMs)
+          .withTimeoutMs(settleMs).start()) {
+        long start = System.nanoTime();
+        count = index(client, collection, docs);
+        wallMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Thread.sleep(settleMs);
+
+        List<SolrMetricsCollector.Sample> samples = SolrMetricsCollector.read(cluster);
+        long commits = SolrMetricsCollector.sum(samples, collection, SolrMetricsCollector.CoreMetric.COMMITS);
+        long softCommits = SolrMetricsCollector.sum(samples, collection, SolrMetricsCollector.CoreMetric.SOFT_AUTO_COMMITS);
+        long[] merges = new long[2];
+        double segments = leaderStats(collection, merges);
+        Result result = new Result(policy.getName(), count, wallMs, segments, merges[0], merges[1],
+            commits, softCommits, probe);
+        log.info("Policy {}: {} docs in {} ms, {}", policy, count, wallMs, probe);
+        return result;
+      }
+    } finally {
+      CollectionAdminRequest.deleteCollection(collection).process(client);
+    }
+  }
+
+  private void waitForActive(String collection) {
+    if (!ClusterStateUtil.waitForAllActiveAndLiveReplicas(cluster.getSolrClient().getZkStateReader(), collection,
+        (int) TimeUnit.MINUTES.toMillis(2))) {
+      throw new IllegalStateException("Collection " + collection + " did not become active");
+    }
+  }
+
+  /**
+   * Set the policy through the Config API and wait until every core has reloaded with the new overlay
+   */
+  private void applyPolicy(String collection, String configName, CommitPolicy policy) throws Exception {
+    Map<String, Object> command = Collections.singletonMap("set-property", policy.toProperties());
+    GenericSolrRequest request = new GenericSolrRequest(SolrRequest.METHOD.POST, "/config", new ModifiableSolrParams());
+    request.setContentStreams(Collections.singletonList(new ContentStreamBase.StringStream(Utils.toJSONString(command))));
+    NamedList<Object> response = request.process(cluster.getSolrClient(), collection).getResponse();
+    if (response.get("errorMessages") != null) {
+      throw new IllegalStateException("Config API rejected " + policy + ": " + response.get("errorMessages"));
+    }
+
+    Stat stat = new Stat();
+    cluster.getZkClient().getData(ZkConfigManager.CONFIGS_ZKNODE + "/" + configName + "/" + ConfigOverlay.RESOURCE_NAME,
+        null, stat, true);
+    long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+    while (!allCoresAtOverlayVersion(collection, stat.getVersion())) {
+      if (System.nanoTime() > deadline) {
+        throw new IllegalStateException("Cores of " + collection + " did not reload with " + policy);
+      }
+      Thread.sleep(100);
+    }
+  }
+
+  private boolean allCoresAtOverlayVersion(String collection, int version) {
+    int cores = 0;
+    for (JettySolrRunner jetty : cluster.getJettySolrRunners()) {
+      CoreContainer container = jetty.getCoreContainer();
+      if (container == null || container.isShutDown()) continue;
+      for (SolrCore core : container.getCores()) {
+        if (!collection.equals(core.getCoreDescriptor().getCollectionName())) continue;
+        if (core.getSolrConfig().getOverlay().getZnodeVersion() < version) return false;
+        cores++;
+      }
+    }
+    return cores == numShards * replicationFactor;
+  }
+
+  /**
+   * Index {@code docs} in batches from several threads sharing the iterator
+   *
+   * @return the number of documents sent
+   */
+  private long index(CloudSolrClient client, String collection, Iterator<SolrInputDocument> docs) throws Exception {
+    AtomicLong count = new AtomicLong();
+    ExecutorService executor = ExecutorUtil.newMDCAwareFixedThreadPool(indexingThreads,
+        new SolrjNamedThreadFactory("commit-sweep-indexer"));
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < indexingThreads; t++) {
+        futures.add(executor.submit(() -> {
+          List<SolrInputDocument> batch = new ArrayList<>(batchSize);
+          while (true) {
+            synchronized (docs) {
+              while (batch.size() < batchSize && docs.hasNext()) batch.add(docs.next());
+            }
+            if (batch.isEmpty()) return null;
+            UpdateRequest request = new UpdateRequest();
+            request.add(batch);
+            request.process(client, collection);
+            count.addAndGet(batch.size());
+            batch = new ArrayList<>(batchSize);
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      ExecutorUtil.shutdownAndAwaitTermination(executor);
+    }
+    return count.get();
+  }
+
+  /**
+   * @param merges receives the number of merges and their approximate total time in ms
+   * @return segments per shard leader, averaged over shards
+   */
+  private double leaderStats(String collection, long[] merges) throws Exception {
+    DocCollection coll = cluster.getSolrClient().getZkStateReader().getClusterState().getCollection(collection);
+    int segments = 0;
+    int shards = 0;
+    for (Slice slice : coll.getActiveSlices()) {
+      Replica leader = slice.getLeader();
+      if (leader == null) continue;
+      for (JettySolrRunner jetty : cluster.getJettySolrRunners()) {
+        if (!leader.getNodeName().equals(jetty.getNodeName())) continue;
+        CoreContainer container = jetty.getCoreContainer();
+        if (container == null) {
+          throw new IllegalStateException("Reading leader segments and merges is not supported with forked nodes");
+        }
+        try (SolrCore core = container.getCore(leader.getCoreName())) {
+          if (core == null) continue;
+          RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+          try {
+            segments += searcher.get().getIndexReader().leaves().size();
+          } finally {
+            searcher.decref();
+          }
+          Map<String, Metric> metrics = container.getMetricManager()
+              .registry(core.getCoreMetricManager().getRegistryName()).getMetrics();
+          for (String name : new String[]{"INDEX.merge.major", "INDEX.merge.minor"}) {
+            Metric metric = metrics.get(name);
+            if (metric instanceof Timer) {
+              Timer timer = (Timer) metric;
+              Snapshot snapshot = timer.getSnapshot();
+              merges[0] += timer.getCount();
+              merges[1] += (long) (snapshot.getMean() * timer.getCount() / 1_000_000);
+            }
+          }
+          shards++;
+        }
+      }
+    }
+    return shards == 0 ? Double.NaN : (double) segments / shards;
+  }
+
+  /**
+   * @return a fixed-width text table with one row per policy
+   */
+  public static String toTable(List<Result> results) {
+    StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,
+        "%-20s %10s %10s %9s %7s %9s %7s %7s %10s %10s %8s%n",
+        "policy", "docs", "docs/s", "segments", "merges", "mergeMs", "commits", "soft", "visP50ms", "visP99ms", "visLost"));
+    for (Result r : results) {
+      sb.append(String.format(Locale.ROOT,
+          "%-20s %10d %10.1f %9.1f %7d %9d %7d %7d %10.2f %10.2f %8d%n",
+          r.policy, r.docs, r.docsPerSecond(), r.segmentsPerShard, r.merges, r.mergeMs,
+          r.commits, r.softCommits, r.visibilityP50Ms, r.visibilityP99Ms, r.visibilityTimeouts));
+    }
+    return sb.toString();
+  }
+}
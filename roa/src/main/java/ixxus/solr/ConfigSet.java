@@ -0,0 +1,223 @@
+package ixxus.solr;
+
+import org.apache.solr.common.cloud.SolrZkClient;
+import org.apache.solr.common.cloud.ZkConfigManager;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooDefs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The files of a config set, held in memory, so it can be read once straight from a jar or zip
+ * stream and uploaded to any number of clusters without temporary files.
+ * <p>
+ * Config sets read with {@link #fromClasspath(String)} are cached per JVM. Files whose name starts
+ * with a dot are skipped, as {@link ZkConfigManager#uploadConfigDir(Path, String)} does.
+ */
+public class ConfigSet {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * Approximate bytes per multi request; keeps each request well under jute.maxbuffer (1 MB)
+   */
+  private static final int BATCH_BYTES = 512 * 1024;
+  private static final int BATCH_SIZE = 200;
+
+  private static final Map<String, ConfigSet> CLASSPATH_CACHE = new ConcurrentHashMap<>();
+
+  // relative path, with '/' separators, to content; sorted so parents come before their children
+  private final SortedMap<String, byte[]> files;
+
+  private ConfigSet(SortedMap<String, byte[]> files) {
+    if (files.isEmpty()) {
+      throw new IllegalArgumentException("Empty config set");
+    }
+    this.files = Collections.unmodifiableSortedMap(files);
+  }
+
+  /**
+   * Read the config set under a classpath directory, e.g. {@code solr/configsets/data_driven_schema_configs/conf},
+   * from a jar or a directory; repeated calls return the same instance
+   */
+  public static ConfigSet fromClasspath(String resourcePath) {
+    String prefix = resourcePath.replaceAll("^/+|/+$", "");
+    return CLASSPATH_CACHE.computeIfAbsent(prefix, p -> {
+      try {
+        return readClasspath(p);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+  }
+
+  /**
+   * Read a config set from a zip stream, as written by {@code zip -r}; the stream is not closed
+   *
+   * @param root the directory within the zip that holds the config set, or "" for the zip's root
+   */
+  public static ConfigSet fromZip(InputStream zip, String root) throws IOException {
+    String prefix = root.replaceAll("^/+|/+$", "");
+    prefix = prefix.isEmpty() ? "" : prefix + "/";
+    SortedMap<String, byte[]> files = new TreeMap<>();
+    ZipInputStream in = new ZipInputStream(zip);
+    for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+      if (!entry.isDirectory() && entry.getName().startsWith(prefix)) {
+        add(files, entry.getName().substring(prefix.length()), in);
+      }
+    }
+    return new ConfigSet(files);
+  }
+
+  /**
+   * Read a config set from a directory
+   */
+  public static ConfigSet fromDirectory(Path dir) throws IOException {
+    SortedMap<String, byte[]> files = new TreeMap<>();
+    try (Stream<Path> paths = Files.walk(dir)) {
+      for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+        try (InputStream in = Files.newInputStream(path)) {
+          add(files, dir.relativize(path).toString().replace('\\', '/'), in);
+        }
+      }
+    }
+    return new ConfigSet(files);
+  }
+
+  private static ConfigSet readClasspath(String prefix) throws IOException {
+    URL url = Thread.currentThread().getContextClassLoader().getResource(prefix);
+    if (url == null) {
+      url = ConfigSet.class.getClassLoader().getResource(prefix);
+    }
+    if (url == null) {
+      throw new IllegalArgumentException("No config set on the classpath at " + prefix);
+    }
+    long start = System.nanoTime();
+    ConfigSet configSet;
+    if ("jar".equals(url.getProtocol())) {
+      SortedMap<String, byte[]> files = new TreeMap<>();
+      JarURLConnection connection = (JarURLConnection) url.openConnection();
+      connection.setUseCaches(false);
+      try (JarFile jar = connection.getJarFile()) {
+        String dir = prefix + "/";
+        for (JarEntry entry : Collections.list(jar.entries())) {
+          if (!entry.isDirectory() && entry.getName().startsWith(dir)) {
+            try (InputStream in = jar.getInputStream(entry)) {
+              add(files, entry.getName().substring(dir.length()), in);
+            }
+          }
+        }
+      }
+      configSet = new ConfigSet(files);
+    } else {
+      try {
+        configSet = fromDirectory(Paths.get(url.toURI()));
+      } catch (URISyntaxException e) {
+        throw new IOException(e);
+      }
+    }
+    log.info("Read config set {} ({} files, {} bytes) in {} ms", prefix, configSet.files.size(),
+        configSet.size(), MicroSolrCloudCluster.elapsedMs(start));
+    return configSet;
+  }
+
+  private static void add(SortedMap<String, byte[]> files, String name, InputStream in) throws IOException {
+    for (String part : name.split("/")) {
+      if (part.startsWith(".")) return;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+      out.write(buffer, 0, n);
+    }
+    files.put(name, out.toByteArray());
+  }
+
+  /**
+   * @return the relative paths of the files, sorted
+   */
+  public Set<String> getFiles() {
+    return files.keySet();
+  }
+
+  /**
+   * @return the content of one file, or null
+   */
+  public byte[] getFile(String name) {
+    byte[] content = files.get(name);
+    return content == null ? null : content.clone();
+  }
+
+  /**
+   * @return the total bytes of all files
+   */
+  public long size() {
+    long size = 0;
+    for (byte[] content : files.values()) size += content.length;
+    return size;
+  }
+
+  /**
+   * Upload the config set as {@code configName}, replacing any config set of that name, in batched
+   * multi requests rather than one request per znode
+   */
+  public void upload(SolrZkClient zkClient, String configName) throws Exception {
+    long start = System.nanoTime();
+    String root = ZkConfigManager.CONFIGS_ZKNODE + "/" + configName;
+    zkClient.makePath(ZkConfigManager.CONFIGS_ZKNODE, false, true);
+    if (zkClient.exists(root, true)) {
+      zkClient.clean(root);
+    }
+
+    List<Op> ops = new ArrayList<>();
+    int batchBytes = 0;
+    Set<String> dirs = new HashSet<>();
+    ops.add(create(root, null));
+    int requests = 0;
+    for (Map.Entry<String, byte[]> file : files.entrySet()) {
+      String[] parts = file.getKey().split("/");
+      String dir = root;
+      for (int i = 0; i < parts.length - 1; i++) {
+        dir += "/" + parts[i];
+        if (dirs.add(dir)) ops.add(create(dir, null));
+      }
+      byte[] content = file.getValue();
+      if (batchBytes + content.length > BATCH_BYTES || ops.size() >= BATCH_SIZE) {
+        zkClient.multi(ops, true);
+        requests++;
+        ops = new ArrayList<>();
+        batchBytes = 0;
+      }
+      ops.add(create(root + "/" + file.getKey(), content));
+      batchBytes += content.length;
+    }
+    zkClient.multi(ops, true);
+    requests++;
+    log.info("Uploaded config set {} ({} files) in {} multi requests, {} ms", configName, files.size(), requests,
+        MicroSolrCloudCluster.elapsedMs(start));
+  }
+
+  private static Op create(String path, byte[] data) {
+    return Op.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+  }
+}
@@ -0,0 +1,197 @@
+package ixxus.solr;
+
+import org.apache.solr.common.cloud.SolrZkClient;
+import org.apache.solr.common.cloud.ZkConfigManager;
+import org.apache.solr.common.util.Utils;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A named set of overrides applied on top of a base config set:
+ * <ul>
+ * <li>core properties, passed as {@code property.*} on collection CREATE and visible to
+ * {@code ${...}} substitution in solrconfig.xml (e.g. {@code solr.ramBufferSizeMB})</li>
+ * <li>config overlay properties, in the dotted form accepted by the Config API {@code set-property}
+ * command (e.g. {@code query.filterCache.size}, {@code updateHandler.autoSoftCommit.maxTime})</li>
+ * <li>config overlay user properties, as set by the Config API {@code set-user-property} command:
+ * substitution properties every core of the config set sees, taking precedence over core and system
+ * properties</li>
+ * <li>param sets merged into the config set's {@code params.json}</li>
+ * </ul>
+ * Overlay and params are written into a copy of the base config set named {@link #configName(String)},
+ * so variants never affect each other or the base; {@link #apply(SolrZkClient, String)} writes them
+ * into an existing config set instead.
+ */
+public class ConfigSetVariant {
+
+  private final String name;
+  private final Map<String, String> properties = new LinkedHashMap<>();
+  private final Map<String, Object> overlayProperties = new LinkedHashMap<>();
+  private final Map<String, String> userProperties = new LinkedHashMap<>();
+  private final Map<String, Map<String, Object>> paramSets = new LinkedHashMap<>();
+
+  public ConfigSetVariant(String name) {
+    this.name = Objects.requireNonNull(name);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the name of this variant's copy of {@code baseConfigName}
+   */
+  public String configName(String baseConfigName) {
+    return baseConfigName + "__" + name;
+  }
+
+  /**
+   * Set a core property for collections created with this variant
+   */
+  public ConfigSetVariant withProperty(String property, String value) {
+    properties.put(property, value);
+    return this;
+  }
+
+  /**
+   * Set a config overlay property, e.g. {@code withOverlayProperty("query.filterCache.size", 4096)}
+   */
+  public ConfigSetVariant withOverlayProperty(String path, Object value) {
+    overlayProperties.put(path, value);
+    return this;
+  }
+
+  /**
+   * Set a config overlay user property, e.g. {@code withUserProperty("solr.filterCache.size", "64")}
+   */
+  public ConfigSetVariant withUserProperty(String property, String value) {
+    userProperties.put(property, value);
+    return this;
+  }
+
+  /**
+   * Add or replace a param set in params.json
+   */
+  public ConfigSetVariant withParams(String paramSet, Map<String, Object> params) {
+    paramSets.put(paramSet, new LinkedHashMap<>(params));
+    return this;
+  }
+
+  public Map<String, String> getProperties() {
+    return Collections.unmodifiableMap(properties);
+  }
+
+  /**
+   * Copy {@code baseConfigName} in ZooKeeper to this variant's config set, if that does not exist yet,
+   * and write the overlay and params into it
+   */
+  public void install(SolrZkClient zkClient, String baseConfigName) throws IOException, KeeperException, InterruptedException {
+    String configName = configName(baseConfigName);
+    ZkConfigManager manager = new ZkConfigManager(zkClient);
+    if (!manager.configExists(configName)) {
+      manager.copyConfigDir(baseConfigName, configName);
+    }
+    apply(zkClient, configName);
+  }
+
+  /**
+   * Write the overlay and params of this variant into the existing config set {@code configName},
+   * merging them with what its configoverlay.json and params.json already hold. Core properties are
+   * not part of a config set and are left to collection CREATE.
+   */
+  public void apply(SolrZkClient zkClient, String configName) throws KeeperException, InterruptedException {
+    String configPath = ZkConfigManager.CONFIGS_ZKNODE + "/" + configName;
+    if (!overlayProperties.isEmpty() || !userProperties.isEmpty()) {
+      writeOverlay(zkClient, configPath + "/configoverlay.json");
+    }
+    if (!paramSets.isEmpty()) {
+      writeParams(zkClient, configPath + "/params.json");
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void writeOverlay(SolrZkClient zkClient, String path) throws KeeperException, InterruptedException {
+    Map<String, Object> json = read(zkClient, path);
+    if (!overlayProperties.isEmpty()) {
+      Map<String, Object> props = (Map<String, Object>) json.computeIfAbsent("props", k -> new LinkedHashMap<>());
+      merge(props, nest(overlayProperties));
+    }
+    if (!userProperties.isEmpty()) {
+      Map<String, Object> props = (Map<String, Object>) json.computeIfAbsent("userProps", k -> new LinkedHashMap<>());
+      props.putAll(userProperties);
+    }
+    write(zkClient, path, Utils.toJSON(json));
+  }
+
+  @SuppressWarnings("unchecked")
+  private void writeParams(SolrZkClient zkClient, String path) throws KeeperException, InterruptedException {
+    Map<String, Object> json = read(zkClient, path);
+    Map<String, Object> params = (Map<String, Object>) json.computeIfAbsent("params", k -> new LinkedHashMap<>());
+    for (Map.Entry<String, Map<String, Object>> entry : paramSets.entrySet()) {
+      Map<String, Object> set = new LinkedHashMap<>(entry.getValue());
+      set.put("", Collections.singletonMap("v", 0));
+      params.put(entry.getKey(), set);
+    }
+    write(zkClient, path, Utils.toJSON(json));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> read(SolrZkClient zkClient, String path) throws KeeperException, InterruptedException {
+    Map<String, Object> json = new LinkedHashMap<>();
+    if (zkClient.exists(path, true)) {
+      byte[] data = zkClient.getData(path, null, null, true);
+      if (data != null && data.length > 0) {
+        json.putAll((Map<String, Object>) Utils.fromJSON(data));
+      }
+    }
+    return json;
+  }
+
+  private static void write(SolrZkClient zkClient, String path, byte[] data) throws KeeperException, InterruptedException {
+    // create, or overwrite if the base config set already has the file
+    zkClient.makePath(path, data, CreateMode.PERSISTENT, null, false, true);
+  }
+
+  /**
+   * {@code a.b.c=v} to {@code {a:{b:{c:v}}}}, the layout of configoverlay.json
+   */
+  @SuppressWarnings("unchecked")
+  static Map<String, Object> nest(Map<String, Object> dotted) {
+    Map<String, Object> root = new LinkedHashMap<>();
+    for (Map.Entry<String, Object> entry : dotted.entrySet()) {
+      String[] parts = entry.getKey().split("\\.");
+      Map<String, Object> node = root;
+      for (int i = 0; i < parts.length - 1; i++) {
+        node = (Map<String, Object>) node.computeIfAbsent(parts[i], k -> new LinkedHashMap<>());
+      }
+      node.put(parts[parts.length - 1], entry.getValue());
+    }
+    return root;
+  }
+
+  /**
+   * Merge the nested map {@code from} into {@code into}, replacing leaves
+   */
+  @SuppressWarnings("unchecked")
+  private static void merge(Map<String, Object> into, Map<String, Object> from) {
+    for (Map.Entry<String, Object> entry : from.entrySet()) {
+      Object existing = into.get(entry.getKey());
+      if (existing instanceof Map && entry.getValue() instanceof Map) {
+        Map<String, Object> copy = new LinkedHashMap<>((Map<String, Object>) existing);
+        merge(copy, (Map<String, Object>) entry.getValue());
+        into.put(entry.getKey(), copy);
+      } else {
+        into.put(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return name + "{properties=" + properties + ", overlay=" + overlayProperties + ", userProperties=" + userProperties
+        + ", params=" + paramSets.keySet() + "}";
+  }
+}
@@ -0,0 +1,162 @@
+package ixxus.solr;
+
+import ixxus.solr.SolrMetricsCollector.CoreMetric;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.CollectionAdminRequest;
+import org.apache.solr.common.cloud.ClusterStateUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the same workload against each {@link ConfigSetVariant} in turn on one, reused cluster and
+ * tabulates throughput, latency percentiles, cache hit ratios and heap usage side by side.
+ * <p>
+ * For every variant a fresh collection is created from the variant's config set and properties,
+ * an optional unmeasured setup (e.g. loading documents) runs, then the measured workload, and the
+ * collection is deleted again.
+ */
+public class ConfigVariantRunner {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * Measurements of one variant
+   */
+  public static class Result {
+    public final String variant;
+    public final long operations;
+    public final long errors;
+    public final long wallMs;
+    public final double p50Ms;
+    public final double p90Ms;
+    public final double p99Ms;
+    public final double filterCacheHitRatio;
+    public final double queryResultCacheHitRatio;
+    public final double documentCacheHitRatio;
+    public final long heapPeakBytes;
+    public final long heapAfterGcBytes;
+
+    Result(String variant, LatencyStats latencies, long wallMs, List<SolrMetricsCollector.Sample> before,
+           List<SolrMetricsCollector.Sample> after, String collection, long heapPeakBytes, long heapAfterGcBytes) {
+      this.variant = variant;
+      this.operations = latencies.getCount();
+      this.errors = latencies.getErrors();
+      this.wallMs = wallMs;
+      this.p50Ms = latencies.percentileMs(0.5);
+      this.p90Ms = latencies.percentileMs(0.9);
+      this.p99Ms = latencies.percentileMs(0.99);
+      this.filterCacheHitRatio = hitRatio(before, after, collection,
+          CoreMetric.FILTER_CACHE_HITS, CoreMetric.FILTER_CACHE_LOOKUPS);
+      this.queryResultCacheHitRatio = hitRatio(before, after, collection,
+          CoreMetric.QUERY_RESULT_CACHE_HITS, CoreMetric.QUERY_RESULT_CACHE_LOOKUPS);
+      this.documentCacheHitRatio = hitRatio(before, after, collection,
+          CoreMetric.DOCUMENT_CACHE_HITS, CoreMetric.DOCUMENT_CACHE_LOOKUPS);
+      this.heapPeakBytes = heapPeakBytes;
+      this.heapAfterGcBytes = heapAfterGcBytes;
+    }
+
+    public double throughput() {
+      return wallMs == 0 ? 0 : operations * 1000.0 / wallMs;
+    }
+
+    private static double hitRatio(List<SolrMetricsCollector.Sample> before, List<SolrMetricsCollector.Sample> after,
+                                   String collection, CoreMetric hits, CoreMetric lookups) {
+      long l = SolrMetricsCollector.sum(after, collection, lookups) - SolrMetricsCollector.sum(before, collection, lookups);
+      long h = SolrMetricsCollector.sum(after, collection, hits) - SolrMetricsCollector.sum(before, collection, hits);
+      return l > 0 ? (double) h / l : Double.NaN;
+    }
+  }
+
+  private final MicroSolrCloudCluster cluster;
+  private final String baseConfigName;
+  private final int numShards;
+  private final int replicationFactor;
+  private BenchmarkWorkload setup;
+
+  /**
+   * @param cluster           the cluster to run on
+   * @param baseConfigName    the config set the variants apply to; it must already be uploaded
+   * @param numShards         shards of each variant's collection
+   * @param replicationFactor replicas per shard of each variant's collection
+   */
+  public ConfigVariantRunner(MicroSolrCloudCluster cluster, String baseConfigName, int numShards, int replicationFactor) {
+    this.cluster = cluster;
+    this.baseConfigName = baseConfigName;
+    this.numShards = numShards;
+    this.replicationFactor = replicationFactor;
+  }
+
+  /**
+   * Run {@code setup} on each fresh collection before the measured workload; its timings are discarded
+   */
+  public ConfigVariantRunner withSetup(BenchmarkWorkload setup) {
+    this.setup = setup;
+    return this;
+  }
+
+  public List<Result> run(List<ConfigSetVariant> variants, BenchmarkWorkload workload) throws Exception {
+    List<Result> results = new ArrayList<>();
+    for (ConfigSetVariant variant : variants) {
+      results.add(run(variant, workload));
+    }
+    log.info("Config variant comparison:\n{}", toTable(results));
+    return results;
+  }
+
+  private Result run(ConfigSetVariant variant, BenchmarkWorkload workload) throws Exception {
+    CloudSolrClient client = cluster.getSolrClient();
+    variant.install(cluster.getZkClient(), baseConfigName);
+    String collection = "variant_" + variant.getName();
+    CollectionAdminRequest.createCollection(collection, variant.configName(baseConfigName), numShards, replicationFactor)
+        .setMaxShardsPerNode(numShards * replicationFactor)
+        .setProperties(variant.getProperties())
+        .process(client);
+    try {
+      if (!ClusterStateUtil.waitForAllActiveAndLiveReplicas(client.getZkStateReader(), collection,
+          (int) TimeUnit.MINUTES.toMillis(2))) {
+        throw new IllegalStateException("Collection " + collection + " did not become active");
+      }
+      if (setup != null) {
+        setup.run(client, collection, new LatencyStats());
+      }
+      LatencyStats latencies = new LatencyStats();
+      List<SolrMetricsCollector.Sample> before = SolrMetricsCollector.read(cluster);
+      HeapUsage.resetPeak();
+      long start = System.nanoTime();
+      workload.run(client, collection, latencies);
+      long wallMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      long heapPeak = HeapUsage.peakBytes();
+      List<SolrMetricsCollector.Sample> after = SolrMetricsCollector.read(cluster);
+      Result result = new Result(variant.getName(), latencies, wallMs, before, after, collection,
+          heapPeak, HeapUsage.usedAfterGc());
+      log.info("Variant {}: {} ops in {} ms, {}", variant, result.operations, wallMs, latencies);
+      return result;
+    } finally {
+      CollectionAdminRequest.deleteCollection(collection).process(client);
+    }
+  }
+
+  /**
+   * @return a fixed-width text table with one row per variant
+   */
+  public static String toTable(List<Result> results) {
+    StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,
+        "%-20s %10s %7s %10s %9s %9s %9s %7s %7s %7s %10s %10s%n",
+        "variant", "ops", "errors", "ops/s", "p50ms", "p90ms", "p99ms",
+        "fcHit", "qrcHit", "dcHit", "heapPkMB", "heapGcMB"));
+    for (Result r : results) {
+      sb.append(String.format(Locale.ROOT,
+          "%-20s %10d %7d %10.1f %9.2f %9.2f %9.2f %7.3f %7.3f %7.3f %10d %10d%n",
+          r.variant, r.operations, r.errors, r.throughput(), r.p50Ms, r.p90Ms, r.p99Ms,
+          r.filterCacheHitRatio, r.queryResultCacheHitRatio, r.documentCacheHitRatio,
+          r.heapPeakBytes >> 20, r.heapAfterGcBytes >> 20));
+    }
+    return sb.toString();
+  }
+}
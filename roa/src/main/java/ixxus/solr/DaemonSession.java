@@ -0,0 +1,144 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.CollectionAdminRequest;
+import org.apache.solr.common.cloud.ClusterStateUtil;
+import org.apache.solr.common.cloud.SolrZkClient;
+import org.apache.solr.common.cloud.ZkConfigManager;
+import org.apache.zookeeper.CreateMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Path;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * A test's connection to a {@link ClusterDaemon}. Collections and config sets created through the
+ * session get a prefix of its own, so tests sharing the daemon never see each other's data, and are
+ * deleted again on {@link #close()}. Should the test JVM die first, the daemon deletes them once the
+ * session's ephemeral znode has expired.
+ */
+public class DaemonSession implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  static final Pattern NAMESPACED = Pattern.compile("(s[0-9a-f]+)__.+");
+
+  private static final int ZK_TIMEOUT = 15000;
+
+  private final String zkHost;
+  private final String namespace;
+  private final SolrZkClient zkClient;
+  private final CloudSolrClient solrClient;
+  private final Set<String> collections = new LinkedHashSet<>();
+  private final Set<String> configs = new LinkedHashSet<>();
+
+  DaemonSession(String zkHost) throws Exception {
+    this.zkHost = zkHost;
+    this.namespace = String.format(Locale.ROOT, "s%016x", ThreadLocalRandom.current().nextLong());
+    this.zkClient = new SolrZkClient(zkHost, ZK_TIMEOUT, ZK_TIMEOUT, null);
+    try {
+      zkClient.makePath(ClusterDaemon.SESSIONS_ZNODE + "/" + namespace, null, CreateMode.EPHEMERAL, null, false, true);
+      this.solrClient = new CloudSolrClient.Builder().withZkHost(zkHost).build();
+      solrClient.connect();
+    } catch (Exception e) {
+      zkClient.close();
+      throw e;
+    }
+    log.info("Attached to the Solr daemon at {} as {}", zkHost, namespace);
+  }
+
+  public String getZkHost() {
+    return zkHost;
+  }
+
+  /**
+   * @return a client of the whole cluster; only the names from {@link #collection(String)} belong to this session
+   */
+  public CloudSolrClient getSolrClient() {
+    return solrClient;
+  }
+
+  /**
+   * @return the cluster-wide name of this session's collection or config set {@code name}
+   */
+  public String collection(String name) {
+    return namespace + "__" + name;
+  }
+
+  /**
+   * Upload a config set under this session's namespace
+   *
+   * @return the cluster-wide name of the config set
+   */
+  public String uploadConfigSet(Path configDir, String configName) throws IOException {
+    String name = collection(configName);
+    new ZkConfigManager(zkClient).uploadConfigDir(configDir, name);
+    configs.add(name);
+    return name;
+  }
+
+  /**
+   * Upload an in-memory config set under this session's namespace
+   *
+   * @return the cluster-wide name of the config set
+   */
+  public String uploadConfigSet(ConfigSet configSet, String configName) throws Exception {
+    String name = collection(configName);
+    configSet.upload(zkClient, name);
+    configs.add(name);
+    return name;
+  }
+
+  /**
+   * Create a collection in this session's namespace and wait until all its replicas are active
+   *
+   * @param name       the collection name within the session
+   * @param configName the cluster-wide name of the config set, e.g. one the daemon was started with
+   * @return the cluster-wide name of the collection
+   */
+  public String createCollection(String name, String configName, int numShards, int replicationFactor) throws Exception {
+    String collection = collection(name);
+    CollectionAdminRequest.createCollection(collection, configName, numShards, replicationFactor)
+        .setMaxShardsPerNode(numShards * replicationFactor)
+        .process(solrClient);
+    collections.add(collection);
+    if (!ClusterStateUtil.waitForAllActiveAndLiveReplicas(solrClient.getZkStateReader(), collection,
+        (int) TimeUnit.MINUTES.toMillis(2))) {
+      throw new IllegalStateException("Collection " + collection + " did not become active");
+    }
+    return collection;
+  }
+
+  /**
+   * Delete the session's collections and config sets and detach from the daemon
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      for (String collection : collections) {
+        try {
+          CollectionAdminRequest.deleteCollection(collection).process(solrClient);
+        } catch (Exception e) {
+          log.warn("Could not delete {}, the daemon will once this session has expired", collection, e);
+        }
+      }
+      ZkConfigManager manager = new ZkConfigManager(zkClient);
+      for (String config : configs) {
+        manager.deleteConfigDir(config);
+      }
+    } finally {
+      solrClient.close();
+      // deletes the session's ephemeral znode
+      zkClient.close();
+    }
+  }
+}
@@ -0,0 +1,314 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.stream.SolrStream;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.SolrjNamedThreadFactory;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads every document matching a query out of a collection, one stream per shard leader in parallel,
+ * merged into a single, unordered iterator.
+ * <p>
+ * When all requested fields and the unique key have docValues, shards are read through the streaming
+ * {@code /export} handler and decoded tuple by tuple; otherwise each shard is paged through with
+ * {@code cursorMark}, one page per request. Either way documents are handed over through a bounded
+ * queue, so memory use is capped by the queue capacity and page size, not by the result size.
+ */
+public class ExportReader implements Iterator<SolrDocument>, Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * Queued by a shard reader when it is done
+   */
+  private static final SolrDocument END_OF_SHARD = new SolrDocument();
+
+  private final MicroSolrCloudCluster cluster;
+  private final String collection;
+  private String query = "*:*";
+  private List<String> fields;
+  private int queueCapacity = 10000;
+  private int pageSize = 1000;
+
+  private BlockingQueue<SolrDocument> queue;
+  private volatile ExecutorService executor;
+  private final AtomicReference<Exception> failure = new AtomicReference<>();
+  private final AtomicLong count = new AtomicLong();
+  private volatile boolean closed;
+  private boolean useExport;
+  private int shardsRunning;
+  private SolrDocument next;
+  private long startNanos;
+  private long endNanos;
+
+  public ExportReader(MicroSolrCloudCluster cluster, String collection) {
+    this.cluster = Objects.requireNonNull(cluster);
+    this.collection = Objects.requireNonNull(collection);
+  }
+
+  /**
+   * The query selecting the documents, {@code *:*} by default
+   */
+  public ExportReader withQuery(String query) {
+    this.query = query;
+    return this;
+  }
+
+  /**
+   * The fields to return; {@code /export} is only used when this is set and every field has docValues
+   */
+  public ExportReader withFields(List<String> fields) {
+    this.fields = new ArrayList<>(fields);
+    return this;
+  }
+
+  /**
+   * How many decoded documents may wait to be consumed, 10000 by default
+   */
+  public ExportReader withQueueCapacity(int queueCapacity) {
+    this.queueCapacity = queueCapacity;
+    return this;
+  }
+
+  /**
+   * Rows per {@code cursorMark} request, 1000 by default
+   */
+  public ExportReader withPageSize(int pageSize) {
+    this.pageSize = pageSize;
+    return this;
+  }
+
+  /**
+   * Start reading all shards
+   */
+  public synchronized ExportReader open() {
+    if (executor != null) {
+      throw new IllegalStateException("Export reader already open");
+    }
+    DocCollection coll = cluster.getSolrClient().getZkStateReader().getClusterState().getCollection(collection);
+    IndexSchema schema = schema();
+    String uniqueKey = schema.getUniqueKeyField().getName();
+    useExport = canExport(schema, uniqueKey);
+    queue = new ArrayBlockingQueue<>(queueCapacity);
+    Collection<Slice> slices = coll.getActiveSlices();
+    shardsRunning = slices.size();
+    executor = ExecutorUtil.newMDCAwareFixedThreadPool(Math.max(1, slices.size()), new SolrjNamedThreadFactory("export-reader"));
+    startNanos = System.nanoTime();
+    for (Slice slice : slices) {
+      Replica leader = slice.getLeader();
+      if (leader == null) {
+        throw new IllegalStateException("No leader for " + collection + "/" + slice.getName());
+      }
+      String coreUrl = leader.getCoreUrl();
+      executor.submit(() -> {
+        try {
+          if (useExport) {
+            export(coreUrl, uniqueKey);
+          } else {
+            page(coreUrl, uniqueKey);
+          }
+        } catch (Exception e) {
+          if (!closed) {
+            log.warn("Error reading shard {} of {}", slice.getName(), collection, e);
+            failure.compareAndSet(null, e);
+          }
+        } finally {
+          offer(END_OF_SHARD);
+        }
+        return null;
+      });
+    }
+    log.info("Reading {} shards of {} through {}", slices.size(), collection, useExport ? "/export" : "cursorMark");
+    return this;
+  }
+
+  private IndexSchema schema() {
+    for (JettySolrRunner jetty : cluster.getJettySolrRunners()) {
+      CoreContainer cores = jetty.getCoreContainer();
+      if (cores == null || cores.isShutDown()) continue;
+      for (SolrCore core : cores.getCores()) {
+        if (collection.equals(core.getCoreDescriptor().getCollectionName())) {
+          return core.getLatestSchema();
+        }
+      }
+    }
+    throw new IllegalStateException("No core of " + collection + " found");
+  }
+
+  private boolean canExport(IndexSchema schema, String uniqueKey) {
+    if (fields == null || fields.isEmpty()) return false;
+    List<String> needed = new ArrayList<>(fields);
+    needed.add(uniqueKey);
+    for (String name : needed) {
+      SchemaField field = schema.getFieldOrNull(name);
+      if (field == null || !field.hasDocValues()) return false;
+    }
+    return true;
+  }
+
+  private void export(String coreUrl, String uniqueKey) throws Exception {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set(CommonParams.QT, "/export");
+    params.set(CommonParams.Q, query);
+    params.set(CommonParams.FL, String.join(",", fields));
+    params.set(CommonParams.SORT, uniqueKey + " asc");
+    params.set(CommonParams.DISTRIB, false);
+    SolrStream stream = new SolrStream(coreUrl, params);
+    try {
+      stream.open();
+      for (Tuple tuple = stream.read(); !tuple.EOF && !closed; tuple = stream.read()) {
+        SolrDocument doc = new SolrDocument();
+        for (Object entry : tuple.fields.entrySet()) {
+          Map.Entry<?, ?> e = (Map.Entry<?, ?>) entry;
+          doc.setField((String) e.getKey(), e.getValue());
+        }
+        offer(doc);
+      }
+    } finally {
+      stream.close();
+    }
+  }
+
+  private void page(String coreUrl, String uniqueKey) throws Exception {
+    SolrQuery q = new SolrQuery(query);
+    if (fields != null && !fields.isEmpty()) q.setFields(fields.toArray(new String[0]));
+    q.setRows(pageSize);
+    q.setSort(uniqueKey, SolrQuery.ORDER.asc);
+    q.set(CommonParams.DISTRIB, false);
+    String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+    try (HttpSolrClient client = new HttpSolrClient.Builder(coreUrl).build()) {
+      while (!closed) {
+        q.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+        QueryResponse rsp = client.query(q);
+        for (SolrDocument doc : rsp.getResults()) {
+          offer(doc);
+        }
+        String nextCursorMark = rsp.getNextCursorMark();
+        if (cursorMark.equals(nextCursorMark)) break;
+        cursorMark = nextCursorMark;
+      }
+    }
+  }
+
+  private void offer(SolrDocument doc) {
+    try {
+      while (!closed && !queue.offer(doc, 100, TimeUnit.MILLISECONDS)) {
+        // consumer is behind, wait for room
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public synchronized boolean hasNext() {
+    if (next != null) return true;
+    if (queue == null) throw new IllegalStateException("Export reader not open");
+    try {
+      while (shardsRunning > 0 && !closed) {
+        SolrDocument doc = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (doc == null) continue;
+        if (doc == END_OF_SHARD) {
+          shardsRunning--;
+          continue;
+        }
+        count.incrementAndGet();
+        next = doc;
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted reading " + collection, e);
+    }
+    if (endNanos == 0) {
+      endNanos = System.nanoTime();
+      log.info("Read {} docs from {} in {} ms, {} docs/sec", count.get(), collection,
+          TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos), (long) getDocsPerSecond());
+    }
+    Exception e = failure.get();
+    if (e != null) {
+      throw new IllegalStateException("Reading " + collection + " failed", e);
+    }
+    return false;
+  }
+
+  @Override
+  public synchronized SolrDocument next() {
+    if (!hasNext()) throw new NoSuchElementException();
+    SolrDocument doc = next;
+    next = null;
+    return doc;
+  }
+
+  /**
+   * @return the remaining documents as a stream; it may be made parallel, consumers then share the queue
+   */
+  public Stream<SolrDocument> stream() {
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.NONNULL), false)
+        .onClose(this::close);
+  }
+
+  /**
+   * @return true if shards are read through /export, false for cursorMark paging
+   */
+  public boolean isUsingExport() {
+    return useExport;
+  }
+
+  /**
+   * @return the number of documents consumed so far
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @return documents consumed per second, up to the end of the results or now
+   */
+  public double getDocsPerSecond() {
+    long end = endNanos == 0 ? System.nanoTime() : endNanos;
+    long nanos = end - startNanos;
+    return nanos <= 0 ? 0 : count.get() * 1e9 / nanos;
+  }
+
+  /**
+   * Stop reading; safe to call before all documents were consumed
+   */
+  @Override
+  public void close() {
+    closed = true;
+    ExecutorService e = executor;
+    if (e != null) {
+      ExecutorUtil.shutdownAndAwaitTermination(e);
+    }
+  }
+}
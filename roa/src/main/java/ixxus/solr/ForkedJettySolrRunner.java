@@ -0,0 +1,277 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.embedded.JettyConfig;
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.servlet.SolrDispatchFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link JettySolrRunner} whose Solr node runs in a JVM of its own, forked from this one with the
+ * same classpath, so every node has its own heap and GC. ZooKeeper stays in the parent JVM.
+ * <p>
+ * Starting, stopping and restarting work as for an in-process node, and the node takes part in the
+ * cluster through ZooKeeper and HTTP only. {@link #getCoreContainer()} is therefore null, and helpers
+ * that read cores in-process (metrics collectors, probes) do not see forked nodes. The child exits
+ * when its standard input closes, so it does not outlive the parent JVM; its output goes to
+ * {@code node.log} in the node's directory.
+ */
+public class ForkedJettySolrRunner extends JettySolrRunner {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private static final String READY_FILE = "node.ready";
+
+  /**
+   * JVM settings of the forked nodes
+   */
+  public static class Options {
+    private String heap = "512m";
+    private List<String> gcArgs = Collections.singletonList("-XX:+UseG1GC");
+    private final List<String> jvmArgs = new ArrayList<>();
+    private final Set<String> inheritedPropertyPrefixes = new LinkedHashSet<>(Arrays.asList("solr.", "tests."));
+    private long startupTimeoutMs = TimeUnit.MINUTES.toMillis(2);
+
+    /**
+     * The -Xms and -Xmx of every node, e.g. {@code 512m} (the default)
+     */
+    public Options withHeap(String heap) {
+      this.heap = Objects.requireNonNull(heap);
+      return this;
+    }
+
+    /**
+     * GC selection and tuning flags, {@code -XX:+UseG1GC} by default
+     */
+    public Options withGcArgs(String... gcArgs) {
+      this.gcArgs = Arrays.asList(gcArgs);
+      return this;
+    }
+
+    /**
+     * Any further JVM arguments, e.g. {@code -XX:+PrintGCDetails}
+     */
+    public Options withJvmArgs(String... jvmArgs) {
+      this.jvmArgs.addAll(Arrays.asList(jvmArgs));
+      return this;
+    }
+
+    /**
+     * Also pass the system properties starting with {@code prefix} on to the nodes; {@code solr.}
+     * and {@code tests.} are passed by default
+     */
+    public Options withInheritedProperties(String prefix) {
+      inheritedPropertyPrefixes.add(prefix);
+      return this;
+    }
+
+    public Options withStartupTimeoutMs(long startupTimeoutMs) {
+      this.startupTimeoutMs = startupTimeoutMs;
+      return this;
+    }
+  }
+
+  private final Options options;
+  private final Path home;
+  private final JettyConfig config;
+  private volatile Process process;
+  private volatile int port = -1;
+  private volatile String nodeName;
+
+  ForkedJettySolrRunner(String solrHome, Properties nodeProperties, JettyConfig config, Options options) {
+    super(solrHome, nodeProperties, config);
+    if (config.sslConfig != null && config.sslConfig.isSSLMode() || !config.extraServlets.isEmpty() || !config.extraFilters.isEmpty()) {
+      throw new IllegalArgumentException("Forked nodes support neither SSL nor extra servlets or filters");
+    }
+    this.home = Paths.get(solrHome);
+    this.config = config;
+    this.options = Objects.requireNonNull(options);
+  }
+
+  @Override
+  public void start() throws Exception {
+    start(true);
+  }
+
+  /**
+   * Fork the node's JVM and wait until its cores have loaded
+   *
+   * @param reusePort whether to restart on the port of the last run rather than the configured one
+   */
+  @Override
+  public synchronized void start(boolean reusePort) throws Exception {
+    if (process != null && process.isAlive()) {
+      throw new IllegalStateException("Forked node " + home + " is already running");
+    }
+    int startPort = reusePort && port > 0 ? port : config.port;
+    Path ready = home.resolve(READY_FILE);
+    Files.deleteIfExists(ready);
+
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.add("-Xms" + options.heap);
+    command.add("-Xmx" + options.heap);
+    command.addAll(options.gcArgs);
+    command.addAll(options.jvmArgs);
+    for (String name : System.getProperties().stringPropertyNames()) {
+      for (String prefix : options.inheritedPropertyPrefixes) {
+        if (name.startsWith(prefix)) {
+          command.add("-D" + name + "=" + System.getProperty(name));
+          break;
+        }
+      }
+    }
+    // node properties become system properties of the child, which its cores substitute just the same
+    for (String name : getNodeProperties().stringPropertyNames()) {
+      command.add("-D" + name + "=" + getNodeProperties().getProperty(name));
+    }
+    command.add("-DzkHost=" + System.getProperty("zkHost"));
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(Child.class.getName());
+    command.add(home.toString());
+    command.add(config.context);
+    command.add(Integer.toString(startPort));
+    command.add(Boolean.toString(config.stopAtShutdown));
+    command.add(config.waitForLoadingCoresToFinishMs == null ? "" : config.waitForLoadingCoresToFinishMs.toString());
+
+    long start = System.nanoTime();
+    File logFile = home.resolve("node.log").toFile();
+    process = new ProcessBuilder(command)
+        .directory(home.toFile())
+        .redirectErrorStream(true)
+        .redirectOutput(ProcessBuilder.Redirect.appendTo(logFile))
+        .start();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(options.startupTimeoutMs);
+    while (!Files.exists(ready)) {
+      if (!process.isAlive()) {
+        throw new IllegalStateException("Forked node " + home + " exited with " + process.exitValue() + ", see " + logFile);
+      }
+      if (System.nanoTime() > deadline) {
+        process.destroyForcibly();
+        throw new IllegalStateException("Forked node " + home + " did not start in time, see " + logFile);
+      }
+      Thread.sleep(50);
+    }
+    List<String> lines = Files.readAllLines(ready, StandardCharsets.UTF_8);
+    port = Integer.parseInt(lines.get(0));
+    nodeName = lines.get(1);
+    log.info("Forked node {} started on port {} in {} ms", nodeName, port, MicroSolrCloudCluster.elapsedMs(start));
+  }
+
+  /**
+   * Ask the node to shut down cleanly by closing its input, killing it if it has not exited in time
+   */
+  @Override
+  public synchronized void stop() throws Exception {
+    Process p = process;
+    if (p == null) return;
+    p.getOutputStream().close();
+    if (!p.waitFor(1, TimeUnit.MINUTES)) {
+      log.warn("Forked node {} did not stop in time, killing it", nodeName);
+      p.destroyForcibly().waitFor();
+    }
+    process = null;
+  }
+
+  /**
+   * @return the node's process while it runs, e.g. to read its pid or kill it abruptly
+   */
+  public Process getProcess() {
+    return process;
+  }
+
+  @Override
+  public boolean isRunning() {
+    Process p = process;
+    return p != null && p.isAlive();
+  }
+
+  @Override
+  public boolean isStopped() {
+    return !isRunning();
+  }
+
+  @Override
+  public int getLocalPort() {
+    if (port <= 0) {
+      throw new IllegalStateException("Forked node " + home + " has not been started");
+    }
+    return port;
+  }
+
+  @Override
+  public URL getBaseUrl() {
+    try {
+      return new URL("http", "127.0.0.1", getLocalPort(), config.context);
+    } catch (MalformedURLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public String getNodeName() {
+    return nodeName;
+  }
+
+  /**
+   * @return null, the cores live in another JVM
+   */
+  @Override
+  public CoreContainer getCoreContainer() {
+    return null;
+  }
+
+  /**
+   * @return null, the dispatch filter lives in another JVM
+   */
+  @Override
+  public SolrDispatchFilter getSolrDispatchFilter() {
+    return null;
+  }
+
+  /**
+   * Entry point of the forked JVM: runs one Solr node until standard input closes. Arguments are the
+   * Solr home and the context, port, stopAtShutdown and waitForLoadingCoresToFinishMs (empty for the
+   * default) of the parent's {@link JettyConfig}.
+   */
+  public static class Child {
+
+    public static void main(String[] args) throws Exception {
+      Path home = Paths.get(args[0]);
+      JettyConfig config = JettyConfig.builder()
+          .setContext(args[1])
+          .setPort(Integer.parseInt(args[2]))
+          .stopAtShutdown(Boolean.parseBoolean(args[3]))
+          .waitForLoadingCoresToFinish(args[4].isEmpty() ? null : Long.valueOf(args[4]))
+          .build();
+      JettySolrRunner jetty = new JettySolrRunner(home.toString(), config);
+      jetty.start();
+
+      Path tmp = home.resolve(READY_FILE + ".tmp");
+      Files.write(tmp, Arrays.asList(Integer.toString(jetty.getLocalPort()), jetty.getNodeName()), StandardCharsets.UTF_8);
+      Files.move(tmp, home.resolve(READY_FILE), StandardCopyOption.ATOMIC_MOVE);
+
+      InputStream in = System.in;
+      while (in.read() != -1) {
+        // anything written is ignored; end of input means the parent stopped the node or died
+      }
+      jetty.stop();
+      System.exit(0);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package ixxus.solr;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+/**
+ * Heap measurements for benchmark runs. All nodes of a {@link MicroSolrCloudCluster} share the JVM,
+ * so these are cluster-wide figures.
+ */
+class HeapUsage {
+
+  private HeapUsage() {
+  }
+
+  /**
+   * Reset the peak usage of every heap pool, starting a new {@link #peakBytes()} window
+   */
+  static void resetPeak() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  /**
+   * @return the sum of the heap pools' peak usage since the last {@link #resetPeak()}
+   */
+  static long peakBytes() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  /**
+   * @return heap in use right after a requested full GC, i.e. roughly the live set
+   */
+  static long usedAfterGc() {
+    System.gc();
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+}
@@ -0,0 +1,200 @@
+package ixxus.solr;
+
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.CollectionAdminRequest;
+import org.apache.solr.cloud.OverseerCollectionMessageHandler;
+import org.apache.solr.common.cloud.ClusterStateUtil;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.IndexDeletionPolicyWrapper;
+import org.apache.solr.core.SolrCore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Seeds collections from on-disk index snapshots and captures such snapshots from running collections.
+ * <p>
+ * Two layouts are understood:
+ * <ul>
+ * <li>a plain snapshot, one directory per shard named after the shard ({@code shard1}, {@code shard2}, ...)
+ * holding the Lucene index files directly or in an {@code index} subdirectory; this is what
+ * {@link #capture(MicroSolrCloudCluster, String, Path)} writes</li>
+ * <li>a Solr backup, recognised by its {@code backup.properties}, with one {@code snapshot.<shard>}
+ * directory per shard</li>
+ * </ul>
+ * Shard names must be {@code shard1..shardN} so that the compositeId hash ranges of the new collection
+ * line up with the ones the documents were routed by.
+ */
+class IndexSnapshots {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private static final String BACKUP_PROPERTIES = "backup.properties";
+  private static final String BACKUP_SHARD_PREFIX = "snapshot.";
+  private static final long TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+
+  private IndexSnapshots() {
+  }
+
+  /**
+   * Create {@code collection} with one shard per snapshot shard and fill every replica's data dir
+   * from the snapshot before its core is loaded
+   */
+  static void seed(MicroSolrCloudCluster cluster, String collection, String configName,
+                   Path snapshotDir, int replicationFactor) throws Exception {
+    SortedMap<String, Path> shards = shardIndexDirs(snapshotDir);
+    List<JettySolrRunner> nodes = cluster.getJettySolrRunners();
+    if (replicationFactor > nodes.size()) {
+      throw new IllegalArgumentException("replicationFactor " + replicationFactor + " exceeds node count " + nodes.size());
+    }
+    CloudSolrClient client = cluster.getSolrClient();
+    CollectionAdminRequest.createCollection(collection, configName, shards.size(), replicationFactor)
+        .setCreateNodeSet(OverseerCollectionMessageHandler.CREATE_NODE_SET_EMPTY)
+        .setMaxShardsPerNode(shards.size() * replicationFactor)
+        .process(client);
+
+    Path seedRoot = cluster.getBaseDir().resolve("seeded").resolve(collection);
+    int shardIndex = 0;
+    for (Map.Entry<String, Path> shard : shards.entrySet()) {
+      for (int r = 0; r < replicationFactor; r++) {
+        Path dataDir = seedRoot.resolve(shard.getKey() + "_replica" + (r + 1)).resolve("data");
+        linkOrCopy(shard.getValue(), dataDir.resolve("index"));
+        JettySolrRunner node = nodes.get((shardIndex + r) % nodes.size());
+        CollectionAdminRequest.addReplicaToShard(collection, shard.getKey())
+            .setNode(node.getNodeName())
+            .setDataDir(dataDir.toAbsolutePath().toString())
+            .process(client);
+      }
+      shardIndex++;
+    }
+    if (!ClusterStateUtil.waitForAllActiveAndLiveReplicas(client.getZkStateReader(), collection, (int) TIMEOUT_MS)) {
+      throw new IllegalStateException("Seeded collection " + collection + " did not become active");
+    }
+  }
+
+  /**
+   * Hard commit {@code collection} and copy the latest commit point of every shard leader into
+   * {@code targetDir/<shard>}; the leaders' cores are read in-process, so this is not supported with
+   * forked nodes
+   */
+  static void capture(MicroSolrCloudCluster cluster, String collection, Path targetDir) throws Exception {
+    CloudSolrClient client = cluster.getSolrClient();
+    client.commit(collection, true, true);
+    DocCollection coll = client.getZkStateReader().getClusterState().getCollection(collection);
+    for (Slice slice : coll.getActiveSlices()) {
+      Replica leader = slice.getLeader();
+      if (leader == null) {
+        throw new IllegalStateException("No leader for " + collection + "/" + slice.getName());
+      }
+      CoreContainer cores = cluster.getReplicaJetty(leader).getCoreContainer();
+      if (cores == null) {
+        throw new IllegalStateException("Capturing a snapshot is not supported with forked nodes");
+      }
+      try (SolrCore core = cores.getCore(leader.getCoreName())) {
+        if (core == null) {
+          throw new IllegalStateException("Core " + leader.getCoreName() + " is not loaded");
+        }
+        copyLatestCommit(core, targetDir.resolve(slice.getName()));
+      }
+    }
+  }
+
+  private static void copyLatestCommit(SolrCore core, Path target) throws IOException {
+    IndexDeletionPolicyWrapper policy = core.getDeletionPolicy();
+    IndexCommit commit = policy.getLatestCommit();
+    if (commit == null) {
+      throw new IllegalStateException("Core " + core.getName() + " has no commit point");
+    }
+    // keep the commit's files from being deleted by merges while we copy them
+    policy.saveCommitPoint(commit.getGeneration());
+    try {
+      Files.createDirectories(target);
+      try (Directory out = FSDirectory.open(target)) {
+        for (String file : commit.getFileNames()) {
+          out.copyFrom(commit.getDirectory(), file, file, IOContext.READONCE);
+        }
+      }
+      log.info("Captured {} files of {} generation {} into {}",
+          commit.getFileNames().size(), core.getName(), commit.getGeneration(), target);
+    } finally {
+      policy.releaseCommitPoint(commit.getGeneration());
+    }
+  }
+
+  static SortedMap<String, Path> shardIndexDirs(Path snapshotDir) throws IOException {
+    boolean backup = Files.exists(snapshotDir.resolve(BACKUP_PROPERTIES));
+    SortedMap<String, Path> shards = new TreeMap<>(Comparator.comparingInt(IndexSnapshots::shardNumber));
+    try (Stream<Path> children = Files.list(snapshotDir)) {
+      children.filter(Files::isDirectory).forEach(dir -> {
+        String name = dir.getFileName().toString();
+        if (backup) {
+          if (!name.startsWith(BACKUP_SHARD_PREFIX)) return;
+          name = name.substring(BACKUP_SHARD_PREFIX.length());
+        } else if (!name.startsWith("shard")) {
+          return;
+        }
+        Path index = dir.resolve("index");
+        shards.put(name, Files.isDirectory(index) ? index : dir);
+      });
+    }
+    if (shards.isEmpty()) {
+      throw new IllegalArgumentException("No shard directories found in " + snapshotDir);
+    }
+    int expected = 1;
+    for (String shard : shards.keySet()) {
+      if (!shard.equals("shard" + expected++)) {
+        throw new IllegalArgumentException("Snapshot shards must be named shard1..shardN, found " + shards.keySet());
+      }
+    }
+    return shards;
+  }
+
+  private static int shardNumber(String shard) {
+    try {
+      return Integer.parseInt(shard.substring("shard".length()));
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("Unexpected shard directory name: " + shard);
+    }
+  }
+
+  /**
+   * Hard-link every file of {@code source} into {@code target}, copying instead when linking is not
+   * possible (different file system, or not supported). Lucene never modifies a written file, so
+   * sharing the inodes with the snapshot is safe.
+   */
+  static void linkOrCopy(Path source, Path target) throws IOException {
+    Files.createDirectories(target);
+    boolean link = true;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(source)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (!Files.isRegularFile(file) || name.equals("write.lock")) continue;
+        Path dest = target.resolve(name);
+        if (link) {
+          try {
+            Files.createLink(dest, file);
+            continue;
+          } catch (UnsupportedOperationException | FileSystemException e) {
+            log.info("Cannot hard-link {} into {}, copying instead: {}", source, target, e.toString());
+            link = false;
+          }
+        }
+        Files.copy(file, dest, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+  }
+}
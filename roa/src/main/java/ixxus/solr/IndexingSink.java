@@ -0,0 +1,423 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.SolrjNamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Indexes a stream of documents into one collection, pulling them from the producer only as fast as
+ * the shard leaders take them, in the manner of a Reactive Streams {@code Subscriber}.
+ * <p>
+ * Documents are routed to their shard on arrival and sent in batches, at most
+ * {@link #withMaxInFlightPerLeader(int)} batches at a time per shard leader. The sink requests as many
+ * documents as fit into the free batch slots plus one buffered batch per shard, and requests more as
+ * batches are acknowledged, so memory stays bounded however fast the producer is. Batches rejected
+ * with 503 or 429, or failing on I/O, are retried with exponential backoff up to a limit; after that
+ * the sink cancels its subscription and {@link #completion()} fails.
+ * <p>
+ * There is no Reactive Streams dependency here, so {@link Subscription} mirrors its namesake and any
+ * publisher can be adapted in a few lines; {@link #consume(Iterator)} subscribes to an iterator.
+ */
+public class IndexingSink implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * The producer's side of the link, as in Reactive Streams
+   */
+  public interface Subscription {
+    /**
+     * Allow the producer to send {@code n} more documents through {@link #onNext(SolrInputDocument)}
+     */
+    void request(long n);
+
+    void cancel();
+  }
+
+  private final CloudSolrClient client;
+  private final String collection;
+  private int batchSize = 500;
+  private int maxInFlightPerLeader = 2;
+  private long lingerMs = 200;
+  private long initialBackoffMs = 100;
+  private long maxBackoffMs = 10000;
+  private int maxRetries = 8;
+
+  private final Map<String, List<SolrInputDocument>> buffers = new HashMap<>();
+  private final Map<String, Integer> inFlight = new HashMap<>();
+  private final CompletableFuture<Long> completion = new CompletableFuture<>();
+  private ExecutorService senders;
+  private ScheduledExecutorService scheduler;
+  private Subscription subscription;
+  private DocCollection docCollection;
+  // documents requested from the producer and not received yet
+  private long demand;
+  private int queued;
+  private int batchesInFlight;
+  private long indexed;
+  private long retries;
+  private long startNanos;
+  private boolean producerDone;
+
+  /**
+   * @param cluster    the cluster to index into
+   * @param collection the collection to index into
+   */
+  public IndexingSink(MicroSolrCloudCluster cluster, String collection) {
+    this.client = cluster.getSolrClient();
+    this.collection = Objects.requireNonNull(collection);
+  }
+
+  public IndexingSink withBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+    return this;
+  }
+
+  /**
+   * How many batches may be outstanding at each shard leader, 2 by default
+   */
+  public IndexingSink withMaxInFlightPerLeader(int maxInFlightPerLeader) {
+    this.maxInFlightPerLeader = maxInFlightPerLeader;
+    return this;
+  }
+
+  /**
+   * How long a partial batch waits for more documents before it is sent anyway
+   */
+  public IndexingSink withLingerMs(long lingerMs) {
+    this.lingerMs = lingerMs;
+    return this;
+  }
+
+  /**
+   * Retry a failed batch after {@code initialMs}, doubling up to {@code maxMs}, at most {@code maxRetries} times
+   */
+  public IndexingSink withBackoff(long initialMs, long maxMs, int maxRetries) {
+    this.initialBackoffMs = initialMs;
+    this.maxBackoffMs = maxMs;
+    this.maxRetries = maxRetries;
+    return this;
+  }
+
+  /**
+   * Start consuming from {@code subscription}: requests the first documents right away
+   */
+  public void onSubscribe(Subscription subscription) {
+    long initialDemand;
+    synchronized (this) {
+      if (this.subscription != null) {
+        subscription.cancel();
+        return;
+      }
+      this.subscription = Objects.requireNonNull(subscription);
+      docCollection = client.getZkStateReader().getClusterState().getCollection(collection);
+      int shards = docCollection.getActiveSlices().size();
+      senders = ExecutorUtil.newMDCAwareCachedThreadPool(new SolrjNamedThreadFactory("indexing-sink"));
+      scheduler = Executors.newSingleThreadScheduledExecutor(new SolrjNamedThreadFactory("indexing-sink-timer"));
+      scheduler.scheduleWithFixedDelay(this::flushLingering, lingerMs, lingerMs, TimeUnit.MILLISECONDS);
+      startNanos = System.nanoTime();
+      initialDemand = (long) shards * (maxInFlightPerLeader + 1) * batchSize;
+      demand = initialDemand;
+    }
+    subscription.request(initialDemand);
+  }
+
+  /**
+   * Accept one document; the producer must not send more than it was asked for
+   */
+  public void onNext(SolrInputDocument doc) {
+    synchronized (this) {
+      if (completion.isDone()) return;
+      if (demand <= 0) {
+        throw new IllegalStateException("onNext without demand");
+      }
+      demand--;
+      String shard = shardOf(doc);
+      List<SolrInputDocument> buffer = buffers.computeIfAbsent(shard, s -> new ArrayList<>(batchSize));
+      buffer.add(doc);
+      queued++;
+      if (buffer.size() >= batchSize) {
+        sendIfPossible(shard, false);
+      }
+    }
+  }
+
+  /**
+   * The producer failed: stop and fail {@link #completion()}, abandoning the buffered documents
+   */
+  public void onError(Throwable t) {
+    fail(t);
+  }
+
+  /**
+   * The producer is done: send what is buffered and complete once everything is acknowledged
+   */
+  public synchronized void onComplete() {
+    producerDone = true;
+    for (String shard : new ArrayList<>(buffers.keySet())) {
+      sendIfPossible(shard, true);
+    }
+    completeIfDone();
+  }
+
+  /**
+   * Subscribe to an iterator, pulling documents from it on the threads that grant demand
+   *
+   * @return {@link #completion()}
+   */
+  public CompletableFuture<Long> consume(Iterator<SolrInputDocument> docs) {
+    onSubscribe(new IteratorSubscription(docs));
+    return completion;
+  }
+
+  /**
+   * @return completes with the number of documents indexed once the producer has completed and all
+   * batches are acknowledged, or fails with the first unrecoverable error
+   */
+  public CompletableFuture<Long> completion() {
+    return completion;
+  }
+
+  private String shardOf(SolrInputDocument doc) {
+    Object id = doc.getFieldValue("id");
+    Slice slice = docCollection.getRouter().getTargetSlice(id == null ? null : id.toString(), doc, null, null, docCollection);
+    return slice.getName();
+  }
+
+  private void sendIfPossible(String shard, boolean partial) {
+    List<SolrInputDocument> buffer = buffers.get(shard);
+    while (buffer != null && !buffer.isEmpty() && (partial || buffer.size() >= batchSize)
+        && inFlight.getOrDefault(shard, 0) < maxInFlightPerLeader) {
+      int n = Math.min(batchSize, buffer.size());
+      List<SolrInputDocument> batch = new ArrayList<>(buffer.subList(0, n));
+      buffer.subList(0, n).clear();
+      queued -= n;
+      inFlight.merge(shard, 1, Integer::sum);
+      batchesInFlight++;
+      senders.execute(() -> send(shard, batch, 0));
+    }
+  }
+
+  private void flushLingering() {
+    synchronized (this) {
+      if (completion.isDone()) return;
+      for (String shard : new ArrayList<>(buffers.keySet())) {
+        sendIfPossible(shard, true);
+      }
+    }
+  }
+
+  private void send(String shard, List<SolrInputDocument> batch, int attempt) {
+    try {
+      UpdateRequest request = new UpdateRequest();
+      request.add(batch);
+      request.process(client, collection);
+    } catch (Exception e) {
+      if (retryable(e) && attempt < maxRetries && !completion.isDone()) {
+        long delay = Math.min(maxBackoffMs, initialBackoffMs << Math.min(attempt, 30));
+        // equal jitter, half fixed and half random, so that retries of several batches do not arrive together
+        delay = ThreadLocalRandom.current().nextLong(delay / 2, delay + 1);
+        synchronized (this) {
+          retries++;
+        }
+        log.debug("Batch of {} for {} failed, retrying in {} ms: {}", batch.size(), shard, delay, e.toString());
+        try {
+          scheduler.schedule(() -> senders.execute(() -> send(shard, batch, attempt + 1)), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException closed) {
+          fail(e);
+        }
+        return;
+      }
+      fail(e);
+      return;
+    }
+    acknowledged(shard, batch.size());
+  }
+
+  /**
+   * CloudSolrClient reports a routed update as a {@link CloudSolrClient.RouteException} holding the
+   * failure of each shard leader, under a code of its own (429 has no {@link SolrException.ErrorCode}
+   * and turns into 0), so the batch is retried only if every leader's failure is; wrapped causes are
+   * classified the same way
+   */
+  private static boolean retryable(Throwable e) {
+    if (e instanceof CloudSolrClient.RouteException) {
+      NamedList<Throwable> throwables = ((CloudSolrClient.RouteException) e).getThrowables();
+      if (throwables != null && throwables.size() > 0) {
+        for (int i = 0; i < throwables.size(); i++) {
+          if (!retryable(throwables.getVal(i))) return false;
+        }
+        return true;
+      }
+    }
+    if (e instanceof IOException) return true;
+    if (e instanceof SolrException) {
+      int code = ((SolrException) e).code();
+      if (code == 503 || code == 429) return true;
+    }
+    Throwable cause = e.getCause();
+    if (cause != null && cause != e) return retryable(cause);
+    // e.g. no live server to send to
+    return e instanceof SolrServerException;
+  }
+
+  private void acknowledged(String shard, int count) {
+    Subscription s;
+    synchronized (this) {
+      // failed or closed: the executors are shut down, and nothing more is sent or requested
+      if (completion.isDone()) return;
+      indexed += count;
+      batchesInFlight--;
+      inFlight.merge(shard, -1, Integer::sum);
+      sendIfPossible(shard, producerDone);
+      if (completeIfDone() || producerDone) return;
+      demand += count;
+      s = subscription;
+    }
+    // outside the lock, a synchronous producer calls onNext from request
+    s.request(count);
+  }
+
+  private boolean completeIfDone() {
+    if (producerDone && queued == 0 && batchesInFlight == 0) {
+      shutdownExecutors();
+      completion.complete(indexed);
+      log.info("Indexed {} documents into {} in {} ms with {} retries", indexed, collection,
+          MicroSolrCloudCluster.elapsedMs(startNanos), retries);
+      return true;
+    }
+    return false;
+  }
+
+  private void fail(Throwable t) {
+    Subscription s;
+    synchronized (this) {
+      if (completion.isDone()) return;
+      completion.completeExceptionally(t);
+      shutdownExecutors();
+      s = subscription;
+    }
+    if (!(t instanceof CancellationException)) {
+      log.warn("Indexing into {} failed", collection, t);
+    }
+    if (s != null) s.cancel();
+  }
+
+  private void shutdownExecutors() {
+    if (scheduler != null) scheduler.shutdownNow();
+    if (senders != null) senders.shutdown();
+  }
+
+  /**
+   * @return documents received and not yet sent
+   */
+  public synchronized int getQueueDepth() {
+    return queued;
+  }
+
+  public synchronized int getInFlightBatches() {
+    return batchesInFlight;
+  }
+
+  /**
+   * @return batches outstanding per shard
+   */
+  public synchronized Map<String, Integer> getInFlightByShard() {
+    return new TreeMap<>(inFlight);
+  }
+
+  /**
+   * @return documents requested from the producer and not received yet
+   */
+  public synchronized long getDemand() {
+    return demand;
+  }
+
+  public synchronized long getIndexed() {
+    return indexed;
+  }
+
+  public synchronized long getRetries() {
+    return retries;
+  }
+
+  /**
+   * @return documents acknowledged per second since subscription
+   */
+  public synchronized double getThroughput() {
+    long elapsed = System.nanoTime() - startNanos;
+    return startNanos == 0 || elapsed <= 0 ? 0 : indexed * 1e9 / elapsed;
+  }
+
+  /**
+   * Cancel the subscription and stop sending; fails {@link #completion()} if it has not completed
+   */
+  @Override
+  public void close() {
+    fail(new CancellationException("Indexing sink closed"));
+  }
+
+  /**
+   * Emits an iterator's documents as demand arrives, draining on whichever thread grants it; nested
+   * requests only add demand, so the stack does not grow with the number of batches
+   */
+  private class IteratorSubscription implements Subscription {
+    private final Iterator<SolrInputDocument> docs;
+    private long requested;
+    private boolean draining;
+    private volatile boolean cancelled;
+
+    IteratorSubscription(Iterator<SolrInputDocument> docs) {
+      this.docs = docs;
+    }
+
+    @Override
+    public void request(long n) {
+      synchronized (this) {
+        requested += n;
+        if (draining) return;
+        draining = true;
+      }
+      try {
+        while (!cancelled) {
+          synchronized (this) {
+            if (requested == 0) {
+              draining = false;
+              return;
+            }
+            requested--;
+          }
+          if (!docs.hasNext()) {
+            cancelled = true;
+            onComplete();
+            return;
+          }
+          onNext(docs.next());
+        }
+      } catch (RuntimeException e) {
+        cancelled = true;
+        onError(e);
+      }
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package ixxus.solr;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformReservoir;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe latency recorder for benchmark workloads. Latencies are kept in a uniform reservoir of
+ * bounded size, so percentiles stay cheap to record however long the run; errors are counted apart.
+ */
+public class LatencyStats {
+
+  public static final int DEFAULT_RESERVOIR_SIZE = 65536;
+
+  private final Histogram histogram;
+  private final AtomicLong errors = new AtomicLong();
+
+  public LatencyStats() {
+    this(DEFAULT_RESERVOIR_SIZE);
+  }
+
+  public LatencyStats(int reservoirSize) {
+    this.histogram = new Histogram(new UniformReservoir(reservoirSize));
+  }
+
+  /**
+   * Record one successful operation
+   */
+  public void record(long nanos) {
+    histogram.update(nanos);
+  }
+
+  /**
+   * Record one successful operation that started at {@code startNanos}, as returned by {@link System#nanoTime()}
+   */
+  public void recordSince(long startNanos) {
+    histogram.update(System.nanoTime() - startNanos);
+  }
+
+  public void recordError() {
+    errors.incrementAndGet();
+  }
+
+  public long getCount() {
+    return histogram.getCount();
+  }
+
+  public long getErrors() {
+    return errors.get();
+  }
+
+  /**
+   * @param quantile within [0, 1]
+   * @return the latency at {@code quantile}, in milliseconds
+   */
+  public double percentileMs(double quantile) {
+    return histogram.getSnapshot().getValue(quantile) / 1_000_000.0;
+  }
+
+  public Snapshot getSnapshot() {
+    return histogram.getSnapshot();
+  }
+
+  @Override
+  public String toString() {
+    Snapshot s = histogram.getSnapshot();
+    return String.format(Locale.ROOT, "count=%d errors=%d p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+        histogram.getCount(), errors.get(), s.getMedian() / 1e6, s.getValue(0.9) / 1e6,
+        s.get99thPercentile() / 1e6, s.getMax() / 1e6);
+  }
+}
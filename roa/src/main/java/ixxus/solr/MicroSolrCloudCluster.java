@@ -9,6 +9,7 @@ import org.apache.solr.client.solrj.impl.CloudSolrClient.Builder;
 import org.apache.solr.client.solrj.request.CollectionAdminRequest;
 import org.apache.solr.client.solrj.request.QueryRequest;
 import org.apache.solr.cloud.OverseerCollectionMessageHandler;
+import org.apache.solr.common.cloud.ClusterStateUtil;
 import org.apache.solr.common.cloud.Replica;
 import org.apache.solr.common.cloud.SolrZkClient;
 import org.apache.solr.common.cloud.ZkConfigManager;
@@ -17,6 +18,7 @@ import org.apache.solr.common.params.CollectionParams.CollectionAction;
 import org.apache.solr.common.params.CommonAdminParams;
 import org.apache.solr.common.params.CoreAdminParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.ExecutorUtil;
 import org.apache.solr.common.util.IOUtils;
 import org.apache.solr.common.util.NamedList;
@@ -28,6 +30,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.Filter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
@@ -72,18 +75,76 @@ public class MicroSolrCloudCluster {
       "  \n" +
       "</solr>\n";
 
+  /**
+   * solr.xml of {@link MicroSolrClusterBuilder#withDenseProfile()}: bounded shard handler pools, few update
+   * connections and one core loading thread per node
+   */
+  public static final String DENSE_CLOUD_SOLR_XML = "<solr>\n" +
+      "\n" +
+      "  <str name=\"shareSchema\">${shareSchema:false}</str>\n" +
+      "  <str name=\"configSetBaseDir\">${configSetBaseDir:configsets}</str>\n" +
+      "  <str name=\"coreRootDirectory\">${coreRootDirectory:.}</str>\n" +
+      "  <str name=\"collectionsHandler\">${collectionsHandler:solr.CollectionsHandler}</str>\n" +
+      "  <int name=\"coreLoadThreads\">${coreLoadThreads:1}</int>\n" +
+      "\n" +
+      "  <shardHandlerFactory name=\"shardHandlerFactory\" class=\"HttpShardHandlerFactory\">\n" +
+      "    <str name=\"urlScheme\">${urlScheme:}</str>\n" +
+      "    <int name=\"socketTimeout\">${socketTimeout:90000}</int>\n" +
+      "    <int name=\"connTimeout\">${connTimeout:15000}</int>\n" +
+      "    <int name=\"corePoolSize\">${shardHandler.poolSize:4}</int>\n" +
+      "    <int name=\"maximumPoolSize\">${shardHandler.poolSize:4}</int>\n" +
+      "    <int name=\"sizeOfQueue\">${shardHandler.queueSize:1000}</int>\n" +
+      "    <int name=\"maxConnectionsPerHost\">${shardHandler.maxConnectionsPerHost:4}</int>\n" +
+      "    <int name=\"maxConnections\">${shardHandler.maxConnections:128}</int>\n" +
+      "  </shardHandlerFactory>\n" +
+      "\n" +
+      "  <updateshardhandler>\n" +
+      "    <int name=\"maxUpdateConnections\">${updateShardHandler.maxConnections:128}</int>\n" +
+      "    <int name=\"maxUpdateConnectionsPerHost\">${updateShardHandler.maxConnectionsPerHost:4}</int>\n" +
+      "  </updateshardhandler>\n" +
+      "\n" +
+      "  <solrcloud>\n" +
+      "    <str name=\"host\">127.0.0.1</str>\n" +
+      "    <int name=\"hostPort\">${hostPort:8983}</int>\n" +
+      "    <str name=\"hostContext\">${hostContext:solr}</str>\n" +
+      "    <int name=\"zkClientTimeout\">${solr.zkclienttimeout:30000}</int>\n" +
+      "    <bool name=\"genericCoreNodeNames\">${genericCoreNodeNames:true}</bool>\n" +
+      "    <int name=\"leaderVoteWait\">10000</int>\n" +
+      "    <int name=\"distribUpdateConnTimeout\">${distribUpdateConnTimeout:45000}</int>\n" +
+      "    <int name=\"distribUpdateSoTimeout\">${distribUpdateSoTimeout:340000}</int>\n" +
+      "  </solrcloud>\n" +
+      "  \n" +
+      "</solr>\n";
+
+  /**
+   * Solr nodes read the address of ZooKeeper from the JVM-wide zkHost system property as they start.
+   * Clusters therefore start nodes, and clear the property on shutdown, only while holding this lock,
+   * with the property pointing to their own ZooKeeper; concurrent starts in one JVM wait their turn.
+   */
+  private static final Object ZK_HOST_LOCK = new Object();
+
   private ZkTestServer zkServer; // non-final due to injectChaos()
   private final boolean externalZkServer;
   private final List<JettySolrRunner> jettys = new CopyOnWriteArrayList<>();
   private final Path baseDir;
   private final CloudSolrClient solrClient;
   private final JettyConfig jettyConfig;
+  private final ForkedJettySolrRunner.Options forkOptions;
+  private final Properties nodeProperties;
+  private final NodeFootprint baselineFootprint;
 
   private final ExecutorService executorLauncher = ExecutorUtil.newMDCAwareCachedThreadPool(new SolrjNamedThreadFactory("jetty-launcher"));
   private final ExecutorService executorCloser = ExecutorUtil.newMDCAwareCachedThreadPool(new SolrjNamedThreadFactory("jetty-closer"));
 
   private final AtomicInteger nodeIds = new AtomicInteger();
 
+  // parent of one thread group per node, so threads can be attributed to the node that created them
+  private final ThreadGroup nodeThreads = new ThreadGroup("solr-nodes");
+  private final Map<ThreadGroup, JettySolrRunner> nodeThreadGroups = new ConcurrentHashMap<>();
+
+  // background helpers (collectors, probes, ...) that must not outlive the cluster
+  private final List<Closeable> attachments = new CopyOnWriteArrayList<>();
+
   /**
    * Create a MicroSolrCloudCluster with default solr.xml
    *
@@ -181,10 +242,49 @@ public class MicroSolrCloudCluster {
    */
   public MicroSolrCloudCluster(int numServers, Path baseDir, String solrXml, JettyConfig jettyConfig,
                                ZkTestServer zkTestServer, Optional<String> securityJson) throws Exception {
+    this(numServers, baseDir, solrXml, jettyConfig, zkTestServer, securityJson, null);
+  }
+
+  /**
+   * Create a MicroSolrCloudCluster whose nodes may each run in a forked JVM
+   *
+   * @param numServers   number of Solr servers to start
+   * @param baseDir      base directory that the mini cluster should be run from
+   * @param solrXml      solr.xml file to be uploaded to ZooKeeper
+   * @param jettyConfig  Jetty configuration
+   * @param zkTestServer ZkTestServer to use.  If null, one will be created
+   * @param securityJson A string representation of security.json file (optional).
+   * @param forkOptions  JVM settings to fork every node with, or null to run the nodes in this JVM
+   * @throws Exception if there was an error starting the cluster
+   */
+  public MicroSolrCloudCluster(int numServers, Path baseDir, String solrXml, JettyConfig jettyConfig,
+                               ZkTestServer zkTestServer, Optional<String> securityJson,
+                               ForkedJettySolrRunner.Options forkOptions) throws Exception {
+    this(numServers, baseDir, solrXml, jettyConfig, zkTestServer, securityJson, forkOptions, new Properties());
+  }
+
+  /**
+   * Create a MicroSolrCloudCluster whose nodes may each run in a forked JVM, with extra node properties
+   *
+   * @param numServers     number of Solr servers to start
+   * @param baseDir        base directory that the mini cluster should be run from
+   * @param solrXml        solr.xml file to be uploaded to ZooKeeper
+   * @param jettyConfig    Jetty configuration
+   * @param zkTestServer   ZkTestServer to use.  If null, one will be created
+   * @param securityJson   A string representation of security.json file (optional).
+   * @param forkOptions    JVM settings to fork every node with, or null to run the nodes in this JVM
+   * @param nodeProperties properties every node substitutes into solr.xml and into its cores' configs
+   * @throws Exception if there was an error starting the cluster
+   */
+  public MicroSolrCloudCluster(int numServers, Path baseDir, String solrXml, JettyConfig jettyConfig,
+                               ZkTestServer zkTestServer, Optional<String> securityJson,
+                               ForkedJettySolrRunner.Options forkOptions, Properties nodeProperties) throws Exception {
 
     Objects.requireNonNull(securityJson);
     this.baseDir = Objects.requireNonNull(baseDir);
     this.jettyConfig = Objects.requireNonNull(jettyConfig);
+    this.forkOptions = forkOptions;
+    this.nodeProperties = Objects.requireNonNull(nodeProperties);
 
     log.info("Starting cluster of {} servers in {}", numServers, baseDir);
 
@@ -208,15 +308,15 @@ public class MicroSolrCloudCluster {
       }
     }
 
-    // tell solr to look in zookeeper for solr.xml
-    System.setProperty("zkHost", zkServer.getZkAddress());
+    // forked nodes cost this JVM nothing worth measuring
+    baselineFootprint = forkOptions == null ? NodeFootprint.baseline() : null;
 
     List<Callable<JettySolrRunner>> startups = new ArrayList<>(numServers);
     for (int i = 0; i < numServers; ++i) {
-      startups.add(() -> startJettySolrRunner(newNodeName(), jettyConfig.context, jettyConfig));
+      startups.add(() -> launchJettySolrRunner(newNodeName(), jettyConfig.context, jettyConfig));
     }
 
-    Collection<Future<JettySolrRunner>> futures = executorLauncher.invokeAll(startups);
+    Collection<Future<JettySolrRunner>> futures = withZkHost(() -> executorLauncher.invokeAll(startups));
     Exception startupError = checkForExceptions("Error starting up MicroSolrCloudCluster", futures);
     if (startupError != null) {
       try {
@@ -334,7 +434,8 @@ public class MicroSolrCloudCluster {
   }
 
   /**
-   * Start a new Solr instance on a particular servlet context
+   * Start a new Solr instance on a particular servlet context, in a forked JVM if the cluster was
+   * created with fork options
    *
    * @param name        the instance name
    * @param hostContext the context to run on
@@ -342,15 +443,70 @@ public class MicroSolrCloudCluster {
    * @return a JettySolrRunner
    */
   public JettySolrRunner startJettySolrRunner(String name, String hostContext, JettyConfig config) throws Exception {
+    return withZkHost(() -> launchJettySolrRunner(name, hostContext, config));
+  }
+
+  /**
+   * Start a node; the caller holds {@link #ZK_HOST_LOCK} with zkHost set, see {@link #withZkHost(Callable)}
+   */
+  private JettySolrRunner launchJettySolrRunner(String name, String hostContext, JettyConfig config) throws Exception {
     Path runnerPath = createInstancePath(name);
     String context = getHostContextSuitableForServletContext(hostContext);
     JettyConfig newConfig = JettyConfig.builder(config).setContext(context).build();
-    JettySolrRunner jetty = new JettySolrRunner(runnerPath.toString(), newConfig);
-    jetty.start();
+    Properties properties = new Properties();
+    properties.putAll(nodeProperties);
+    JettySolrRunner jetty = forkOptions != null
+        ? new ForkedJettySolrRunner(runnerPath.toString(), properties, newConfig, forkOptions)
+        : new JettySolrRunner(runnerPath.toString(), properties, newConfig);
+    ThreadGroup group = new ThreadGroup(nodeThreads, name);
+    nodeThreadGroups.put(group, jetty);
+    runInThreadGroup(group, jetty::start);
     jettys.add(jetty);
     return jetty;
   }
 
+  private interface Startup {
+    void start() throws Exception;
+  }
+
+  /**
+   * Run a node's startup on a thread of the node's own thread group. Jetty, Solr and ZooKeeper client
+   * threads the node creates then inherit that group, and so do the threads they create in turn,
+   * which attributes them to the node, see {@link NodeResourceAccounting}.
+   */
+  private static void runInThreadGroup(ThreadGroup group, Startup startup) throws Exception {
+    Throwable[] error = new Throwable[1];
+    Thread thread = new Thread(group, () -> {
+      try {
+        startup.start();
+      } catch (Throwable t) {
+        // errors too, which would otherwise only reach the group's uncaught exception handler
+        error[0] = t;
+      }
+    }, group.getName() + "-startup");
+    thread.start();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      // do not leave a startup running that nobody waits for
+      thread.interrupt();
+      throw e;
+    }
+    if (error[0] instanceof Error) {
+      throw (Error) error[0];
+    }
+    if (error[0] != null) {
+      throw (Exception) error[0];
+    }
+  }
+
+  /**
+   * @return the thread group of every node started by this cluster, in-process or forked
+   */
+  Map<ThreadGroup, JettySolrRunner> getNodeThreadGroups() {
+    return Collections.unmodifiableMap(nodeThreadGroups);
+  }
+
   /**
    * Start a new Solr instance, using the default config
    *
@@ -381,16 +537,148 @@ public class MicroSolrCloudCluster {
    * @throws Exception on error
    */
   public JettySolrRunner startJettySolrRunner(JettySolrRunner jetty) throws Exception {
-    jetty.start(false);
+    ThreadGroup group = null;
+    for (Map.Entry<ThreadGroup, JettySolrRunner> entry : nodeThreadGroups.entrySet()) {
+      if (entry.getValue() == jetty) group = entry.getKey();
+    }
+    if (group == null) {
+      group = new ThreadGroup(nodeThreads, newNodeName());
+      nodeThreadGroups.put(group, jetty);
+    }
+    ThreadGroup nodeGroup = group;
+    withZkHost(() -> {
+      runInThreadGroup(nodeGroup, () -> jetty.start(false));
+      return jetty;
+    });
     jettys.add(jetty);
     return jetty;
   }
 
+  /**
+   * Run {@code action}, which starts nodes of this cluster, holding {@link #ZK_HOST_LOCK} with zkHost
+   * pointing to this cluster's ZooKeeper
+   */
+  private <T> T withZkHost(Callable<T> action) throws Exception {
+    synchronized (ZK_HOST_LOCK) {
+      // tell solr to look in zookeeper for solr.xml
+      System.setProperty("zkHost", zkServer.getZkAddress());
+      return action.call();
+    }
+  }
+
   protected JettySolrRunner stopJettySolrRunner(JettySolrRunner jetty) throws Exception {
     jetty.stop();
     return jetty;
   }
 
+  /**
+   * Start {@code count} new nodes in parallel and rebalance the replicas of all collections onto them
+   *
+   * @param count              the number of nodes to add
+   * @param maxConcurrentMoves the maximum number of replica moves in flight
+   * @return timings and the amount of data moved
+   */
+  public ScalingReport addNodes(int count, int maxConcurrentMoves) throws Exception {
+    ScalingReport report = new ScalingReport();
+    long start = System.nanoTime();
+
+    List<Callable<JettySolrRunner>> startups = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      startups.add(() -> launchJettySolrRunner(newNodeName(), jettyConfig.context, jettyConfig));
+    }
+    List<Future<JettySolrRunner>> futures = withZkHost(() -> executorLauncher.invokeAll(startups));
+    Exception startupError = checkForExceptions("Error adding nodes to MicroSolrCloudCluster", futures);
+    if (startupError != null) {
+      throw startupError;
+    }
+    for (Future<JettySolrRunner> future : futures) {
+      report.nodes.add(future.get().getNodeName());
+    }
+    waitForAllNodes(60);
+    report.nodesMs = elapsedMs(start);
+
+    rebalance(Collections.emptySet(), maxConcurrentMoves, report);
+    report.totalMs = elapsedMs(start);
+    log.info("Added nodes: {}", report);
+    return report;
+  }
+
+  /**
+   * Move all replicas off the last {@code count} nodes, then stop those nodes in parallel
+   *
+   * @param count              the number of nodes to remove
+   * @param maxConcurrentMoves the maximum number of replica moves in flight
+   * @return timings and the amount of data moved
+   */
+  public ScalingReport removeNodes(int count, int maxConcurrentMoves) throws Exception {
+    if (count >= jettys.size()) {
+      throw new IllegalArgumentException("Cannot remove " + count + " of " + jettys.size() + " nodes");
+    }
+    ScalingReport report = new ScalingReport();
+    long start = System.nanoTime();
+
+    List<JettySolrRunner> leaving = new ArrayList<>(jettys.subList(jettys.size() - count, jettys.size()));
+    Set<String> drain = new HashSet<>();
+    for (JettySolrRunner jetty : leaving) {
+      drain.add(jetty.getNodeName());
+      report.nodes.add(jetty.getNodeName());
+    }
+    rebalance(drain, maxConcurrentMoves, report);
+
+    long stopStart = System.nanoTime();
+    List<Callable<JettySolrRunner>> shutdowns = new ArrayList<>(count);
+    for (JettySolrRunner jetty : leaving) {
+      jettys.remove(jetty);
+      shutdowns.add(() -> stopJettySolrRunner(jetty));
+    }
+    Exception shutdownError = checkForExceptions("Error removing nodes from MicroSolrCloudCluster",
+        executorCloser.invokeAll(shutdowns));
+    if (shutdownError != null) {
+      throw shutdownError;
+    }
+    waitForAllNodes(60);
+    report.nodesMs = elapsedMs(stopStart);
+    report.totalMs = elapsedMs(start);
+    log.info("Removed nodes: {}", report);
+    return report;
+  }
+
+  private void rebalance(Set<String> drain, int maxConcurrentMoves, ScalingReport report) throws Exception {
+    long start = System.nanoTime();
+    ZkStateReader reader = solrClient.getZkStateReader();
+    Set<String> targets = new HashSet<>();
+    for (JettySolrRunner jetty : jettys) {
+      if (!drain.contains(jetty.getNodeName())) targets.add(jetty.getNodeName());
+    }
+    ReplicaRebalancer rebalancer = new ReplicaRebalancer(this, maxConcurrentMoves, TimeUnit.MINUTES.toMillis(5));
+    rebalancer.execute(ReplicaRebalancer.plan(reader.getClusterState(), targets, drain), report);
+    if (!ClusterStateUtil.waitForAllActiveAndLiveReplicas(reader, (int) TimeUnit.MINUTES.toMillis(5))) {
+      throw new IllegalStateException("Replicas did not all become active after rebalancing");
+    }
+    report.rebalanceMs = elapsedMs(start);
+  }
+
+  static long elapsedMs(long startNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Create {@code count} collections named {@code prefix0}, {@code prefix1}, ... concurrently with async
+   * CREATE requests, each placed explicitly on the live nodes by rotation, with at most
+   * {@code maxInFlight} requests outstanding at a time
+   *
+   * @return throughput, Overseer queue latencies, ZooKeeper growth and cluster state visibility of the run
+   */
+  public BulkCreateReport createCollections(String prefix, int count, String configName, int numShards,
+                                            int replicationFactor, int maxInFlight) throws Exception {
+    List<String> names = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      names.add(prefix + i);
+    }
+    return new BulkCollectionCreator(this, maxInFlight, TimeUnit.MINUTES.toMillis(30))
+        .create(names, configName, numShards, replicationFactor);
+  }
+
   /**
    * @deprecated Use {@link #uploadConfigSet(Path, String)}
    */
@@ -413,6 +701,16 @@ public class MicroSolrCloudCluster {
     }
   }
 
+  /**
+   * Upload a config set held in memory, in batched multi requests
+   *
+   * @param configSet  the config files, e.g. from {@link ConfigSet#fromClasspath(String)}
+   * @param configName the name to give the configset
+   */
+  public void uploadConfigSet(ConfigSet configSet, String configName) throws Exception {
+    configSet.upload(getZkClient(), configName);
+  }
+
   public void deleteAllCollections() throws Exception {
     try (ZkStateReader reader = new ZkStateReader(solrClient.getZkStateReader().getZkClient())) {
       reader.createClusterStateWatchersAndUpdate();
@@ -422,6 +720,32 @@ public class MicroSolrCloudCluster {
     }
   }
 
+  /**
+   * Create a collection whose replicas start from a prebuilt index instead of being indexed over HTTP.
+   * The snapshot's per-shard segments are hard-linked (or copied, across file systems) into each
+   * replica's data dir before the core is loaded.
+   *
+   * @param name              the collection name
+   * @param configName        the config set to use
+   * @param snapshotDir       a directory written by {@link #snapshotCollection(String, Path)}, or a Solr backup
+   * @param replicationFactor the number of replicas per shard
+   */
+  public void createCollectionFromSnapshot(String name, String configName, Path snapshotDir,
+                                           int replicationFactor) throws Exception {
+    IndexSnapshots.seed(this, name, configName, snapshotDir, replicationFactor);
+  }
+
+  /**
+   * Hard commit a collection and copy the latest commit of every shard leader to {@code targetDir},
+   * in the layout understood by {@link #createCollectionFromSnapshot(String, String, Path, int)}
+   *
+   * @param collection the collection to capture
+   * @param targetDir  the directory to write one sub directory per shard into
+   */
+  public void snapshotCollection(String collection, Path targetDir) throws Exception {
+    IndexSnapshots.capture(this, collection, targetDir);
+  }
+
   /**
    * @deprecated Use {@link CollectionAdminRequest#createCollection(String, String, int, int)}
    */
@@ -483,6 +807,10 @@ public class MicroSolrCloudCluster {
    */
   public void shutdown() throws Exception {
     try {
+      for (Closeable attachment : attachments) {
+        IOUtils.closeQuietly(attachment);
+      }
+      attachments.clear();
 
       IOUtils.closeQuietly(solrClient);
       // accept no new tasks
@@ -505,7 +833,12 @@ public class MicroSolrCloudCluster {
           zkServer.shutdown();
         }
       } finally {
-        System.clearProperty("zkHost");
+        synchronized (ZK_HOST_LOCK) {
+          // another cluster may have started since and set its own
+          if (zkServer.getZkAddress().equals(System.getProperty("zkHost"))) {
+            System.clearProperty("zkHost");
+          }
+        }
       }
     }
   }
@@ -518,6 +851,28 @@ public class MicroSolrCloudCluster {
     return solrClient;
   }
 
+  /**
+   * Measure the heap and threads of this JVM now, and log what each in-process node costs compared to
+   * before the cluster started its nodes, cores included. Requests a full GC.
+   *
+   * @return the measurement
+   */
+  public NodeFootprint measureFootprint() {
+    if (baselineFootprint == null) {
+      throw new IllegalStateException("The nodes of this cluster run in forked JVMs");
+    }
+    NodeFootprint footprint = NodeFootprint.measure(this);
+    log.info("Node footprint: {}", footprint.describe(baselineFootprint));
+    return footprint;
+  }
+
+  /**
+   * @return the JVM's heap and threads measured before the cluster started its nodes
+   */
+  public NodeFootprint getBaselineFootprint() {
+    return baselineFootprint;
+  }
+
   public SolrZkClient getZkClient() {
     return solrClient.getZkStateReader().getZkClient();
   }
@@ -552,6 +907,164 @@ public class MicroSolrCloudCluster {
     return ok ? null : parsed;
   }
 
+  /**
+   * Start sampling per-core request, cache, indexing and commit statistics in the background.
+   * The collector is stopped when the cluster shuts down.
+   *
+   * @param capacity   the number of per-core samples retained
+   * @param intervalMs the sampling interval in milliseconds
+   * @return the running collector
+   */
+  public SolrMetricsCollector startMetricsCollector(int capacity, long intervalMs) {
+    return attach(new SolrMetricsCollector(this, capacity, intervalMs).start());
+  }
+
+  /**
+   * Open a reader over every document of {@code collection} matching {@code query}, reading all shard
+   * leaders in parallel through /export, or cursorMark when a field lacks docValues. The caller must
+   * close the reader.
+   *
+   * @param fields the fields to return; null returns all stored fields and forces cursorMark paging
+   */
+  public ExportReader exportDocuments(String collection, String query, List<String> fields) {
+    ExportReader reader = new ExportReader(this, collection).withQuery(query);
+    if (fields != null) reader.withFields(fields);
+    return reader.open();
+  }
+
+  /**
+   * Create a sink that indexes into {@code collection} as fast as its shard leaders take documents,
+   * requesting them from the producer by demand. Subscribe it to a producer, or have it
+   * {@linkplain IndexingSink#consume(Iterator) consume} an iterator. The sink is cancelled when the
+   * cluster shuts down, if it has not completed before.
+   */
+  public IndexingSink indexingSink(String collection) {
+    return attach(new IndexingSink(this, collection));
+  }
+
+  /**
+   * Create an analyzer that breaks the latency of distributed queries against {@code collection} down
+   * by shard, replica and phase
+   *
+   * @param capacity the number of executions retained for the tail analysis
+   */
+  public QueryFanoutAnalyzer queryFanoutAnalyzer(String collection, int capacity) {
+    return new QueryFanoutAnalyzer(this, collection, capacity);
+  }
+
+  /**
+   * Replay the requests of a {@link RequestCaptureLog} against the running nodes, round-robin, and
+   * wait for all responses
+   *
+   * @param logFile a log written by a cluster built {@linkplain MicroSolrClusterBuilder#withRequestCapture(Path) with request capture}
+   * @param speed   1 for the original timing, 2 for twice as fast, {@link Double#POSITIVE_INFINITY} for no delays
+   */
+  public RequestReplayer.Report replayRequests(Path logFile, double speed) throws Exception {
+    return new RequestReplayer(this).withSpeed(speed).replay(logFile);
+  }
+
+  /**
+   * Start recording searcher warm-up timings on every core, replaying {@code warmingQueries} against
+   * each new searcher. The probe is stopped when the cluster shuts down.
+   *
+   * @param capacity       the number of warm-up events retained
+   * @param warmingQueries queries to run on every new searcher before it is registered, may be empty
+   * @return the running probe
+   */
+  public SearcherWarmupProbe startWarmupProbe(int capacity, List<? extends SolrParams> warmingQueries) {
+    return attach(new SearcherWarmupProbe(this, capacity).withWarmingQueries(warmingQueries).start(250));
+  }
+
+  /**
+   * Start measuring the lag from update acknowledgement to visibility on every replica of {@code collection}.
+   * The probe is stopped when the cluster shuts down, if it was not closed before.
+   *
+   * @param collection       the collection to probe
+   * @param markerIntervalMs how often to write a marker document to every shard
+   * @return the running probe
+   */
+  public NrtVisibilityProbe startNrtProbe(String collection, long markerIntervalMs) {
+    return attach(new NrtVisibilityProbe(this, collection, markerIntervalMs).start());
+  }
+
+  /**
+   * Start tracking Overseer queue depths and item latencies in the embedded ZooKeeper. The monitor is
+   * stopped when the cluster shuts down.
+   *
+   * @param capacity   the number of depth samples and item latencies retained
+   * @param intervalMs the depth sampling interval in milliseconds
+   * @return the running monitor
+   */
+  public OverseerQueueMonitor startOverseerMonitor(int capacity, long intervalMs) {
+    return attach(new OverseerQueueMonitor(zkServer, zkChroot(), capacity, intervalMs).start());
+  }
+
+  /**
+   * Start sampling the watches, ephemeral nodes and outstanding requests of every ZooKeeper session,
+   * logging sessions whose counts only grow. The tracker is stopped when the cluster shuts down.
+   *
+   * @param capacity   the number of samples retained per session
+   * @param intervalMs the sampling interval in milliseconds
+   * @return the running tracker
+   */
+  public ZkSessionTracker startZkSessionTracker(int capacity, long intervalMs) {
+    return attach(new ZkSessionTracker(this, capacity, intervalMs).start());
+  }
+
+  /**
+   * Start sampling thread pools, file descriptors, direct buffers, heap and the ZooKeeper data dir
+   * to spot slow leaks. The tracker is stopped when the cluster shuts down.
+   *
+   * @param capacity   the number of samples retained
+   * @param intervalMs the sampling interval in milliseconds
+   * @return the running tracker
+   */
+  public ResourceLeakTracker startResourceLeakTracker(int capacity, long intervalMs) {
+    return attach(new ResourceLeakTracker(this, capacity, intervalMs).start());
+  }
+
+  /**
+   * Start attributing the CPU time and allocation of this JVM's threads to the in-process nodes. The
+   * accounting is stopped when the cluster shuts down.
+   *
+   * @param capacity   the number of samples retained
+   * @param intervalMs the sampling interval in milliseconds
+   * @return the running accounting
+   */
+  public NodeResourceAccounting startNodeResourceAccounting(int capacity, long intervalMs) {
+    return attach(new NodeResourceAccounting(this, capacity, intervalMs).start());
+  }
+
+  /**
+   * Create an empty simulated cluster state under its own chroot of the embedded ZooKeeper, for
+   * ZkStateReader scaling tests. The simulated state is removed when the cluster shuts down.
+   *
+   * @param chroot the chroot to simulate under, e.g. {@code /sim}
+   * @return the simulator
+   */
+  public ClusterStateSimulator simulateClusterState(String chroot) throws Exception {
+    if (chroot.equals(zkChroot())) {
+      throw new IllegalArgumentException("Cannot simulate a cluster state in the chroot of the real cluster: " + chroot);
+    }
+    return attach(new ClusterStateSimulator(zkServer, chroot));
+  }
+
+  /**
+   * @return the chroot Solr uses in the embedded ZooKeeper, e.g. {@code /solr}
+   */
+  String zkChroot() {
+    String address = zkServer.getZkAddress();
+    return address.substring(address.indexOf('/'));
+  }
+
+  /**
+   * Register a helper to be closed when the cluster shuts down
+   */
+  protected <T extends Closeable> T attach(T attachment) {
+    attachments.add(attachment);
+    return attachment;
+  }
+
   /**
    * Return the jetty that a particular replica resides on
    */
@@ -1,9 +1,12 @@
 package ixxus.solr;
 
 import org.apache.solr.client.solrj.embedded.JettyConfig;
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
 import org.apache.solr.client.solrj.impl.ZkClientClusterStateProvider;
 import org.apache.solr.common.cloud.ClusterProperties;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
@@ -12,13 +15,34 @@ import java.nio.file.Path;
 import java.util.*;
 
 public class MicroSolrClusterBuilder {
+
+  /**
+   * Core config overrides of {@link #withDenseProfile()}: small caches without autowarming, a small
+   * indexing RAM buffer and few update log version buckets, which otherwise cost ~1 MB per core
+   */
+  public static final Map<String, String> DENSE_CORE_PROPERTIES;
+
+  static {
+    Map<String, String> props = new LinkedHashMap<>();
+    for (String cache : Arrays.asList("filterCache", "queryResultCache", "documentCache")) {
+      props.put("solr." + cache + ".size", "64");
+      props.put("solr." + cache + ".initialSize", "16");
+      props.put("solr." + cache + ".autowarmCount", "0");
+    }
+    props.put("solr.ramBufferSizeMB", "16");
+    props.put("solr.ulog.numVersionBuckets", "256");
+    DENSE_CORE_PROPERTIES = Collections.unmodifiableMap(props);
+  }
+
   private static class Config {
     final String name;
     final Path path;
+    final ConfigSet configSet;
 
-    private Config(String name, Path path) {
+    private Config(String name, Path path, ConfigSet configSet) {
       this.name = name;
       this.path = path;
+      this.configSet = configSet;
     }
   }
 
@@ -27,8 +51,13 @@ public class MicroSolrClusterBuilder {
   private String solrxml = MicroSolrCloudCluster.DEFAULT_CLOUD_SOLR_XML;
   private JettyConfig jettyConfig = buildJettyConfig("/solr");
   private Optional<String> securityJson = Optional.empty();
+  private ForkedJettySolrRunner.Options forkOptions;
+  private Properties nodeProperties = new Properties();
+  private boolean denseProfile;
+  private Path captureLog;
 
   private List<Config> configs = new ArrayList<>();
+  private Map<ConfigSetVariant, String> configVariants = new LinkedHashMap<>();
   private Map<String, String> clusterProperties = new HashMap<>();
   static volatile SSLTestConfig sslConfig;
 
@@ -55,6 +84,80 @@ public class MicroSolrClusterBuilder {
     return this;
   }
 
+  /**
+   * Run every node in a JVM of its own, forked with the given heap and GC settings; ZooKeeper stays
+   * in this JVM. See {@link ForkedJettySolrRunner} for what in-process helpers can then no longer see.
+   */
+  public MicroSolrClusterBuilder withForkedNodes(ForkedJettySolrRunner.Options forkOptions) {
+    this.forkOptions = forkOptions;
+    return this;
+  }
+
+  /**
+   * Set a property every node substitutes into solr.xml; core configs do not see it, set their
+   * properties with a {@link ConfigSetVariant} instead
+   */
+  public MicroSolrClusterBuilder withNodeProperty(String name, String value) {
+    this.nodeProperties.setProperty(name, value);
+    return this;
+  }
+
+  /**
+   * Make every node as small as practical, to pack many nodes into one JVM: {@link
+   * MicroSolrCloudCluster#DENSE_CLOUD_SOLR_XML} bounds the shard handler and update connection pools and
+   * loads cores one at a time, and {@link #DENSE_CORE_PROPERTIES} shrink caches and indexing buffers of
+   * config sets that read them, like the bundled one. The core properties are written as config
+   * overlay user properties into every config set this builder uploads, and so into variants of
+   * them; see {@link #checkDenseProfile(MicroSolrCloudCluster, String)}. Once started, the cluster
+   * logs what each node costs, see {@link MicroSolrCloudCluster#measureFootprint()}.
+   */
+  public MicroSolrClusterBuilder withDenseProfile() {
+    this.solrxml = MicroSolrCloudCluster.DENSE_CLOUD_SOLR_XML;
+    this.denseProfile = true;
+    return this;
+  }
+
+  /**
+   * Check that the in-process cores of {@code collection} were configured with the filterCache size
+   * of {@link #DENSE_CORE_PROPERTIES}
+   *
+   * @return the number of cores checked
+   * @throws IllegalStateException if a core has a different size, or no core is in-process
+   */
+  public static int checkDenseProfile(MicroSolrCloudCluster cluster, String collection) {
+    String expected = DENSE_CORE_PROPERTIES.get("solr.filterCache.size");
+    int checked = 0;
+    for (JettySolrRunner jetty : cluster.getJettySolrRunners()) {
+      CoreContainer cores = jetty.getCoreContainer();
+      if (cores == null || cores.isShutDown()) continue;
+      for (SolrCore core : cores.getCores()) {
+        if (!collection.equals(core.getCoreDescriptor().getCollectionName())) continue;
+        Object size = core.getSolrConfig().filterCacheConfig == null ? null
+            : core.getSolrConfig().filterCacheConfig.toMap(new LinkedHashMap<>()).get("size");
+        if (!expected.equals(String.valueOf(size))) {
+          throw new IllegalStateException("Core " + core.getName() + " has filterCache size " + size
+              + ", the dense profile sets " + expected);
+        }
+        checked++;
+      }
+    }
+    if (checked == 0) {
+      throw new IllegalStateException("No in-process core of " + collection + " to check");
+    }
+    return checked;
+  }
+
+  /**
+   * Record every client request the nodes receive, not those between nodes, into a
+   * {@link RequestCaptureLog} at {@code logFile}, e.g. to replay it later with
+   * {@link MicroSolrCloudCluster#replayRequests(Path, double)}. The log is closed when the cluster
+   * shuts down. Not supported with forked nodes.
+   */
+  public MicroSolrClusterBuilder withRequestCapture(Path logFile) {
+    this.captureLog = logFile.toAbsolutePath();
+    return this;
+  }
+
   /**
    * Use the provided string as solr.xml content
    */
@@ -108,7 +211,52 @@ public class MicroSolrClusterBuilder {
    * @param configPath the path to the config files
    */
   public MicroSolrClusterBuilder addConfig(String configName, Path configPath) {
-    this.configs.add(new Config(configName, configPath));
+    this.configs.add(new Config(configName, configPath, null));
+    return this;
+  }
+
+  /**
+   * Upload a collection config held in memory before tests start, e.g. one read with
+   * {@link ConfigSet#fromClasspath(String)} or {@link ConfigSet#fromZip(java.io.InputStream, String)}
+   *
+   * @param configName the config name
+   * @param configSet  the config files
+   */
+  public MicroSolrClusterBuilder addConfig(String configName, ConfigSet configSet) {
+    this.configs.add(new Config(configName, null, Objects.requireNonNull(configSet)));
+    return this;
+  }
+
+  /**
+   * Upload a collection config straight from a classpath directory, in a jar or not, before tests start
+   *
+   * @param configName   the config name
+   * @param resourcePath the classpath directory holding the config files, e.g.
+   *                     {@code solr/configsets/data_driven_schema_configs/conf}
+   */
+  public MicroSolrClusterBuilder addConfigFromClasspath(String configName, String resourcePath) {
+    return addConfig(configName, ConfigSet.fromClasspath(resourcePath));
+  }
+
+  /**
+   * Install a variant of a config set before tests start. The base config set must have been added
+   * with {@link #addConfig(String, Path)}; the variant is uploaded as {@link ConfigSetVariant#configName(String)}.
+   *
+   * @param baseConfigName the name of the config set the variant applies to
+   * @param variant        the overrides
+   */
+  public MicroSolrClusterBuilder addConfigVariant(String baseConfigName, ConfigSetVariant variant) {
+    this.configVariants.put(variant, baseConfigName);
+    return this;
+  }
+
+  /**
+   * Install several variants of one config set, see {@link #addConfigVariant(String, ConfigSetVariant)}
+   */
+  public MicroSolrClusterBuilder addConfigVariants(String baseConfigName, List<ConfigSetVariant> variants) {
+    for (ConfigSetVariant variant : variants) {
+      addConfigVariant(baseConfigName, variant);
+    }
     return this;
   }
 
@@ -129,11 +277,42 @@ public class MicroSolrClusterBuilder {
    * @throws Exception if an error occurs on startup
    */
   public MicroSolrCloudCluster configure() throws Exception {
-    MicroSolrCloudCluster cluster =
-        new MicroSolrCloudCluster(nodeCount, baseDir, solrxml, jettyConfig, null, securityJson);
+    JettyConfig clusterJettyConfig = jettyConfig;
+    Properties properties = nodeProperties;
+    RequestCaptureLog capture = null;
+    if (captureLog != null) {
+      clusterJettyConfig = JettyConfig.builder(jettyConfig).withFilter(RequestCaptureFilter.class, "*").build();
+      properties = new Properties();
+      properties.putAll(nodeProperties);
+      properties.setProperty(RequestCaptureFilter.LOG_PROPERTY, captureLog.toString());
+      capture = RequestCaptureLog.create(captureLog);
+    }
+    MicroSolrCloudCluster cluster;
+    try {
+      cluster = new MicroSolrCloudCluster(nodeCount, baseDir, solrxml, clusterJettyConfig, null, securityJson, forkOptions, properties);
+    } catch (Exception e) {
+      if (capture != null) capture.close();
+      throw e;
+    }
+    if (capture != null) {
+      cluster.attach(capture);
+    }
+    if (denseProfile && forkOptions == null) {
+      cluster.measureFootprint();
+    }
     CloudSolrClient client = cluster.getSolrClient();
     for (Config config : configs) {
-      ((ZkClientClusterStateProvider) client.getClusterStateProvider()).uploadConfig(config.path, config.name);
+      if (config.configSet != null) {
+        config.configSet.upload(cluster.getZkClient(), config.name);
+      } else {
+        ((ZkClientClusterStateProvider) client.getClusterStateProvider()).uploadConfig(config.path, config.name);
+      }
+      if (denseProfile) {
+        denseVariant().apply(cluster.getZkClient(), config.name);
+      }
+    }
+    for (Map.Entry<ConfigSetVariant, String> variant : configVariants.entrySet()) {
+      variant.getKey().install(cluster.getZkClient(), variant.getValue());
     }
     if (clusterProperties.size() > 0) {
       ClusterProperties props = new ClusterProperties(cluster.getSolrClient().getZkStateReader().getZkClient());
@@ -144,5 +323,11 @@ public class MicroSolrClusterBuilder {
     return cluster;
   }
 
-
+  private static ConfigSetVariant denseVariant() {
+    ConfigSetVariant variant = new ConfigSetVariant("dense");
+    for (Map.Entry<String, String> property : DENSE_CORE_PROPERTIES.entrySet()) {
+      variant.withUserProperty(property.getKey(), property.getValue());
+    }
+    return variant;
+  }
 }
@@ -0,0 +1,86 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
+import org.apache.solr.core.CoreContainer;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * Heap and threads of this JVM at one point in time, with the in-process nodes and cores it ran.
+ * Comparing a measurement against a baseline taken before the nodes started gives the overhead of a
+ * node, and from that how many nodes fit in the maximum heap.
+ */
+public class NodeFootprint {
+
+  public final int nodes;
+  public final int cores;
+  /**
+   * heap in use right after a requested full GC
+   */
+  public final long heapBytes;
+  public final int threads;
+  public final long maxHeapBytes;
+
+  private NodeFootprint(int nodes, int cores) {
+    this.nodes = nodes;
+    this.cores = cores;
+    this.heapBytes = HeapUsage.usedAfterGc();
+    this.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+    this.maxHeapBytes = Runtime.getRuntime().maxMemory();
+  }
+
+  /**
+   * Measure the JVM before any node has started
+   */
+  static NodeFootprint baseline() {
+    return new NodeFootprint(0, 0);
+  }
+
+  /**
+   * Measure the JVM with the in-process nodes of {@code cluster}; forked nodes are not counted
+   */
+  static NodeFootprint measure(MicroSolrCloudCluster cluster) {
+    int nodes = 0;
+    int cores = 0;
+    for (JettySolrRunner jetty : cluster.getJettySolrRunners()) {
+      CoreContainer container = jetty.getCoreContainer();
+      if (container == null || container.isShutDown()) continue;
+      nodes++;
+      cores += container.getCores().size();
+    }
+    return new NodeFootprint(nodes, cores);
+  }
+
+  /**
+   * @return the heap each node added over {@code baseline}, cores included
+   */
+  public long heapPerNode(NodeFootprint baseline) {
+    return nodes == baseline.nodes ? 0 : (heapBytes - baseline.heapBytes) / (nodes - baseline.nodes);
+  }
+
+  /**
+   * @return the threads each node added over {@code baseline}
+   */
+  public int threadsPerNode(NodeFootprint baseline) {
+    return nodes == baseline.nodes ? 0 : (threads - baseline.threads) / (nodes - baseline.nodes);
+  }
+
+  /**
+   * @return how many nodes like the measured ones fit in the maximum heap, on top of {@code baseline}
+   */
+  public long nodesThatFit(NodeFootprint baseline) {
+    long perNode = heapPerNode(baseline);
+    return perNode <= 0 ? Long.MAX_VALUE : (maxHeapBytes - baseline.heapBytes) / perNode;
+  }
+
+  public String describe(NodeFootprint baseline) {
+    return String.format(Locale.ROOT, "%d nodes, %d cores: %d KB heap and %d threads per node, %d nodes fit in %d MB",
+        nodes, cores, heapPerNode(baseline) >> 10, threadsPerNode(baseline), nodesThatFit(baseline), maxHeapBytes >> 20);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.ROOT, "%d nodes, %d cores, %d KB heap, %d threads", nodes, cores, heapBytes >> 10, threads);
+  }
+}
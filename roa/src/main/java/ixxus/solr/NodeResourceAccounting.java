@@ -0,0 +1,240 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
+import org.apache.solr.common.util.SolrjNamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Attributes the CPU time and heap allocation of the threads of this JVM to the in-process nodes of a
+ * {@link MicroSolrCloudCluster}, sampling them periodically.
+ * <p>
+ * A thread belongs to the node whose thread group it is in: the cluster starts every node on a thread
+ * of a group of its own, and threads inherit the group of the thread that creates them, so Jetty's
+ * request threads, the core container's executors and the node's ZooKeeper client threads all end up
+ * in it. Threads of pools shared across nodes are attributed to whichever node created them, and
+ * threads of no node (the test, ZooKeeper server, the cluster's client) count as {@link #OTHER}.
+ * <p>
+ * The JVM only reports cumulative figures per live thread, so what a thread used between its last
+ * sample and its death is lost; short sampling intervals keep that small.
+ */
+public class NodeResourceAccounting implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * Name under which threads that belong to no node are accounted
+   */
+  public static final String OTHER = "other";
+
+  /**
+   * What one node used over one sampling interval, or in total
+   */
+  public static class NodeUsage {
+    public final String node;
+    public long cpuNanos;
+    public long allocatedBytes;
+    public int threads;
+
+    NodeUsage(String node) {
+      this.node = node;
+    }
+  }
+
+  /**
+   * Usage of every node over one sampling interval
+   */
+  public static class Sample {
+    public final long timestamp;
+    public final long intervalMs;
+    public final Map<String, NodeUsage> nodes;
+
+    Sample(long timestamp, long intervalMs, Map<String, NodeUsage> nodes) {
+      this.timestamp = timestamp;
+      this.intervalMs = intervalMs;
+      this.nodes = Collections.unmodifiableMap(nodes);
+    }
+  }
+
+  private final MicroSolrCloudCluster cluster;
+  private final RingBuffer<Sample> samples;
+  private final long intervalMs;
+  private final com.sun.management.ThreadMXBean threadBean;
+  private final Map<String, NodeUsage> totals = new TreeMap<>();
+  // cumulative cpu and allocation of every live thread at the previous sample
+  private Map<Long, long[]> previous = new HashMap<>();
+  private long previousTimestamp;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * @param cluster    the cluster whose nodes to account
+   * @param capacity   the number of samples retained
+   * @param intervalMs the sampling interval in milliseconds
+   */
+  public NodeResourceAccounting(MicroSolrCloudCluster cluster, int capacity, long intervalMs) {
+    this.cluster = Objects.requireNonNull(cluster);
+    this.samples = new RingBuffer<>(capacity);
+    this.intervalMs = intervalMs;
+    if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+      throw new UnsupportedOperationException("This JVM does not report per-thread allocation");
+    }
+    this.threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    if (!threadBean.isThreadCpuTimeSupported() || !threadBean.isThreadAllocatedMemorySupported()) {
+      throw new UnsupportedOperationException("This JVM does not report per-thread CPU time and allocation");
+    }
+    threadBean.setThreadCpuTimeEnabled(true);
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+  }
+
+  /**
+   * Start sampling in the background
+   */
+  public synchronized NodeResourceAccounting start() {
+    if (scheduler != null) {
+      throw new IllegalStateException("Node resource accounting already started");
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(new SolrjNamedThreadFactory("node-accounting"));
+    scheduler.scheduleAtFixedRate(this::sampleQuietly, 0, intervalMs, TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  /**
+   * Stop sampling; the samples collected so far remain available
+   */
+  @Override
+  public synchronized void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  private void sampleQuietly() {
+    try {
+      sample();
+    } catch (Exception e) {
+      log.warn("Error sampling per-node thread usage", e);
+    }
+  }
+
+  /**
+   * Take one sample now. The first sample only establishes the starting point of every thread.
+   */
+  public synchronized void sample() {
+    long now = System.currentTimeMillis();
+    Map<ThreadGroup, JettySolrRunner> groups = cluster.getNodeThreadGroups();
+    Set<Thread> threads = Thread.getAllStackTraces().keySet();
+    long[] ids = new long[threads.size()];
+    String[] owners = new String[threads.size()];
+    int i = 0;
+    for (Thread thread : threads) {
+      ids[i] = thread.getId();
+      owners[i] = owner(thread, groups);
+      i++;
+    }
+    long[] cpu = threadBean.getThreadCpuTime(ids);
+    long[] allocated = threadBean.getThreadAllocatedBytes(ids);
+
+    Map<Long, long[]> current = new HashMap<>();
+    Map<String, NodeUsage> usage = new TreeMap<>();
+    for (i = 0; i < ids.length; i++) {
+      // -1 when the thread died since it was listed
+      if (cpu[i] < 0 || allocated[i] < 0) continue;
+      current.put(ids[i], new long[]{cpu[i], allocated[i]});
+      NodeUsage node = usage.computeIfAbsent(owners[i], NodeUsage::new);
+      node.threads++;
+      long[] before = previous.get(ids[i]);
+      if (before == null && previousTimestamp == 0) continue;
+      // a thread first seen now started within the interval, so all it used falls into it
+      node.cpuNanos += cpu[i] - (before == null ? 0 : before[0]);
+      node.allocatedBytes += allocated[i] - (before == null ? 0 : before[1]);
+    }
+    if (previousTimestamp != 0) {
+      samples.add(new Sample(now, now - previousTimestamp, usage));
+      for (NodeUsage node : usage.values()) {
+        NodeUsage total = totals.computeIfAbsent(node.node, NodeUsage::new);
+        total.cpuNanos += node.cpuNanos;
+        total.allocatedBytes += node.allocatedBytes;
+        total.threads = node.threads;
+      }
+    }
+    previous = current;
+    previousTimestamp = now;
+  }
+
+  private static String owner(Thread thread, Map<ThreadGroup, JettySolrRunner> groups) {
+    for (ThreadGroup group = thread.getThreadGroup(); group != null; group = group.getParent()) {
+      JettySolrRunner jetty = groups.get(group);
+      if (jetty != null) {
+        String nodeName = jetty.isRunning() ? jetty.getNodeName() : null;
+        return nodeName != null ? nodeName : group.getName();
+      }
+    }
+    return OTHER;
+  }
+
+  /**
+   * @return the retained samples, oldest first
+   */
+  public List<Sample> getSamples() {
+    return samples.snapshot();
+  }
+
+  /**
+   * @return the usage of every node since sampling started, by node name; thread counts are those of
+   * the latest sample
+   */
+  public synchronized Map<String, NodeUsage> getTotals() {
+    Map<String, NodeUsage> copy = new TreeMap<>();
+    for (NodeUsage total : totals.values()) {
+      NodeUsage node = new NodeUsage(total.node);
+      node.cpuNanos = total.cpuNanos;
+      node.allocatedBytes = total.allocatedBytes;
+      node.threads = total.threads;
+      copy.put(node.node, node);
+    }
+    return copy;
+  }
+
+  /**
+   * Write the retained samples as CSV, one row per sample and node
+   */
+  public void writeCsv(Writer out) throws IOException {
+    out.write("timestamp,interval_ms,node,threads,cpu_ms,allocated_bytes\n");
+    for (Sample s : samples.snapshot()) {
+      for (NodeUsage node : s.nodes.values()) {
+        out.write(s.timestamp + "," + s.intervalMs + "," + node.node + "," + node.threads + ","
+            + TimeUnit.NANOSECONDS.toMillis(node.cpuNanos) + "," + node.allocatedBytes + "\n");
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * @return a fixed-width text table of the totals, one row per node
+   */
+  @Override
+  public String toString() {
+    Map<String, NodeUsage> nodes = getTotals();
+    long cpu = 0;
+    for (NodeUsage node : nodes.values()) cpu += node.cpuNanos;
+    StringBuilder sb = new StringBuilder(String.format(Locale.ROOT, "%-28s %8s %12s %7s %14s%n",
+        "node", "threads", "cpuMs", "cpu%", "allocatedMB"));
+    for (NodeUsage node : nodes.values()) {
+      sb.append(String.format(Locale.ROOT, "%-28s %8d %12d %7.1f %14d%n", node.node, node.threads,
+          TimeUnit.NANOSECONDS.toMillis(node.cpuNanos), cpu == 0 ? 0.0 : 100.0 * node.cpuNanos / cpu,
+          node.allocatedBytes >> 20));
+    }
+    return sb.toString();
+  }
+}
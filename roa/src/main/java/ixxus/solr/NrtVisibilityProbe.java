@@ -0,0 +1,283 @@
+package ixxus.solr;
+
+import org.apache.lucene.index.Term;
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.HashBasedRouter;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.util.SolrjNamedThreadFactory;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how long it takes from an update being acknowledged until it is searchable on each
+ * replica of a collection.
+ * <p>
+ * At a fixed interval the probe writes one marker document to every shard, without committing, and
+ * then polls every replica of that shard until the marker shows up in its registered searcher. The
+ * lag from acknowledgement to visibility is recorded per replica. Polling looks the marker id up
+ * directly in the in-process core, the equivalent of a {@code distrib=false} query without the HTTP
+ * round trip, so the probe itself adds one small update per shard and interval and a term lookup
+ * per outstanding marker and poll.
+ */
+public class NrtVisibilityProbe implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * Prefix of the marker document ids
+   */
+  public static final String ID_PREFIX = "nrtprobe";
+
+  private static class Marker {
+    final String id;
+    final long ackNanos;
+    /**
+     * replica keys that have not seen the marker yet
+     */
+    final Set<String> pending;
+
+    Marker(String id, long ackNanos, Set<String> pending) {
+      this.id = id;
+      this.ackNanos = ackNanos;
+      this.pending = pending;
+    }
+  }
+
+  /**
+   * Where to find a replica's core in-process
+   */
+  private static class ReplicaCore {
+    final String nodeName;
+    final String coreName;
+
+    ReplicaCore(String nodeName, String coreName) {
+      this.nodeName = nodeName;
+      this.coreName = coreName;
+    }
+  }
+
+  private final MicroSolrCloudCluster cluster;
+  private final String collection;
+  private final long markerIntervalMs;
+  private long pollIntervalMs = 1;
+  private long timeoutMs = TimeUnit.MINUTES.toMillis(1);
+
+  private final Queue<Marker> outstanding = new ConcurrentLinkedQueue<>();
+  private final Map<String, ReplicaCore> replicas = new ConcurrentHashMap<>();
+  private final Map<String, LatencyStats> lags = new ConcurrentHashMap<>();
+  private final Map<String, AtomicLong> timeouts = new ConcurrentHashMap<>();
+  private final Map<String, String> shardPrefixes = new HashMap<>();
+  private final AtomicLong markersWritten = new AtomicLong();
+  private long sequence;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * @param cluster          the cluster hosting {@code collection}
+   * @param collection       the collection to probe
+   * @param markerIntervalMs how often to write a new round of markers
+   */
+  public NrtVisibilityProbe(MicroSolrCloudCluster cluster, String collection, long markerIntervalMs) {
+    this.cluster = Objects.requireNonNull(cluster);
+    this.collection = Objects.requireNonNull(collection);
+    this.markerIntervalMs = markerIntervalMs;
+  }
+
+  /**
+   * How often replicas are checked for outstanding markers, 1 ms by default
+   */
+  public NrtVisibilityProbe withPollIntervalMs(long pollIntervalMs) {
+    this.pollIntervalMs = pollIntervalMs;
+    return this;
+  }
+
+  /**
+   * How long to wait for a marker to become visible before counting a timeout, 1 minute by default
+   */
+  public NrtVisibilityProbe withTimeoutMs(long timeoutMs) {
+    this.timeoutMs = timeoutMs;
+    return this;
+  }
+
+  public synchronized NrtVisibilityProbe start() {
+    if (scheduler != null) {
+      throw new IllegalStateException("NRT probe already started");
+    }
+    scheduler = Executors.newScheduledThreadPool(2, new SolrjNamedThreadFactory("nrt-probe"));
+    scheduler.scheduleAtFixedRate(this::writeMarkersQuietly, 0, markerIntervalMs, TimeUnit.MILLISECONDS);
+    scheduler.scheduleWithFixedDelay(this::pollQuietly, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  /**
+   * Stop probing and delete the marker documents; the recorded lags remain available
+   */
+  @Override
+  public synchronized void close() {
+    if (scheduler == null) return;
+    scheduler.shutdownNow();
+    try {
+      scheduler.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    scheduler = null;
+    outstanding.clear();
+    try {
+      cluster.getSolrClient().deleteByQuery(collection, "id:" + ID_PREFIX + "*");
+    } catch (Exception e) {
+      log.warn("Could not delete NRT probe markers from {}", collection, e);
+    }
+  }
+
+  private void writeMarkersQuietly() {
+    try {
+      writeMarkers();
+    } catch (Exception e) {
+      log.warn("Error writing NRT probe markers to {}", collection, e);
+    }
+  }
+
+  private void writeMarkers() throws Exception {
+    CloudSolrClient client = cluster.getSolrClient();
+    DocCollection coll = client.getZkStateReader().getClusterState().getCollection(collection);
+    long seq = sequence++;
+    for (Slice slice : coll.getActiveSlices()) {
+      Set<String> pending = ConcurrentHashMap.newKeySet();
+      for (Replica replica : slice.getReplicas()) {
+        String key = slice.getName() + "/" + replica.getName();
+        replicas.put(key, new ReplicaCore(replica.getNodeName(), replica.getCoreName()));
+        pending.add(key);
+      }
+      UpdateRequest req = new UpdateRequest();
+      String id;
+      if (coll.getRouter() instanceof HashBasedRouter) {
+        id = shardPrefix(coll, slice) + seq;
+      } else {
+        id = ID_PREFIX + "-" + slice.getName() + "-" + seq;
+        req.setParam(ShardParams._ROUTE_, slice.getName());
+      }
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("id", id);
+      req.add(doc);
+      req.process(client, collection);
+      outstanding.add(new Marker(id, System.nanoTime(), pending));
+      markersWritten.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return a composite id prefix routing to {@code slice}, so each round reaches every shard
+   */
+  private String shardPrefix(DocCollection coll, Slice slice) {
+    return shardPrefixes.computeIfAbsent(slice.getName(), name -> {
+      for (int i = 0; i < 100_000; i++) {
+        String prefix = ID_PREFIX + i + "!";
+        Slice target = coll.getRouter().getTargetSlice(prefix + "0", null, null, null, coll);
+        if (target != null && name.equals(target.getName())) return prefix;
+      }
+      throw new IllegalStateException("No marker prefix routes to " + name);
+    });
+  }
+
+  private void pollQuietly() {
+    try {
+      poll();
+    } catch (Exception e) {
+      log.warn("Error polling NRT probe markers in {}", collection, e);
+    }
+  }
+
+  private void poll() throws Exception {
+    if (outstanding.isEmpty()) return;
+    long now = System.nanoTime();
+    for (Iterator<Marker> it = outstanding.iterator(); it.hasNext(); ) {
+      Marker marker = it.next();
+      Term term = new Term("id", marker.id);
+      for (Iterator<String> r = marker.pending.iterator(); r.hasNext(); ) {
+        String key = r.next();
+        if (isVisible(replicas.get(key), term)) {
+          lags.computeIfAbsent(key, k -> new LatencyStats()).record(Math.max(0, System.nanoTime() - marker.ackNanos));
+          r.remove();
+        }
+      }
+      if (marker.pending.isEmpty()) {
+        it.remove();
+      } else if (TimeUnit.NANOSECONDS.toMillis(now - marker.ackNanos) > timeoutMs) {
+        for (String key : marker.pending) {
+          timeouts.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+        }
+        it.remove();
+      }
+    }
+  }
+
+  private boolean isVisible(ReplicaCore replica, Term term) throws Exception {
+    for (JettySolrRunner jetty : cluster.getJettySolrRunners()) {
+      if (!replica.nodeName.equals(jetty.getNodeName())) continue;
+      CoreContainer cores = jetty.getCoreContainer();
+      if (cores == null || cores.isShutDown()) return false;
+      try (SolrCore core = cores.getCore(replica.coreName)) {
+        if (core == null) return false;
+        RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+        try {
+          return searcher.get().getFirstMatch(term) >= 0;
+        } finally {
+          searcher.decref();
+        }
+      }
+    }
+    return false;
+  }
+
+  public long getMarkersWritten() {
+    return markersWritten.get();
+  }
+
+  /**
+   * @return the acknowledgement to visibility lag of each replica, keyed by {@code shard/replica}
+   */
+  public Map<String, LatencyStats> getLags() {
+    return new TreeMap<>(lags);
+  }
+
+  /**
+   * @return the number of markers each replica did not see within the timeout, keyed by {@code shard/replica}
+   */
+  public Map<String, Long> getTimeouts() {
+    Map<String, Long> result = new TreeMap<>();
+    timeouts.forEach((key, count) -> result.put(key, count.get()));
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("NRT visibility of ").append(collection)
+        .append(" (").append(markersWritten.get()).append(" markers)");
+    for (Map.Entry<String, LatencyStats> entry : getLags().entrySet()) {
+      sb.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+      AtomicLong t = timeouts.get(entry.getKey());
+      if (t != null) sb.append(" timeouts=").append(t.get());
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,241 @@
+package ixxus.solr;
+
+import org.apache.solr.common.util.SolrjNamedThreadFactory;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.DataNode;
+import org.apache.zookeeper.server.ZKDatabase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the depth of the Overseer work queues over time and how long their items take to be
+ * processed, from the write transactions applied by the embedded {@link ZkTestServer}.
+ * <p>
+ * Because every create and delete of a queue item is seen as it is applied, depths and latencies are
+ * exact to the ZooKeeper transaction time and cost no client reads or watches. For the state update
+ * queue, {@code /overseer/queue}, the latency of an item is measured from its creation to the last
+ * cluster state write ({@code state.json} or {@code clusterstate.json}) before the Overseer removed
+ * it, i.e. until the change was visible in the cluster state. For the other queues it is the time
+ * from creation to removal.
+ */
+public class OverseerQueueMonitor implements Closeable {
+
+  public static final String STATE_UPDATE_QUEUE = "/overseer/queue";
+  public static final String COLLECTION_QUEUE = "/overseer/collection-queue-work";
+  public static final String WORK_QUEUE = "/overseer/queue-work";
+
+  private static final String[] QUEUES = {STATE_UPDATE_QUEUE, COLLECTION_QUEUE, WORK_QUEUE};
+
+  /**
+   * Name prefix of queue items; OverseerTaskQueue keeps its {@code qnr-} response nodes in the same
+   * directory, and those are not work
+   */
+  private static final String ITEM_PREFIX = "qn-";
+
+  /**
+   * Depth of every queue at one point in time
+   */
+  public static class DepthSample {
+    public final long timestamp;
+    private final int[] depths;
+
+    DepthSample(long timestamp, int[] depths) {
+      this.timestamp = timestamp;
+      this.depths = depths;
+    }
+
+    /**
+     * @param queue one of the queue paths, e.g. {@link #STATE_UPDATE_QUEUE}
+     */
+    public int getDepth(String queue) {
+      return depths[Arrays.asList(QUEUES).indexOf(queue)];
+    }
+  }
+
+  /**
+   * One processed queue item
+   */
+  public static class ItemLatency {
+    public final String queue;
+    public final long createdAt;
+    public final long doneAt;
+
+    ItemLatency(String queue, long createdAt, long doneAt) {
+      this.queue = queue;
+      this.createdAt = createdAt;
+      this.doneAt = doneAt;
+    }
+  }
+
+  private final ZkTestServer zkServer;
+  private final String chroot;
+  private final long intervalMs;
+  private final String[] queuePaths = new String[QUEUES.length];
+  private final AtomicInteger[] depths = new AtomicInteger[QUEUES.length];
+  private final LatencyStats[] latencies = new LatencyStats[QUEUES.length];
+  private final Map<String, Long> created = new ConcurrentHashMap<>();
+  private final RingBuffer<DepthSample> samples;
+  private final RingBuffer<ItemLatency> items;
+  private final ZkTestServer.TxnListener listener = this::txnApplied;
+  private volatile long lastStateWrite;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * @param zkServer   the server to monitor
+   * @param chroot     the chroot Solr runs under, e.g. {@code /solr}
+   * @param capacity   the number of depth samples and of item latencies retained
+   * @param intervalMs the depth sampling interval in milliseconds
+   */
+  public OverseerQueueMonitor(ZkTestServer zkServer, String chroot, int capacity, long intervalMs) {
+    this.zkServer = Objects.requireNonNull(zkServer);
+    this.chroot = chroot == null || chroot.equals("/") ? "" : chroot;
+    this.intervalMs = intervalMs;
+    this.samples = new RingBuffer<>(capacity);
+    this.items = new RingBuffer<>(capacity);
+    for (int i = 0; i < QUEUES.length; i++) {
+      queuePaths[i] = this.chroot + QUEUES[i];
+      depths[i] = new AtomicInteger();
+      latencies[i] = new LatencyStats();
+    }
+  }
+
+  public synchronized OverseerQueueMonitor start() {
+    if (scheduler != null) {
+      throw new IllegalStateException("Overseer queue monitor already started");
+    }
+    zkServer.addTxnListener(listener);
+    // items queued before the listener was added have no creation time and are not timed
+    ZKDatabase db = zkServer.getZKDatabase();
+    for (int i = 0; i < QUEUES.length; i++) {
+      DataNode node = db.getNode(queuePaths[i]);
+      if (node != null) {
+        int items = 0;
+        synchronized (node) {
+          if (node.getChildren() != null) {
+            for (String child : node.getChildren()) {
+              if (child.startsWith(ITEM_PREFIX)) items++;
+            }
+          }
+        }
+        depths[i].set(items);
+      }
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(new SolrjNamedThreadFactory("overseer-monitor"));
+    scheduler.scheduleAtFixedRate(this::sample, 0, intervalMs, TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  @Override
+  public synchronized void close() {
+    zkServer.removeTxnListener(listener);
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  private void txnApplied(long time, int opCode, String path, long sessionId) {
+    if (path == null) return;
+    if (opCode == ZooDefs.OpCode.setData || opCode == ZooDefs.OpCode.create) {
+      if (path.endsWith("/state.json") || path.equals(chroot + "/clusterstate.json")) {
+        lastStateWrite = time;
+        return;
+      }
+    }
+    int slash = path.lastIndexOf('/');
+    if (slash <= 0) return;
+    String parent = path.substring(0, slash);
+    if (!path.startsWith(ITEM_PREFIX, slash + 1)) return;
+    for (int i = 0; i < QUEUES.length; i++) {
+      if (!queuePaths[i].equals(parent)) continue;
+      if (opCode == ZooDefs.OpCode.create) {
+        depths[i].incrementAndGet();
+        created.put(path, time);
+      } else if (opCode == ZooDefs.OpCode.delete) {
+        depths[i].decrementAndGet();
+        Long createdAt = created.remove(path);
+        if (createdAt != null) {
+          long done = STATE_UPDATE_QUEUE.equals(QUEUES[i]) && lastStateWrite >= createdAt ? lastStateWrite : time;
+          latencies[i].record(TimeUnit.MILLISECONDS.toNanos(done - createdAt));
+          items.add(new ItemLatency(QUEUES[i], createdAt, done));
+        }
+      }
+      return;
+    }
+  }
+
+  private void sample() {
+    int[] d = new int[QUEUES.length];
+    for (int i = 0; i < d.length; i++) {
+      d[i] = depths[i].get();
+    }
+    samples.add(new DepthSample(System.currentTimeMillis(), d));
+  }
+
+  /**
+   * @return the current depth of {@code queue}
+   */
+  public int getDepth(String queue) {
+    return depths[Arrays.asList(QUEUES).indexOf(queue)].get();
+  }
+
+  /**
+   * @return the processing latency of the items of {@code queue}, see the class documentation
+   */
+  public LatencyStats getLatencies(String queue) {
+    return latencies[Arrays.asList(QUEUES).indexOf(queue)];
+  }
+
+  /**
+   * @return the retained depth samples, oldest first
+   */
+  public List<DepthSample> getSamples() {
+    return samples.snapshot();
+  }
+
+  /**
+   * Write the retained depth samples as CSV, one column per queue
+   */
+  public void writeCsv(Writer out) throws IOException {
+    out.write("timestamp,state_update_queue,collection_queue,work_queue\n");
+    for (DepthSample s : samples.snapshot()) {
+      out.write(s.timestamp + "," + s.depths[0] + "," + s.depths[1] + "," + s.depths[2] + "\n");
+    }
+    out.flush();
+  }
+
+  /**
+   * @return the retained item latencies, in order of completion
+   */
+  public List<ItemLatency> getItemLatencies() {
+    return items.snapshot();
+  }
+
+  /**
+   * Write the retained item latencies as CSV, one row per processed queue item
+   */
+  public void writeLatencyCsv(Writer out) throws IOException {
+    out.write("queue,created_at,done_at,latency_ms\n");
+    for (ItemLatency item : items.snapshot()) {
+      out.write(item.queue + "," + item.createdAt + "," + item.doneAt + "," + (item.doneAt - item.createdAt) + "\n");
+    }
+    out.flush();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("Overseer queues:");
+    for (int i = 0; i < QUEUES.length; i++) {
+      sb.append("\n  ").append(QUEUES[i]).append(" depth=").append(depths[i].get()).append(' ').append(latencies[i]);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,346 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Breaks the latency of distributed queries down by shard, replica and phase, to find out which part
+ * of the fan-out makes a query slow.
+ * <p>
+ * Every query runs with {@code shards.info=true} and {@code debug=track} and {@code debug=timing}.
+ * Solr then reports the time the coordinator waited for each shard request in each phase:
+ * {@value #TOP_IDS} (collecting the top ids, GET_TOP_IDS) and {@value #GET_FIELDS}, among others, keyed
+ * by the {@code |}-separated URLs of the shard's replicas. The analyzer maps each key to its shard, and
+ * to the replica that answered through the {@code shardAddress} of the key's shards.info entry, and
+ * aggregates the timings. For every
+ * execution it also notes the straggler, the shard that answered {@value #TOP_IDS} last. The
+ * {@linkplain #report(double) report} counts which shard and replica straggled in the slowest
+ * executions, i.e. which dominate the tail.
+ */
+public class QueryFanoutAnalyzer {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * The phase collecting the top document ids of every shard
+   */
+  public static final String TOP_IDS = "EXECUTE_QUERY";
+  /**
+   * The phase fetching the stored fields of the final page
+   */
+  public static final String GET_FIELDS = "GET_FIELDS";
+
+  /**
+   * One query execution
+   */
+  public static class Execution {
+    public final long totalNanos;
+    public final String stragglerShard;
+    public final String stragglerReplica;
+    /**
+     * how long the straggler took in {@value QueryFanoutAnalyzer#TOP_IDS}, and the fastest shard
+     */
+    public final long stragglerMs;
+    public final long fastestMs;
+
+    Execution(long totalNanos, String stragglerShard, String stragglerReplica, long stragglerMs, long fastestMs) {
+      this.totalNanos = totalNanos;
+      this.stragglerShard = stragglerShard;
+      this.stragglerReplica = stragglerReplica;
+      this.stragglerMs = stragglerMs;
+      this.fastestMs = fastestMs;
+    }
+  }
+
+  /**
+   * Aggregated timings, and the stragglers of the executions at or above the tail threshold
+   */
+  public static class Report {
+    public final LatencyStats total;
+    /**
+     * coordinator-observed shard request times by phase, and coordinator component times as {@code process.<component>}
+     */
+    public final Map<String, LatencyStats> phases;
+    /**
+     * {@value QueryFanoutAnalyzer#TOP_IDS} times by shard and by replica core
+     */
+    public final Map<String, LatencyStats> shards;
+    public final Map<String, LatencyStats> replicas;
+    public final double tailQuantile;
+    public final double tailThresholdMs;
+    public final int tailExecutions;
+    /**
+     * how often each shard and replica was the straggler of a tail execution
+     */
+    public final Map<String, Integer> tailStragglerShards;
+    public final Map<String, Integer> tailStragglerReplicas;
+
+    Report(LatencyStats total, Map<String, LatencyStats> phases, Map<String, LatencyStats> shards,
+           Map<String, LatencyStats> replicas, double tailQuantile, double tailThresholdMs, int tailExecutions,
+           Map<String, Integer> tailStragglerShards, Map<String, Integer> tailStragglerReplicas) {
+      this.total = total;
+      this.phases = phases;
+      this.shards = shards;
+      this.replicas = replicas;
+      this.tailQuantile = tailQuantile;
+      this.tailThresholdMs = tailThresholdMs;
+      this.tailExecutions = tailExecutions;
+      this.tailStragglerShards = tailStragglerShards;
+      this.tailStragglerReplicas = tailStragglerReplicas;
+    }
+
+    /**
+     * @return the shard that straggled most often in the tail, or null
+     */
+    public String getDominantShard() {
+      return mostFrequent(tailStragglerShards);
+    }
+
+    /**
+     * @return the replica that straggled most often in the tail, or null
+     */
+    public String getDominantReplica() {
+      return mostFrequent(tailStragglerReplicas);
+    }
+
+    private static String mostFrequent(Map<String, Integer> counts) {
+      String most = null;
+      for (Map.Entry<String, Integer> e : counts.entrySet()) {
+        if (most == null || e.getValue() > counts.get(most)) most = e.getKey();
+      }
+      return most;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("total ").append(total).append('\n');
+      table(sb, "phase", phases, Collections.emptyMap());
+      table(sb, "shard", shards, tailStragglerShards);
+      table(sb, "replica", replicas, tailStragglerReplicas);
+      sb.append(String.format(Locale.ROOT, "%d executions at or above p%.0f (%.2f ms): dominated by shard %s, replica %s%n",
+          tailExecutions, tailQuantile * 100, tailThresholdMs, getDominantShard(), getDominantReplica()));
+      return sb.toString();
+    }
+
+    private static void table(StringBuilder sb, String title, Map<String, LatencyStats> rows, Map<String, Integer> stragglers) {
+      sb.append(String.format(Locale.ROOT, "%-40s %8s %10s %10s %10s %10s%n", title, "count", "p50ms", "p99ms", "maxMs", "tailLast"));
+      for (Map.Entry<String, LatencyStats> row : rows.entrySet()) {
+        LatencyStats s = row.getValue();
+        sb.append(String.format(Locale.ROOT, "%-40s %8d %10.2f %10.2f %10.2f %10d%n", row.getKey(), s.getCount(),
+            s.percentileMs(0.5), s.percentileMs(0.99), s.getSnapshot().getMax() / 1e6,
+            stragglers.getOrDefault(row.getKey(), 0)));
+      }
+    }
+  }
+
+  private final MicroSolrCloudCluster cluster;
+  private final String collection;
+  private final LatencyStats total = new LatencyStats();
+  private final Map<String, LatencyStats> phases = new ConcurrentHashMap<>();
+  private final Map<String, LatencyStats> shards = new ConcurrentHashMap<>();
+  private final Map<String, LatencyStats> replicas = new ConcurrentHashMap<>();
+  private final RingBuffer<Execution> executions;
+
+  /**
+   * @param cluster    the cluster to query
+   * @param collection the collection to query
+   * @param capacity   the number of executions retained for the tail analysis
+   */
+  public QueryFanoutAnalyzer(MicroSolrCloudCluster cluster, String collection, int capacity) {
+    this.cluster = Objects.requireNonNull(cluster);
+    this.collection = Objects.requireNonNull(collection);
+    this.executions = new RingBuffer<>(capacity);
+  }
+
+  /**
+   * Run every query {@code iterations} times, in order; failed queries are counted as errors
+   */
+  public Report run(List<? extends SolrParams> queries, int iterations, double tailQuantile) {
+    for (int i = 0; i < iterations; i++) {
+      for (SolrParams query : queries) {
+        try {
+          execute(query);
+        } catch (Exception e) {
+          log.debug("Query {} failed", query, e);
+        }
+      }
+    }
+    return report(tailQuantile);
+  }
+
+  /**
+   * Run one query with shard info and tracking and record its timings; safe to call concurrently
+   */
+  public Execution execute(SolrParams query) throws Exception {
+    ModifiableSolrParams params = new ModifiableSolrParams(query);
+    params.set("shards.info", true);
+    params.add("debug", "track", "timing");
+    long start = System.nanoTime();
+    QueryResponse response;
+    try {
+      response = cluster.getSolrClient().query(collection, params);
+    } catch (Exception e) {
+      total.recordError();
+      throw e;
+    }
+    long totalNanos = System.nanoTime() - start;
+    total.record(totalNanos);
+
+    Map<String, String[]> replicaByUrl = replicasByUrl();
+    NamedList<?> shardsInfo = (NamedList<?>) response.getResponse().get("shards.info");
+    recordShardErrors(shardsInfo, replicaByUrl);
+
+    String stragglerShard = null;
+    String stragglerReplica = null;
+    long slowest = -1;
+    long fastest = Long.MAX_VALUE;
+    NamedList<?> debug = (NamedList<?>) response.getResponse().get("debug");
+    NamedList<?> track = debug == null ? null : (NamedList<?>) debug.get("track");
+    if (track != null) {
+      for (Map.Entry<String, ?> phase : track) {
+        if (!(phase.getValue() instanceof NamedList)) continue;
+        for (Map.Entry<String, ?> request : (NamedList<?>) phase.getValue()) {
+          NamedList<?> info = (NamedList<?>) request.getValue();
+          long elapsedMs = Long.parseLong(String.valueOf(info.get("ElapsedTime")));
+          long nanos = TimeUnit.MILLISECONDS.toNanos(elapsedMs);
+          stats(phases, phase.getKey()).record(nanos);
+          String shard = shardOf(request.getKey(), replicaByUrl);
+          String[] replica = answeringReplica(shardsInfo, request.getKey(), replicaByUrl);
+          String core = replica == null ? request.getKey() : replica[1];
+          if (!TOP_IDS.equals(phase.getKey())) continue;
+          stats(shards, shard).record(nanos);
+          stats(replicas, core).record(nanos);
+          fastest = Math.min(fastest, elapsedMs);
+          if (elapsedMs > slowest) {
+            slowest = elapsedMs;
+            stragglerShard = shard;
+            stragglerReplica = core;
+          }
+        }
+      }
+    }
+    NamedList<?> timing = debug == null ? null : (NamedList<?>) debug.get("timing");
+    NamedList<?> process = timing == null ? null : (NamedList<?>) timing.get("process");
+    if (process != null) {
+      for (Map.Entry<String, ?> component : process) {
+        if (component.getValue() instanceof NamedList) {
+          Object time = ((NamedList<?>) component.getValue()).get("time");
+          stats(phases, "process." + component.getKey())
+              .record((long) (((Number) time).doubleValue() * 1_000_000));
+        }
+      }
+    }
+    Execution execution = new Execution(totalNanos, stragglerShard, stragglerReplica, slowest,
+        fastest == Long.MAX_VALUE ? -1 : fastest);
+    executions.add(execution);
+    return execution;
+  }
+
+  private void recordShardErrors(NamedList<?> shardsInfo, Map<String, String[]> replicaByUrl) {
+    if (shardsInfo == null) return;
+    for (Map.Entry<String, ?> entry : shardsInfo) {
+      NamedList<?> info = (NamedList<?>) entry.getValue();
+      if (info.get("error") == null) continue;
+      stats(shards, shardOf(entry.getKey(), replicaByUrl)).recordError();
+      String[] replica = answeringReplica(shardsInfo, entry.getKey(), replicaByUrl);
+      if (replica != null) stats(replicas, replica[1]).recordError();
+    }
+  }
+
+  /**
+   * @param key the {@code |}-separated replica URLs a shard request could go to
+   * @return the shard of the first of those replicas the collection has, or the key itself
+   */
+  private static String shardOf(String key, Map<String, String[]> replicaByUrl) {
+    for (String url : key.split("\\|")) {
+      String[] replica = replicaByUrl.get(normalize(url));
+      if (replica != null) return replica[0];
+    }
+    return key;
+  }
+
+  /**
+   * @return shard and core name of the replica that answered the request for {@code key}, or null
+   */
+  private static String[] answeringReplica(NamedList<?> shardsInfo, String key, Map<String, String[]> replicaByUrl) {
+    Object info = shardsInfo == null ? null : shardsInfo.get(key);
+    Object address = info instanceof NamedList ? ((NamedList<?>) info).get("shardAddress") : null;
+    if (address != null) {
+      return replicaByUrl.get(normalize(address.toString()));
+    }
+    // only one replica to choose from
+    return key.indexOf('|') < 0 ? replicaByUrl.get(normalize(key)) : null;
+  }
+
+  /**
+   * @return shard name and core name by core URL, of the collection's current state
+   */
+  private Map<String, String[]> replicasByUrl() {
+    DocCollection state = cluster.getSolrClient().getZkStateReader().getClusterState().getCollection(collection);
+    Map<String, String[]> byUrl = new HashMap<>();
+    for (Slice slice : state.getSlices()) {
+      for (Replica replica : slice.getReplicas()) {
+        byUrl.put(normalize(replica.getCoreUrl()), new String[]{slice.getName(), replica.getCoreName()});
+      }
+    }
+    return byUrl;
+  }
+
+  /**
+   * Without scheme and trailing slash, as shard requests may list URLs without a scheme
+   */
+  private static String normalize(String url) {
+    String u = url.trim().replaceFirst("^https?://", "");
+    return u.endsWith("/") ? u.substring(0, u.length() - 1) : u;
+  }
+
+  private static LatencyStats stats(Map<String, LatencyStats> map, String key) {
+    return map.computeIfAbsent(key, k -> new LatencyStats());
+  }
+
+  /**
+   * @return the retained executions, oldest first
+   */
+  public List<Execution> getExecutions() {
+    return executions.snapshot();
+  }
+
+  /**
+   * Aggregate everything recorded so far
+   *
+   * @param tailQuantile executions at or above this quantile of the total latency count as the tail, e.g. 0.99
+   */
+  public Report report(double tailQuantile) {
+    List<Execution> retained = executions.snapshot();
+    long[] totals = new long[retained.size()];
+    for (int i = 0; i < totals.length; i++) totals[i] = retained.get(i).totalNanos;
+    Arrays.sort(totals);
+    long threshold = totals.length == 0 ? 0 : totals[Math.min(totals.length - 1, (int) (tailQuantile * totals.length))];
+
+    int tail = 0;
+    Map<String, Integer> tailShards = new TreeMap<>();
+    Map<String, Integer> tailReplicas = new TreeMap<>();
+    for (Execution e : retained) {
+      if (totals.length == 0 || e.totalNanos < threshold) continue;
+      tail++;
+      if (e.stragglerShard != null) {
+        tailShards.merge(e.stragglerShard, 1, Integer::sum);
+        tailReplicas.merge(e.stragglerReplica, 1, Integer::sum);
+      }
+    }
+    return new Report(total, new TreeMap<>(phases), new TreeMap<>(shards), new TreeMap<>(replicas),
+        tailQuantile, threshold / 1e6, tail, tailShards, tailReplicas);
+  }
+}
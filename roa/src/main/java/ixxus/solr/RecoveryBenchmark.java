@@ -0,0 +1,431 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.cloud.ClusterState;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.SolrjNamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a steady indexing and query load against a collection, injects node failures on a schedule and
+ * measures how fast the cluster heals from each one:
+ * <ul>
+ * <li>time until every shard has an active leader on a live node again</li>
+ * <li>time until the first update started after the failure succeeds</li>
+ * <li>time until all replicas on live nodes are active again</li>
+ * <li>client errors and the worst latency seen while recovering</li>
+ * </ul>
+ * Client latencies and errors are also kept per second for the whole run, to plot the spikes.
+ * Nodes killed during the run are restarted at its end.
+ */
+public class RecoveryBenchmark {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  public enum Fault {
+    /**
+     * stop the node and leave it down until the end of the run
+     */
+    KILL,
+    /**
+     * expire the node's ZooKeeper session, as a long GC pause or network partition would
+     */
+    EXPIRE_SESSION,
+    /**
+     * stop the node and start it again
+     */
+    RESTART
+  }
+
+  public enum Target {
+    /**
+     * the node hosting the leader of the collection's first shard
+     */
+    LEADER,
+    /**
+     * a node hosting replicas of the collection but no leader
+     */
+    NON_LEADER
+  }
+
+  private static class ScheduledFault {
+    final long afterMs;
+    final Fault fault;
+    final Target target;
+
+    ScheduledFault(long afterMs, Fault fault, Target target) {
+      this.afterMs = afterMs;
+      this.fault = fault;
+      this.target = target;
+    }
+  }
+
+  /**
+   * Recovery measurements of one injected fault; times are relative to the injection, -1 when the
+   * condition was not reached within the recovery timeout, or when the failure itself never showed in
+   * the cluster state and there was nothing to measure
+   */
+  public static class FaultResult {
+    public final Fault fault;
+    public final String nodeName;
+    /**
+     * injection time relative to the start of the run
+     */
+    public final long injectedAtMs;
+    /**
+     * whether the node dropped out of live_nodes or lost a leader after the injection
+     */
+    public boolean failureObserved;
+    public long leaderElectionMs = -1;
+    public long firstUpdateMs = -1;
+    public long replicasActiveMs = -1;
+    public long clientErrors;
+    public double maxLatencyMs;
+
+    FaultResult(Fault fault, String nodeName, long injectedAtMs) {
+      this.fault = fault;
+      this.nodeName = nodeName;
+      this.injectedAtMs = injectedAtMs;
+    }
+
+    @Override
+    public String toString() {
+      if (!failureObserved) {
+        return String.format(Locale.ROOT, "%s of %s at %d ms: failure never observed, nothing measured",
+            fault, nodeName, injectedAtMs);
+      }
+      return String.format(Locale.ROOT, "%s of %s at %d ms: leader %d ms, first update %d ms, replicas active %d ms, "
+              + "%d client errors, max latency %.1f ms", fault, nodeName, injectedAtMs, leaderElectionMs,
+          firstUpdateMs, replicasActiveMs, clientErrors, maxLatencyMs);
+    }
+  }
+
+  /**
+   * Client operations of one second of the run
+   */
+  public static class Window {
+    public final LatencyStats updates = new LatencyStats(1024);
+    public final LatencyStats queries = new LatencyStats(1024);
+  }
+
+  private final MicroSolrCloudCluster cluster;
+  private final String collection;
+  private final List<ScheduledFault> faults = new ArrayList<>();
+  private long updateIntervalMs = 10;
+  private long queryIntervalMs = 10;
+  private long recoveryTimeoutMs = TimeUnit.MINUTES.toMillis(2);
+  private final ConcurrentSkipListMap<Long, Window> windows = new ConcurrentSkipListMap<>();
+  /**
+   * completion time of the earliest successful update started since the last fault, or Long.MAX_VALUE
+   */
+  private final AtomicLong firstUpdateSince = new AtomicLong(Long.MAX_VALUE);
+  private volatile long faultNanos = Long.MAX_VALUE;
+  private volatile boolean running;
+  private long startNanos;
+
+  public RecoveryBenchmark(MicroSolrCloudCluster cluster, String collection) {
+    this.cluster = Objects.requireNonNull(cluster);
+    this.collection = Objects.requireNonNull(collection);
+  }
+
+  /**
+   * Inject {@code fault} into the {@code target} node {@code afterMs} after the previous fault has been
+   * recovered from, or after the run started
+   */
+  public RecoveryBenchmark withFault(long afterMs, Fault fault, Target target) {
+    faults.add(new ScheduledFault(afterMs, fault, target));
+    return this;
+  }
+
+  /**
+   * Pause between the single-document updates of the load, 10 ms by default
+   */
+  public RecoveryBenchmark withUpdateIntervalMs(long updateIntervalMs) {
+    this.updateIntervalMs = updateIntervalMs;
+    return this;
+  }
+
+  /**
+   * Pause between the queries of the load, 10 ms by default
+   */
+  public RecoveryBenchmark withQueryIntervalMs(long queryIntervalMs) {
+    this.queryIntervalMs = queryIntervalMs;
+    return this;
+  }
+
+  public RecoveryBenchmark withRecoveryTimeoutMs(long recoveryTimeoutMs) {
+    this.recoveryTimeoutMs = recoveryTimeoutMs;
+    return this;
+  }
+
+  /**
+   * Run the load, inject the scheduled faults one after the other and wait for recovery from each
+   *
+   * @return one result per fault, in schedule order
+   */
+  public List<FaultResult> run() throws Exception {
+    List<FaultResult> results = new ArrayList<>();
+    List<JettySolrRunner> killed = new ArrayList<>();
+    windows.clear();
+    startNanos = System.nanoTime();
+    running = true;
+    ExecutorService load = ExecutorUtil.newMDCAwareFixedThreadPool(2, new SolrjNamedThreadFactory("recovery-load"));
+    try {
+      load.submit(this::updateLoop);
+      load.submit(this::queryLoop);
+      for (ScheduledFault scheduled : faults) {
+        Thread.sleep(scheduled.afterMs);
+        results.add(inject(scheduled, killed));
+      }
+    } finally {
+      running = false;
+      ExecutorUtil.shutdownAndAwaitTermination(load);
+      for (JettySolrRunner jetty : killed) {
+        cluster.startJettySolrRunner(jetty);
+      }
+    }
+    for (FaultResult result : results) {
+      log.info("{}", result);
+    }
+    return results;
+  }
+
+  private FaultResult inject(ScheduledFault scheduled, List<JettySolrRunner> killed) throws Exception {
+    CloudSolrClient client = cluster.getSolrClient();
+    DocCollection before = client.getZkStateReader().getClusterState().getCollection(collection);
+    JettySolrRunner jetty = pickNode(before, scheduled.target);
+    String nodeName = jetty.getNodeName();
+    int expectedActive = countReplicas(before, null);
+    if (scheduled.fault == Fault.KILL) {
+      expectedActive -= countReplicas(before, nodeName);
+    }
+
+    firstUpdateSince.set(Long.MAX_VALUE);
+    long t0 = System.nanoTime();
+    faultNanos = t0;
+    FaultResult result = new FaultResult(scheduled.fault, nodeName, TimeUnit.NANOSECONDS.toMillis(t0 - startNanos));
+    log.info("Injecting {} into {}", scheduled.fault, nodeName);
+    JettySolrRunner stopped = null;
+    switch (scheduled.fault) {
+      case KILL:
+        killed.add(cluster.stopJettySolrRunner(cluster.getJettySolrRunners().indexOf(jetty)));
+        break;
+      case EXPIRE_SESSION:
+        cluster.expireZkSession(jetty);
+        break;
+      case RESTART:
+        stopped = cluster.stopJettySolrRunner(cluster.getJettySolrRunners().indexOf(jetty));
+        break;
+    }
+
+    // wait for the failure to show in the cluster state, so a state not yet updated is not taken for recovered
+    result.failureObserved = awaitCondition(t0, t0 + TimeUnit.SECONDS.toNanos(10),
+        () -> !isLive(nodeName) || !leadersHealthy(null)) >= 0;
+    // the node comes back while recovery is being timed, which still runs from the stop
+    ExecutorService restarter = null;
+    Future<JettySolrRunner> restart = null;
+    if (stopped != null) {
+      JettySolrRunner node = stopped;
+      restarter = Executors.newSingleThreadExecutor(new SolrjNamedThreadFactory("recovery-restart"));
+      restart = restarter.submit(() -> cluster.startJettySolrRunner(node));
+    }
+    try {
+      if (result.failureObserved) {
+        measureRecovery(scheduled, result, nodeName, expectedActive, t0);
+      } else {
+        log.warn("{} of {} never showed in the cluster state, its recovery is not measured", scheduled.fault, nodeName);
+      }
+      if (restart != null) {
+        restart.get(recoveryTimeoutMs, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      faultNanos = Long.MAX_VALUE;
+      if (restarter != null) {
+        ExecutorUtil.shutdownAndAwaitTermination(restarter);
+      }
+    }
+
+    long fromSecond = TimeUnit.NANOSECONDS.toSeconds(t0 - startNanos);
+    long toSecond = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+    for (Window window : windows.subMap(fromSecond, true, toSecond, true).values()) {
+      result.clientErrors += window.updates.getErrors() + window.queries.getErrors();
+      result.maxLatencyMs = Math.max(result.maxLatencyMs, Math.max(
+          window.updates.getSnapshot().getMax(), window.queries.getSnapshot().getMax()) / 1e6);
+    }
+    return result;
+  }
+
+  private void measureRecovery(ScheduledFault scheduled, FaultResult result, String nodeName, int expectedActive,
+                               long t0) throws Exception {
+    long deadline = t0 + TimeUnit.MILLISECONDS.toNanos(recoveryTimeoutMs);
+    String excluded = scheduled.fault == Fault.KILL ? nodeName : null;
+    result.leaderElectionMs = awaitCondition(t0, deadline, () -> leadersHealthy(excluded));
+    final int expected = expectedActive;
+    result.replicasActiveMs = awaitCondition(t0, deadline, () -> countActive() >= expected);
+    result.firstUpdateMs = awaitCondition(t0, deadline, () -> firstUpdateSince.get() != Long.MAX_VALUE);
+    if (result.firstUpdateMs >= 0) {
+      result.firstUpdateMs = TimeUnit.NANOSECONDS.toMillis(firstUpdateSince.get() - t0);
+    }
+  }
+
+  private interface Condition {
+    boolean test() throws Exception;
+  }
+
+  /**
+   * @return ms from {@code t0} until {@code condition} held, or -1 if it did not before {@code deadline} (nanos)
+   */
+  private static long awaitCondition(long t0, long deadline, Condition condition) throws Exception {
+    while (true) {
+      if (condition.test()) return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+      if (System.nanoTime() > deadline) return -1;
+      Thread.sleep(10);
+    }
+  }
+
+  private JettySolrRunner pickNode(DocCollection coll, Target target) {
+    Set<String> leaderNodes = new HashSet<>();
+    Set<String> replicaNodes = new HashSet<>();
+    for (Slice slice : coll.getActiveSlices()) {
+      Replica leader = slice.getLeader();
+      if (leader != null) leaderNodes.add(leader.getNodeName());
+      for (Replica replica : slice.getReplicas()) replicaNodes.add(replica.getNodeName());
+    }
+    String wanted = null;
+    if (target == Target.LEADER) {
+      Replica leader = coll.getActiveSlices().iterator().next().getLeader();
+      wanted = leader == null ? null : leader.getNodeName();
+    } else {
+      replicaNodes.removeAll(leaderNodes);
+      if (!replicaNodes.isEmpty()) wanted = replicaNodes.iterator().next();
+    }
+    for (JettySolrRunner jetty : cluster.getJettySolrRunners()) {
+      if (jetty.isRunning() && jetty.getNodeName().equals(wanted)) return jetty;
+    }
+    throw new IllegalStateException("No " + target + " node of " + collection + " to inject a fault into");
+  }
+
+  private ClusterState clusterState() {
+    return cluster.getSolrClient().getZkStateReader().getClusterState();
+  }
+
+  private boolean isLive(String nodeName) {
+    return clusterState().getLiveNodes().contains(nodeName);
+  }
+
+  /**
+   * @return true if every shard has an active leader on a live node other than {@code excludedNode}
+   */
+  private boolean leadersHealthy(String excludedNode) {
+    ClusterState state = clusterState();
+    for (Slice slice : state.getCollection(collection).getActiveSlices()) {
+      Replica leader = slice.getLeader();
+      if (leader == null || leader.getState() != Replica.State.ACTIVE
+          || !state.getLiveNodes().contains(leader.getNodeName()) || leader.getNodeName().equals(excludedNode)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int countActive() {
+    ClusterState state = clusterState();
+    int active = 0;
+    for (Slice slice : state.getCollection(collection).getActiveSlices()) {
+      for (Replica replica : slice.getReplicas()) {
+        if (replica.isActive(state.getLiveNodes())) active++;
+      }
+    }
+    return active;
+  }
+
+  /**
+   * @return the number of replicas, or of those on {@code nodeName} if not null
+   */
+  private static int countReplicas(DocCollection coll, String nodeName) {
+    int count = 0;
+    for (Slice slice : coll.getActiveSlices()) {
+      for (Replica replica : slice.getReplicas()) {
+        if (nodeName == null || nodeName.equals(replica.getNodeName())) count++;
+      }
+    }
+    return count;
+  }
+
+  private Window window(long startNanos) {
+    return windows.computeIfAbsent(TimeUnit.NANOSECONDS.toSeconds(startNanos - this.startNanos), s -> new Window());
+  }
+
+  private Void updateLoop() throws InterruptedException {
+    CloudSolrClient client = cluster.getSolrClient();
+    for (long seq = 0; running; seq++) {
+      long start = System.nanoTime();
+      try {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("id", "recovery-" + seq);
+        client.add(collection, doc);
+        window(start).updates.recordSince(start);
+        if (start >= faultNanos) firstUpdateSince.accumulateAndGet(System.nanoTime(), Math::min);
+      } catch (Exception e) {
+        window(start).updates.recordError();
+      }
+      Thread.sleep(updateIntervalMs);
+    }
+    return null;
+  }
+
+  private Void queryLoop() throws InterruptedException {
+    CloudSolrClient client = cluster.getSolrClient();
+    SolrQuery query = new SolrQuery("*:*").setRows(0);
+    while (running) {
+      long start = System.nanoTime();
+      try {
+        client.query(collection, query);
+        window(start).queries.recordSince(start);
+      } catch (Exception e) {
+        window(start).queries.recordError();
+      }
+      Thread.sleep(queryIntervalMs);
+    }
+    return null;
+  }
+
+  /**
+   * @return client operations per second of the last run, keyed by second since its start
+   */
+  public SortedMap<Long, Window> getWindows() {
+    return Collections.unmodifiableSortedMap(windows);
+  }
+
+  /**
+   * Write the per-second client statistics of the last run as CSV
+   */
+  public void writeCsv(Writer out) throws IOException {
+    out.write("second,updates,update_errors,update_p99_ms,update_max_ms,queries,query_errors,query_p99_ms,query_max_ms\n");
+    for (Map.Entry<Long, Window> entry : windows.entrySet()) {
+      Window w = entry.getValue();
+      out.write(String.format(Locale.ROOT, "%d,%d,%d,%.2f,%.2f,%d,%d,%.2f,%.2f%n", entry.getKey(),
+          w.updates.getCount(), w.updates.getErrors(), w.updates.percentileMs(0.99), w.updates.getSnapshot().getMax() / 1e6,
+          w.queries.getCount(), w.queries.getErrors(), w.queries.percentileMs(0.99), w.queries.getSnapshot().getMax() / 1e6));
+    }
+    out.flush();
+  }
+}
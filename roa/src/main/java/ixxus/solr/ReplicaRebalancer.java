@@ -0,0 +1,220 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.CollectionAdminRequest;
+import org.apache.solr.common.cloud.ClusterState;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.ZkStateReader;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.SolrjNamedThreadFactory;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves replicas between the live nodes of a {@link MicroSolrCloudCluster} so that every node
+ * hosts the same number of replicas (give or take one), optionally draining a set of nodes first.
+ * <p>
+ * A move is an ADDREPLICA on the target node followed, once the new replica is active, by a
+ * DELETEREPLICA of the source. Moves run in parallel up to a concurrency limit. The bytes moved are
+ * read from the source cores in-process, so moves are not supported with forked nodes.
+ */
+class ReplicaRebalancer {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  static final class Move {
+    final String collection;
+    final String shard;
+    final Replica source;
+    final String targetNode;
+
+    Move(String collection, String shard, Replica source, String targetNode) {
+      this.collection = collection;
+      this.shard = shard;
+      this.source = source;
+      this.targetNode = targetNode;
+    }
+
+    @Override
+    public String toString() {
+      return collection + "/" + shard + "/" + source.getName() + ": " + source.getNodeName() + " -> " + targetNode;
+    }
+  }
+
+  private final MicroSolrCloudCluster cluster;
+  private final int maxConcurrentMoves;
+  private final long moveTimeoutMs;
+
+  ReplicaRebalancer(MicroSolrCloudCluster cluster, int maxConcurrentMoves, long moveTimeoutMs) {
+    if (maxConcurrentMoves <= 0) {
+      throw new IllegalArgumentException("maxConcurrentMoves must be positive: " + maxConcurrentMoves);
+    }
+    this.cluster = cluster;
+    this.maxConcurrentMoves = maxConcurrentMoves;
+    this.moveTimeoutMs = moveTimeoutMs;
+  }
+
+  /**
+   * Plan the moves that empty {@code drainNodes} and level out the replica count over {@code targetNodes}.
+   * No move puts two replicas of the same shard on one node.
+   */
+  static List<Move> plan(ClusterState state, Set<String> targetNodes, Set<String> drainNodes) {
+    Map<String, List<Replica>> byNode = new HashMap<>();
+    Map<Replica, String[]> owners = new HashMap<>();
+    for (String node : targetNodes) {
+      byNode.put(node, new ArrayList<>());
+    }
+    for (Map.Entry<String, DocCollection> entry : state.getCollectionsMap().entrySet()) {
+      for (Slice slice : entry.getValue().getSlices()) {
+        for (Replica replica : slice.getReplicas()) {
+          owners.put(replica, new String[]{entry.getKey(), slice.getName()});
+          List<Replica> hosted = byNode.get(replica.getNodeName());
+          if (hosted != null) hosted.add(replica);
+        }
+      }
+    }
+
+    // shard -> nodes hosting it, kept up to date as moves are planned
+    Map<String, Set<String>> shardNodes = new HashMap<>();
+    for (Map.Entry<Replica, String[]> entry : owners.entrySet()) {
+      shardNodes.computeIfAbsent(key(entry.getValue()), k -> new HashSet<>()).add(entry.getKey().getNodeName());
+    }
+
+    List<Move> moves = new ArrayList<>();
+    for (Map.Entry<Replica, String[]> entry : owners.entrySet()) {
+      Replica replica = entry.getKey();
+      if (!drainNodes.contains(replica.getNodeName())) continue;
+      String[] owner = entry.getValue();
+      Set<String> hosting = shardNodes.get(key(owner));
+      String target = leastLoaded(byNode, hosting);
+      if (target == null) {
+        throw new IllegalStateException("No node left to take a replica of " + key(owner));
+      }
+      hosting.add(target);
+      byNode.get(target).add(replica);
+      moves.add(new Move(owner[0], owner[1], replica, target));
+    }
+
+    while (true) {
+      String most = null, least = null;
+      for (Map.Entry<String, List<Replica>> entry : byNode.entrySet()) {
+        if (most == null || entry.getValue().size() > byNode.get(most).size()) most = entry.getKey();
+        if (least == null || entry.getValue().size() < byNode.get(least).size()) least = entry.getKey();
+      }
+      if (most == null || byNode.get(most).size() - byNode.get(least).size() <= 1) break;
+      Replica candidate = null;
+      for (Replica replica : byNode.get(most)) {
+        // only replicas still on their original node; a planned target is not a source
+        if (replica.getNodeName().equals(most) && !shardNodes.get(key(owners.get(replica))).contains(least)) {
+          candidate = replica;
+          break;
+        }
+      }
+      if (candidate == null) break;
+      String[] owner = owners.get(candidate);
+      shardNodes.get(key(owner)).remove(most);
+      shardNodes.get(key(owner)).add(least);
+      byNode.get(most).remove(candidate);
+      byNode.get(least).add(candidate);
+      moves.add(new Move(owner[0], owner[1], candidate, least));
+    }
+    return moves;
+  }
+
+  private static String key(String[] owner) {
+    return owner[0] + "/" + owner[1];
+  }
+
+  private static String leastLoaded(Map<String, List<Replica>> byNode, Set<String> excluded) {
+    String best = null;
+    for (Map.Entry<String, List<Replica>> entry : byNode.entrySet()) {
+      if (excluded.contains(entry.getKey())) continue;
+      if (best == null || entry.getValue().size() < byNode.get(best).size()) best = entry.getKey();
+    }
+    return best;
+  }
+
+  /**
+   * Execute the moves, at most {@code maxConcurrentMoves} at a time
+   *
+   * @param report receives the number of moves and the index bytes copied
+   */
+  void execute(List<Move> moves, ScalingReport report) throws Exception {
+    if (moves.isEmpty()) return;
+    AtomicLong bytes = new AtomicLong();
+    ExecutorService executor = ExecutorUtil.newMDCAwareFixedThreadPool(maxConcurrentMoves,
+        new SolrjNamedThreadFactory("replica-mover"));
+    try {
+      List<Future<?>> futures = new ArrayList<>(moves.size());
+      for (Move move : moves) {
+        futures.add(executor.submit(() -> {
+          bytes.addAndGet(move(move));
+          return null;
+        }));
+      }
+      Exception error = null;
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          if (error == null) error = new Exception("Error moving replicas");
+          error.addSuppressed(e.getCause());
+        }
+      }
+      if (error != null) throw error;
+    } finally {
+      ExecutorUtil.shutdownAndAwaitTermination(executor);
+    }
+    report.replicasMoved += moves.size();
+    report.bytesMoved += bytes.get();
+  }
+
+  private long move(Move move) throws Exception {
+    log.info("Moving replica {}", move);
+    long size = indexSize(move.source);
+    CloudSolrClient client = cluster.getSolrClient();
+    CollectionAdminRequest.addReplicaToShard(move.collection, move.shard)
+        .setNode(move.targetNode)
+        .process(client);
+    ZkStateReader reader = client.getZkStateReader();
+    reader.waitForState(move.collection, moveTimeoutMs, TimeUnit.MILLISECONDS, (liveNodes, coll) -> {
+      if (coll == null) return false;
+      Slice slice = coll.getSlice(move.shard);
+      if (slice == null) return false;
+      for (Replica replica : slice.getReplicas()) {
+        if (move.targetNode.equals(replica.getNodeName()) && replica.isActive(liveNodes)) return true;
+      }
+      return false;
+    });
+    CollectionAdminRequest.deleteReplica(move.collection, move.shard, move.source.getName())
+        .process(client);
+    return size;
+  }
+
+  /**
+   * @return the index size of the replica's core, read in-process, or 0 if the core is not loaded
+   */
+  private long indexSize(Replica replica) {
+    for (JettySolrRunner jetty : cluster.getJettySolrRunners()) {
+      if (!replica.getNodeName().equals(jetty.getNodeName())) continue;
+      CoreContainer cores = jetty.getCoreContainer();
+      if (cores == null) {
+        throw new IllegalStateException("Moving replicas is not supported with forked nodes");
+      }
+      try (SolrCore core = cores.getCore(replica.getCoreName())) {
+        return core == null ? 0 : core.getIndexSize();
+      }
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,169 @@
+package ixxus.solr;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Self-check of the {@link RequestCaptureLog} format and of which requests {@link RequestCaptureFilter}
+ * leaves out, runnable with {@code main} as the project has no test tree: records read back
+ * byte-for-byte, across region boundaries, while the log is still open, and up to a record cut short.
+ * Prints OK or throws.
+ *
+ * @see #main(String[])
+ */
+class RequestCaptureCheck {
+
+  // small regions, so a few kilobytes of records cross several boundaries
+  private static final int REGION_BYTES = 4096;
+
+  private static class Expected {
+    final long arrivalNanos;
+    final String method;
+    final String path;
+    final String query;
+    final String contentType;
+    final byte[] body;
+
+    Expected(long arrivalNanos, String method, String path, String query, String contentType, byte[] body) {
+      this.arrivalNanos = arrivalNanos;
+      this.method = method;
+      this.path = path;
+      this.query = query;
+      this.contentType = contentType;
+      this.body = body;
+    }
+  }
+
+  /**
+   * @param args optionally, the directory to write the logs in; a temporary one by default
+   */
+  public static void main(String[] args) throws Exception {
+    Path dir = args.length > 0 ? Paths.get(args[0]) : Files.createTempDirectory("capture-check");
+    checkRoundTrip(dir.resolve("round-trip.log"));
+    checkTruncated(dir.resolve("truncated.log"));
+    checkIsInternal();
+    System.out.println("OK");
+  }
+
+  private static void checkRoundTrip(Path file) throws IOException {
+    List<Expected> expected = records(new Random(42));
+    List<Expected> beforeClose = expected.subList(0, expected.size() / 2);
+    long start = System.nanoTime();
+    RequestCaptureLog captureLog = RequestCaptureLog.create(file, REGION_BYTES);
+    try {
+      append(captureLog, start, beforeClose);
+      // a reader opened while capturing stops at the end marker
+      verify(file, start, beforeClose);
+      append(captureLog, start, expected.subList(beforeClose.size(), expected.size()));
+    } finally {
+      captureLog.close();
+    }
+    check(captureLog.getRecords() == expected.size(), "record count " + captureLog.getRecords());
+    check(Files.size(file) > 2 * REGION_BYTES, "log did not cross region boundaries: " + Files.size(file));
+    verify(file, start, expected);
+  }
+
+  private static void checkTruncated(Path file) throws IOException {
+    Random random = new Random(7);
+    List<Expected> expected = records(random);
+    // random, so it deflates to about its own size and the cut below stays within it
+    byte[] body = new byte[1000];
+    random.nextBytes(body);
+    expected.add(new Expected(expected.size() * 1_000_000L, "POST", "/collection1/update", null, "application/javabin", body));
+    long start = System.nanoTime();
+    try (RequestCaptureLog captureLog = RequestCaptureLog.create(file, REGION_BYTES)) {
+      append(captureLog, start, expected);
+    }
+    // cut the last record in half, as a crash while appending would
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - body.length / 2);
+    }
+    verify(file, start, expected.subList(0, expected.size() - 1));
+  }
+
+  /**
+   * Requests of every shape: empty and null fields, empty, compressible and random bodies, multi-byte
+   * characters, and bodies larger than a region
+   */
+  private static List<Expected> records(Random random) {
+    List<Expected> records = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      byte[] body;
+      switch (i % 4) {
+        case 0:
+          body = new byte[0];
+          break;
+        case 1:
+          body = ("{\"id\":\"doc" + i + "\",\"title_t\":\"gr\u00fc\u00dfe\"}").getBytes(StandardCharsets.UTF_8);
+          break;
+        case 2:
+          body = new byte[random.nextInt(3 * REGION_BYTES)];
+          random.nextBytes(body);
+          break;
+        default:
+          body = new byte[REGION_BYTES + random.nextInt(REGION_BYTES)];
+          Arrays.fill(body, (byte) 'x');
+      }
+      records.add(new Expected(i * 1_000_000L, i % 2 == 0 ? "GET" : "POST", "/collection1/select",
+          i % 3 == 0 ? null : "q=t%C3%A9st&rows=" + i, body.length == 0 ? null : "application/json", body));
+    }
+    return records;
+  }
+
+  private static void append(RequestCaptureLog captureLog, long start, List<Expected> records) {
+    for (Expected r : records) {
+      captureLog.append(start + r.arrivalNanos, r.method, r.path, r.query, r.contentType, r.body);
+    }
+  }
+
+  private static void verify(Path file, long start, List<Expected> expected) throws IOException {
+    try (RequestCaptureLog.Reader reader = RequestCaptureLog.open(file)) {
+      for (int i = 0; i < expected.size(); i++) {
+        check(reader.hasNext(), file + " ends after " + i + " of " + expected.size() + " records");
+        Expected e = expected.get(i);
+        RequestCaptureLog.CapturedRequest r = reader.next();
+        // the log measures arrival from its own start, a little after ours
+        long offset = r.arrivalNanos - e.arrivalNanos;
+        check(offset <= 0 && offset > start - System.nanoTime(), "arrival of record " + i + ": " + r.arrivalNanos);
+        check(e.method.equals(r.method), "method of record " + i + ": " + r.method);
+        check(e.path.equals(r.path), "path of record " + i + ": " + r.path);
+        check(e.query == null ? r.query == null : e.query.equals(r.query), "query of record " + i + ": " + r.query);
+        check(e.contentType == null ? r.contentType == null : e.contentType.equals(r.contentType),
+            "content type of record " + i + ": " + r.contentType);
+        check(Arrays.equals(e.body, r.body()), "body of record " + i);
+      }
+      check(!reader.hasNext(), file + " has more than " + expected.size() + " records");
+    }
+  }
+
+  private static void checkIsInternal() {
+    byte[] none = new byte[0];
+    String form = "application/x-www-form-urlencoded; charset=UTF-8";
+    check(!RequestCaptureFilter.isInternal("/collection1/select", "q=*:*&distrib=true", null, none), "client query");
+    check(!RequestCaptureFilter.isInternal("/collection1/update", "commit=true", "application/json",
+        "{\"distrib\":\"false\"}".getBytes(StandardCharsets.UTF_8)), "JSON body mentioning distrib");
+    check(!RequestCaptureFilter.isInternal("/admin/collections", "action=CREATE&name=c", null, none), "collection admin");
+    check(RequestCaptureFilter.isInternal("/collection1/select", "q=*:*&distrib=false", null, none), "distrib=false");
+    check(RequestCaptureFilter.isInternal("/collection1/select", null, form,
+        "q=*%3A*&isShard=true&shard.url=x".getBytes(StandardCharsets.UTF_8)), "isShard=true in a form body");
+    check(RequestCaptureFilter.isInternal("/collection1/update", "update.distrib=FROMLEADER&distrib.from=x",
+        "application/javabin", none), "forwarded update");
+    check(RequestCaptureFilter.isInternal("/admin/cores", "action=STATUS", null, none), "core admin");
+    check(RequestCaptureFilter.isInternal("/collection1/replication", "command=indexversion", null, none), "replication");
+  }
+
+  private static void check(boolean condition, String what) {
+    if (!condition) {
+      throw new IllegalStateException("Request capture check failed: " + what);
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package ixxus.solr;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+/**
+ * Records every client request a node receives into the {@link RequestCaptureLog} named by the node
+ * property {@value #LOG_PROPERTY}, before Solr handles it; without the property it does nothing.
+ * Requests nodes send each other are not recorded, since replaying the client requests makes the
+ * nodes send them again: shard requests ({@code distrib=false}, {@code isShard=true}), forwarded
+ * updates ({@code update.distrib}), core admin and replication. Request bodies are read ahead and
+ * handed on to Solr from memory. Enable it for a whole cluster with
+ * {@link MicroSolrClusterBuilder#withRequestCapture(java.nio.file.Path)}.
+ */
+public class RequestCaptureFilter implements Filter {
+
+  /**
+   * Node property holding the absolute path of the log to capture into
+   */
+  public static final String LOG_PROPERTY = "roa.capture.log";
+
+  private static final byte[] NO_BODY = new byte[0];
+
+  private String logPath;
+
+  @Override
+  public void init(FilterConfig filterConfig) {
+    // JettySolrRunner publishes the node properties as this context attribute
+    Properties properties = (Properties) filterConfig.getServletContext().getAttribute("solr.properties");
+    logPath = properties == null ? null : properties.getProperty(LOG_PROPERTY);
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+    RequestCaptureLog captureLog = logPath == null ? null : RequestCaptureLog.forPath(logPath);
+    if (captureLog == null || !(request instanceof HttpServletRequest)) {
+      chain.doFilter(request, response);
+      return;
+    }
+    long arrival = System.nanoTime();
+    HttpServletRequest http = (HttpServletRequest) request;
+    byte[] body = NO_BODY;
+    if (http.getContentLengthLong() != 0 && !"GET".equals(http.getMethod())) {
+      body = readFully(http.getInputStream());
+      request = new BufferedBodyRequest(http, body);
+    }
+    String path = http.getRequestURI().substring(http.getContextPath().length());
+    if (!isInternal(path, http.getQueryString(), http.getContentType(), body)) {
+      captureLog.append(arrival, http.getMethod(), path, http.getQueryString(), http.getContentType(), body);
+    }
+    chain.doFilter(request, response);
+  }
+
+  /**
+   * Whether a node sent the request to another node. Parameters are read from the query string and a
+   * form body rather than with {@link ServletRequest#getParameter(String)}, which would consume the
+   * body before Solr sees it; shard queries are POSTed as forms.
+   */
+  static boolean isInternal(String path, String query, String contentType, byte[] body) {
+    if (path.startsWith("/admin/cores") || path.contains("/replication")) return true;
+    if (hasInternalParam(query)) return true;
+    return contentType != null && contentType.startsWith("application/x-www-form-urlencoded")
+        && hasInternalParam(new String(body, StandardCharsets.UTF_8));
+  }
+
+  private static boolean hasInternalParam(String params) {
+    if (params == null || params.isEmpty()) return false;
+    for (String pair : params.split("&")) {
+      int eq = pair.indexOf('=');
+      String name = decode(eq < 0 ? pair : pair.substring(0, eq));
+      String value = eq < 0 ? "" : decode(pair.substring(eq + 1));
+      if ("update.distrib".equals(name)
+          || "distrib".equals(name) && "false".equals(value)
+          || "isShard".equals(name) && "true".equals(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String decode(String s) {
+    try {
+      return URLDecoder.decode(s, "UTF-8");
+    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+      return s;
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  @Override
+  public void destroy() {
+  }
+
+  /**
+   * A request whose body has been read already and is served from memory
+   */
+  private static class BufferedBodyRequest extends HttpServletRequestWrapper {
+    private final byte[] body;
+
+    BufferedBodyRequest(HttpServletRequest request, byte[] body) {
+      super(request);
+      this.body = body;
+    }
+
+    @Override
+    public int getContentLength() {
+      return body.length;
+    }
+
+    @Override
+    public long getContentLengthLong() {
+      return body.length;
+    }
+
+    @Override
+    public ServletInputStream getInputStream() {
+      ByteArrayInputStream in = new ByteArrayInputStream(body);
+      return new ServletInputStream() {
+        @Override
+        public boolean isFinished() {
+          return in.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+          return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+          throw new UnsupportedOperationException("Buffered request bodies are read synchronously");
+        }
+
+        @Override
+        public int read() {
+          return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+          return in.read(b, off, len);
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,315 @@
+package ixxus.solr;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An append-only, memory-mapped binary log of HTTP requests, written by {@link RequestCaptureFilter}
+ * and read back with {@link #open(Path)}.
+ * <p>
+ * The file starts with a magic number and the wall-clock time capture started, followed by one record
+ * per request: its length, the nanoseconds since capture started, method, path below the context,
+ * query string and content type as length-prefixed UTF-8, and the body, deflated. Appending copies a
+ * record into the mapped region under a short lock, mapping the next region as the file grows; a
+ * zero length marks the end. The file is trimmed to its content on {@link #close()}.
+ */
+public class RequestCaptureLog implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private static final long MAGIC = 0x524f414341505631L; // "ROACAPV1"
+  private static final int HEADER_BYTES = 16;
+  private static final int REGION_BYTES = 64 << 20;
+
+  // open logs by absolute path, for the filters of the nodes writing to them
+  private static final Map<String, RequestCaptureLog> OPEN = new ConcurrentHashMap<>();
+
+  /**
+   * One captured request
+   */
+  public static class CapturedRequest {
+    /**
+     * nanoseconds from the start of capture to the arrival of the request
+     */
+    public final long arrivalNanos;
+    public final String method;
+    /**
+     * the path below the context, e.g. {@code /collection1/select}
+     */
+    public final String path;
+    public final String query;
+    public final String contentType;
+    private final int bodyLength;
+    private final byte[] compressedBody;
+
+    CapturedRequest(long arrivalNanos, String method, String path, String query, String contentType,
+                    int bodyLength, byte[] compressedBody) {
+      this.arrivalNanos = arrivalNanos;
+      this.method = method;
+      this.path = path;
+      this.query = query;
+      this.contentType = contentType;
+      this.bodyLength = bodyLength;
+      this.compressedBody = compressedBody;
+    }
+
+    /**
+     * @return the request body, empty if there was none
+     */
+    public byte[] body() {
+      byte[] body = new byte[bodyLength];
+      if (bodyLength == 0) return body;
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(compressedBody);
+        int n = 0;
+        while (n < bodyLength && !inflater.finished()) {
+          n += inflater.inflate(body, n, bodyLength - n);
+        }
+        return body;
+      } catch (DataFormatException e) {
+        throw new IllegalStateException("Corrupt request body in capture log", e);
+      } finally {
+        inflater.end();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return method + " " + path + (query == null ? "" : "?" + query) + " (" + bodyLength + " bytes)";
+    }
+  }
+
+  private final Path file;
+  private final int regionBytes;
+  private final FileChannel channel;
+  private final long startNanos = System.nanoTime();
+  private MappedByteBuffer region;
+  private long regionStart;
+  private long records;
+  private boolean closed;
+
+  private RequestCaptureLog(Path file, int regionBytes) throws IOException {
+    this.file = file;
+    this.regionBytes = regionBytes;
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.region = channel.map(FileChannel.MapMode.READ_WRITE, 0, regionBytes);
+    region.putLong(MAGIC);
+    region.putLong(System.currentTimeMillis());
+  }
+
+  /**
+   * Create, or truncate, a log and make it available to {@link #forPath(String)}
+   */
+  public static RequestCaptureLog create(Path file) throws IOException {
+    return create(file, REGION_BYTES);
+  }
+
+  /**
+   * Create a log mapped {@code regionBytes} at a time, so {@link RequestCaptureCheck} can cross region
+   * boundaries without writing 64 MB
+   */
+  static RequestCaptureLog create(Path file, int regionBytes) throws IOException {
+    if (regionBytes < HEADER_BYTES + 4) {
+      throw new IllegalArgumentException("Region too small for the header: " + regionBytes);
+    }
+    String key = file.toAbsolutePath().toString();
+    RequestCaptureLog captureLog = new RequestCaptureLog(file, regionBytes);
+    if (OPEN.putIfAbsent(key, captureLog) != null) {
+      captureLog.close();
+      throw new IllegalStateException("Already capturing into " + file);
+    }
+    return captureLog;
+  }
+
+  /**
+   * @return the open log of this path, or null
+   */
+  static RequestCaptureLog forPath(String path) {
+    return OPEN.get(path);
+  }
+
+  public Path getFile() {
+    return file;
+  }
+
+  public synchronized long getRecords() {
+    return records;
+  }
+
+  /**
+   * Append one request; thread-safe, and a no-op once the log is closed
+   *
+   * @param arrivalNanos the {@link System#nanoTime()} the request arrived at
+   * @param body         the request body, may be empty
+   */
+  public void append(long arrivalNanos, String method, String path, String query, String contentType, byte[] body) {
+    byte[] compressed = deflate(body);
+    byte[][] strings = {utf8(method), utf8(path), utf8(query), utf8(contentType)};
+    int length = 8 + 4 + 4 + compressed.length;
+    for (byte[] s : strings) length += 4 + (s == null ? 0 : s.length);
+    ByteBuffer record = ByteBuffer.allocate(4 + length);
+    record.putInt(length);
+    record.putLong(arrivalNanos - startNanos);
+    for (byte[] s : strings) {
+      record.putInt(s == null ? -1 : s.length);
+      if (s != null) record.put(s);
+    }
+    record.putInt(body.length);
+    record.putInt(compressed.length);
+    record.put(compressed);
+    record.flip();
+
+    synchronized (this) {
+      if (closed) return;
+      try {
+        // keep four zero bytes after every record as the end marker
+        if (region.remaining() < record.remaining() + 4) {
+          regionStart += region.position();
+          region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.max(regionBytes, record.remaining() + 4));
+        }
+      } catch (IOException e) {
+        log.warn("Could not grow capture log {}, dropping request", file, e);
+        return;
+      }
+      region.put(record);
+      records++;
+    }
+  }
+
+  private static byte[] utf8(String s) {
+    return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] deflate(byte[] body) {
+    if (body.length == 0) return body;
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(body);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Stop capturing, flush the log to disk and trim it to its content
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    OPEN.remove(file.toAbsolutePath().toString(), this);
+    region.force();
+    channel.truncate(regionStart + region.position());
+    channel.close();
+    log.info("Captured {} requests into {}", records, file);
+  }
+
+  /**
+   * Read a log, also while it is being written; the reader sees the records appended before it opened
+   */
+  public static Reader open(Path file) throws IOException {
+    return new Reader(file);
+  }
+
+  /**
+   * Iterates the records of a log, in arrival order. Logs are mapped whole, so must be under 2 GB.
+   */
+  public static class Reader implements Iterator<CapturedRequest>, Closeable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    /**
+     * wall-clock time capture started, in epoch milliseconds
+     */
+    public final long startedAt;
+    private CapturedRequest next;
+
+    private Reader(Path file) throws IOException {
+      this.channel = FileChannel.open(file, StandardOpenOption.READ);
+      if (channel.size() > Integer.MAX_VALUE) {
+        channel.close();
+        throw new IOException("Capture log " + file + " is too large to map");
+      }
+      this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < HEADER_BYTES || buffer.getLong() != MAGIC) {
+        channel.close();
+        throw new IOException(file + " is not a request capture log");
+      }
+      this.startedAt = buffer.getLong();
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next == null) next = readNext();
+      return next != null;
+    }
+
+    @Override
+    public CapturedRequest next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      CapturedRequest request = next;
+      next = null;
+      return request;
+    }
+
+    private CapturedRequest readNext() {
+      if (buffer.remaining() < 4) return null;
+      int length = buffer.getInt();
+      if (length <= 0 || buffer.remaining() < length) return null;
+      try {
+        long arrival = buffer.getLong();
+        String method = string();
+        String path = string();
+        String query = string();
+        String contentType = string();
+        int bodyLength = buffer.getInt();
+        byte[] compressed = new byte[buffer.getInt()];
+        buffer.get(compressed);
+        return new CapturedRequest(arrival, method, path, query, contentType, bodyLength, compressed);
+      } catch (BufferUnderflowException e) {
+        // a record cut short by a crash
+        return null;
+      }
+    }
+
+    private String string() {
+      int length = buffer.getInt();
+      if (length < 0) return null;
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
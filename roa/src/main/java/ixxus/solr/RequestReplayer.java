@@ -0,0 +1,171 @@
+package ixxus.solr;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.SolrjNamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a {@link RequestCaptureLog} against the running nodes of a cluster, round-robin, keeping the
+ * recorded spacing between requests scaled by a speed factor. Requests are sent without waiting for
+ * earlier responses, up to a concurrency limit; when the limit holds requests back, the lag behind
+ * the schedule is reported.
+ */
+public class RequestReplayer {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * Outcome of a replay
+   */
+  public static class Report {
+    public long sent;
+    /**
+     * requests that failed or were answered with a status of 400 or above
+     */
+    public long errors;
+    public final LatencyStats latency = new LatencyStats();
+    /**
+     * the most a request was sent after its scheduled time
+     */
+    public long maxLagMs;
+    public long durationMs;
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT, "sent=%d errors=%d maxLagMs=%d durationMs=%d latency: %s",
+          sent, errors, maxLagMs, durationMs, latency);
+    }
+  }
+
+  private final MicroSolrCloudCluster cluster;
+  private double speed = 1.0;
+  private int maxConcurrency = 64;
+
+  public RequestReplayer(MicroSolrCloudCluster cluster) {
+    this.cluster = Objects.requireNonNull(cluster);
+  }
+
+  /**
+   * Scale the recorded spacing: 2 replays twice as fast, 0.5 at half speed, and
+   * {@link Double#POSITIVE_INFINITY} as fast as the concurrency limit allows. 1 (the default) keeps
+   * the original timing.
+   */
+  public RequestReplayer withSpeed(double speed) {
+    if (!(speed > 0)) {
+      throw new IllegalArgumentException("Speed must be positive: " + speed);
+    }
+    this.speed = speed;
+    return this;
+  }
+
+  /**
+   * How many requests may be outstanding at once, 64 by default
+   */
+  public RequestReplayer withMaxConcurrency(int maxConcurrency) {
+    this.maxConcurrency = maxConcurrency;
+    return this;
+  }
+
+  /**
+   * Replay every request of {@code logFile} and wait for all responses
+   */
+  public Report replay(Path logFile) throws Exception {
+    List<String> baseUrls = new ArrayList<>();
+    for (JettySolrRunner jetty : cluster.getJettySolrRunners()) {
+      if (jetty.isRunning()) baseUrls.add(jetty.getBaseUrl().toString());
+    }
+    if (baseUrls.isEmpty()) {
+      throw new IllegalStateException("No running node to replay against");
+    }
+    HttpClient httpClient = cluster.getSolrClient().getLbClient().getHttpClient();
+    Report report = new Report();
+    AtomicLong errors = new AtomicLong();
+    Semaphore permits = new Semaphore(maxConcurrency);
+    ExecutorService executor = ExecutorUtil.newMDCAwareCachedThreadPool(new SolrjNamedThreadFactory("request-replay"));
+    long start = System.nanoTime();
+    try (RequestCaptureLog.Reader reader = RequestCaptureLog.open(logFile)) {
+      int next = 0;
+      while (reader.hasNext()) {
+        RequestCaptureLog.CapturedRequest captured = reader.next();
+        long due = start + (long) (captured.arrivalNanos / speed);
+        long wait = due - System.nanoTime();
+        if (wait > 0) LockSupport.parkNanos(wait);
+        permits.acquire();
+        report.maxLagMs = Math.max(report.maxLagMs, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - due));
+        HttpRequestBase request = toHttpRequest(baseUrls.get(next++ % baseUrls.size()), captured);
+        report.sent++;
+        executor.execute(() -> {
+          long sentAt = System.nanoTime();
+          try {
+            HttpResponse response = httpClient.execute(request);
+            EntityUtils.consumeQuietly(response.getEntity());
+            if (response.getStatusLine().getStatusCode() >= 400) {
+              errors.incrementAndGet();
+            }
+            report.latency.recordSince(sentAt);
+          } catch (Exception e) {
+            log.debug("Replaying {} failed", captured, e);
+            errors.incrementAndGet();
+            report.latency.recordError();
+          } finally {
+            permits.release();
+          }
+        });
+      }
+      permits.acquire(maxConcurrency);
+    } finally {
+      ExecutorUtil.shutdownAndAwaitTermination(executor);
+    }
+    report.errors = errors.get();
+    report.durationMs = MicroSolrCloudCluster.elapsedMs(start);
+    log.info("Replayed {}: {}", logFile, report);
+    return report;
+  }
+
+  private static HttpRequestBase toHttpRequest(String baseUrl, RequestCaptureLog.CapturedRequest captured) {
+    URI uri = URI.create(baseUrl + captured.path + (captured.query == null ? "" : "?" + captured.query));
+    byte[] body = captured.body();
+    if (body.length == 0) {
+      HttpRequestBase request = new HttpRequestBase() {
+        @Override
+        public String getMethod() {
+          return captured.method;
+        }
+      };
+      request.setURI(uri);
+      return request;
+    }
+    HttpEntityEnclosingRequestBase request = new HttpEntityEnclosingRequestBase() {
+      @Override
+      public String getMethod() {
+        return captured.method;
+      }
+    };
+    request.setURI(uri);
+    request.setEntity(captured.contentType == null ? new ByteArrayEntity(body)
+        : new ByteArrayEntity(body, ContentType.parse(captured.contentType)));
+    return request;
+  }
+}
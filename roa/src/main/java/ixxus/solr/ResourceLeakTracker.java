@@ -0,0 +1,222 @@
+package ixxus.solr;
+
+import org.apache.solr.common.util.SolrjNamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically samples JVM resources that leak slowly over long runs, and flags those that grow
+ * steadily:
+ * <ul>
+ * <li>live threads per pool, {@code threads.<pool>}, where a pool is the thread name with its numbers
+ * replaced by {@code #}, e.g. {@code threads.jetty-launcher-#-thread-#}</li>
+ * <li>open file descriptors, {@code fds.open}, on Unix JVMs</li>
+ * <li>direct and mapped buffers, {@code buffers.<pool>.count} and {@code buffers.<pool>.bytes}</li>
+ * <li>heap in use after a requested full GC, {@code heap.afterGc}</li>
+ * <li>the size of the embedded ZooKeeper data dir, {@code zk.dataDir.bytes}</li>
+ * </ul>
+ * All nodes share the JVM, so these are cluster-wide figures. A resource is flagged as growing when,
+ * over the last samples of the growth window, every value of the newer half is above every value of
+ * the older half; that ignores the saw-tooth of pools that grow and shrink with load.
+ */
+public class ResourceLeakTracker implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * The value of every resource at one point in time
+   */
+  public static class Sample {
+    public final long timestamp;
+    public final Map<String, Long> values;
+
+    Sample(long timestamp, Map<String, Long> values) {
+      this.timestamp = timestamp;
+      this.values = Collections.unmodifiableMap(values);
+    }
+  }
+
+  /**
+   * A resource that grew steadily over the growth window
+   */
+  public static class Growth {
+    public final String resource;
+    public final long from;
+    public final long to;
+    public final long overMs;
+
+    Growth(String resource, long from, long to, long overMs) {
+      this.resource = resource;
+      this.from = from;
+      this.to = to;
+      this.overMs = overMs;
+    }
+
+    @Override
+    public String toString() {
+      return resource + " " + from + " -> " + to + " over " + overMs + " ms";
+    }
+  }
+
+  private final MicroSolrCloudCluster cluster;
+  private final RingBuffer<Sample> samples;
+  private final long intervalMs;
+  private int growthWindow = 10;
+  private boolean gcBeforeHeapSample = true;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * @param cluster    the cluster whose JVM and ZooKeeper to sample
+   * @param capacity   the number of samples retained
+   * @param intervalMs the sampling interval in milliseconds
+   */
+  public ResourceLeakTracker(MicroSolrCloudCluster cluster, int capacity, long intervalMs) {
+    this.cluster = Objects.requireNonNull(cluster);
+    this.samples = new RingBuffer<>(capacity);
+    this.intervalMs = intervalMs;
+  }
+
+  /**
+   * Judge growth over the last {@code samples} samples, 10 by default
+   */
+  public ResourceLeakTracker withGrowthWindow(int samples) {
+    if (samples < 2 || samples > this.samples.getCapacity()) {
+      throw new IllegalArgumentException("Growth window must be between 2 and the capacity "
+          + this.samples.getCapacity() + ": " + samples);
+    }
+    this.growthWindow = samples;
+    return this;
+  }
+
+  /**
+   * Whether to request a full GC before sampling the heap, true by default. Without it the heap
+   * figure is the current usage, garbage included, and too noisy to judge growth on.
+   */
+  public ResourceLeakTracker withGcBeforeHeapSample(boolean gcBeforeHeapSample) {
+    this.gcBeforeHeapSample = gcBeforeHeapSample;
+    return this;
+  }
+
+  /**
+   * Start sampling in the background
+   */
+  public synchronized ResourceLeakTracker start() {
+    if (scheduler != null) {
+      throw new IllegalStateException("Resource leak tracker already started");
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(new SolrjNamedThreadFactory("resource-tracker"));
+    scheduler.scheduleAtFixedRate(this::sampleQuietly, 0, intervalMs, TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  /**
+   * Stop sampling; the samples collected so far remain available
+   */
+  @Override
+  public synchronized void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  private void sampleQuietly() {
+    try {
+      sample();
+    } catch (Exception e) {
+      log.warn("Error sampling resources", e);
+    }
+  }
+
+  /**
+   * Take one sample now
+   */
+  public void sample() {
+    Map<String, Long> values = new TreeMap<>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      values.merge("threads." + poolName(thread.getName()), 1L, Long::sum);
+    }
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+      values.put("fds.open", ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount());
+    }
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      values.put("buffers." + pool.getName() + ".count", pool.getCount());
+      values.put("buffers." + pool.getName() + ".bytes", pool.getMemoryUsed());
+    }
+    values.put("heap.afterGc", gcBeforeHeapSample ? HeapUsage.usedAfterGc()
+        : ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+    ZkTestServer zkServer = cluster.getZkServer();
+    if (zkServer != null && zkServer.getZkDir() != null) {
+      values.put("zk.dataDir.bytes", ZkTestServer.sizeOf(new File(zkServer.getZkDir())));
+    }
+    samples.add(new Sample(System.currentTimeMillis(), values));
+  }
+
+  /**
+   * @return the pool a thread belongs to: its name with every run of digits replaced by {@code #}
+   */
+  static String poolName(String threadName) {
+    return threadName.replaceAll("[0-9]+", "#");
+  }
+
+  /**
+   * @return the retained samples, oldest first
+   */
+  public List<Sample> getSamples() {
+    return samples.snapshot();
+  }
+
+  /**
+   * @return the resources that grew steadily over the growth window, see the class documentation
+   */
+  public List<Growth> getGrowth() {
+    List<Sample> all = samples.snapshot();
+    List<Growth> growth = new ArrayList<>();
+    if (all.size() < growthWindow) return growth;
+    List<Sample> window = all.subList(all.size() - growthWindow, all.size());
+    Sample first = window.get(0);
+    Sample last = window.get(window.size() - 1);
+    int half = window.size() / 2;
+    for (String resource : last.values.keySet()) {
+      long olderMax = Long.MIN_VALUE;
+      long newerMin = Long.MAX_VALUE;
+      for (int i = 0; i < window.size(); i++) {
+        long value = window.get(i).values.getOrDefault(resource, 0L);
+        if (i < half) olderMax = Math.max(olderMax, value);
+        else newerMin = Math.min(newerMin, value);
+      }
+      if (newerMin > olderMax) {
+        growth.add(new Growth(resource, first.values.getOrDefault(resource, 0L), last.values.get(resource),
+            last.timestamp - first.timestamp));
+      }
+    }
+    return growth;
+  }
+
+  /**
+   * Write the retained samples as CSV, one row per sample and resource
+   */
+  public void writeCsv(Writer out) throws IOException {
+    out.write("timestamp,resource,value\n");
+    for (Sample s : samples.snapshot()) {
+      for (Map.Entry<String, Long> entry : s.values.entrySet()) {
+        out.write(s.timestamp + "," + entry.getKey() + "," + entry.getValue() + "\n");
+      }
+    }
+    out.flush();
+  }
+}
@@ -0,0 +1,67 @@
+package ixxus.solr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A fixed-capacity buffer that keeps the most recent elements added to it.
+ * Once full, every {@link #add(Object)} overwrites the oldest element, so memory
+ * use is bounded no matter how long the producer runs.
+ *
+ * @param <T> element type
+ */
+public class RingBuffer<T> {
+
+  private final Object[] elements;
+  private long written;
+
+  /**
+   * @param capacity the maximum number of elements kept
+   */
+  public RingBuffer(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    this.elements = new Object[capacity];
+  }
+
+  public synchronized void add(T element) {
+    elements[(int) (written % elements.length)] = element;
+    written++;
+  }
+
+  /**
+   * @return the retained elements, oldest first
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized List<T> snapshot() {
+    int size = size();
+    List<T> result = new ArrayList<>(size);
+    long start = written - size;
+    for (long i = start; i < written; i++) {
+      result.add((T) elements[(int) (i % elements.length)]);
+    }
+    return result;
+  }
+
+  public synchronized int size() {
+    return (int) Math.min(written, elements.length);
+  }
+
+  /**
+   * @return the total number of elements ever added, including overwritten ones
+   */
+  public synchronized long getWritten() {
+    return written;
+  }
+
+  public int getCapacity() {
+    return elements.length;
+  }
+
+  public synchronized void clear() {
+    Arrays.fill(elements, null);
+    written = 0;
+  }
+}
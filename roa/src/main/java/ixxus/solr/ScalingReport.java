@@ -0,0 +1,42 @@
+package ixxus.solr;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of {@link MicroSolrCloudCluster#addNodes(int, int)} and {@link MicroSolrCloudCluster#removeNodes(int, int)}
+ */
+public class ScalingReport {
+
+  /**
+   * names of the nodes started or stopped
+   */
+  public final List<String> nodes = new ArrayList<>();
+  public int replicasMoved;
+  /**
+   * sum of the index sizes of the moved replicas, i.e. the data copied by recovery
+   */
+  public long bytesMoved;
+  /**
+   * time to start (or stop) the nodes and see them in (or gone from) live_nodes
+   */
+  public long nodesMs;
+  /**
+   * time spent moving replicas
+   */
+  public long rebalanceMs;
+  /**
+   * time from the call until the cluster was balanced with every replica active
+   */
+  public long totalMs;
+
+  @Override
+  public String toString() {
+    return "ScalingReport{nodes=" + nodes +
+        ", replicasMoved=" + replicasMoved +
+        ", bytesMoved=" + bytesMoved +
+        ", nodesMs=" + nodesMs +
+        ", rebalanceMs=" + rebalanceMs +
+        ", totalMs=" + totalMs + '}';
+  }
+}
@@ -0,0 +1,347 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.request.CollectionAdminRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.client.solrj.request.schema.SchemaRequest;
+import org.apache.solr.client.solrj.response.schema.SchemaResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.cloud.ZkConfigManager;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Infers the types of unknown fields offline, from a sample of the input, using the same rules as the
+ * {@code add-unknown-fields-to-the-schema} update chain of {@code data_driven_schema_configs}, and adds
+ * them all in a single Schema API call. The bulk load can then use the {@code no-field-guessing} chain,
+ * which avoids a managed-schema write to ZooKeeper and a schema reload on every replica per new field.
+ * <p>
+ * Unlike the chain, which fixes a field's type from the first document that carries it, inference
+ * widens over the whole sample (e.g. long and double values give {@code tdoubles}), so documents
+ * further down the stream are less likely to be rejected. Fields that do not appear in the sample are
+ * still unknown to the schema and make the no-guessing load fail.
+ */
+public class SchemaPreInference {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String NO_GUESSING_CHAIN = "no-field-guessing";
+
+  // FieldNameMutatingUpdateProcessorFactory settings of the chain
+  private static final Pattern FIELD_NAME_PATTERN = Pattern.compile("[^\\w-\\.]");
+  private static final String FIELD_NAME_REPLACEMENT = "_";
+
+  // ParseDateFieldUpdateProcessorFactory formats of the chain
+  private static final String[] DATE_FORMATS = {
+      "yyyy-MM-dd'T'HH:mm:ss.SSSZ", "yyyy-MM-dd'T'HH:mm:ss,SSSZ", "yyyy-MM-dd'T'HH:mm:ss.SSS",
+      "yyyy-MM-dd'T'HH:mm:ss,SSS", "yyyy-MM-dd'T'HH:mm:ssZ", "yyyy-MM-dd'T'HH:mm:ss",
+      "yyyy-MM-dd'T'HH:mmZ", "yyyy-MM-dd'T'HH:mm", "yyyy-MM-dd HH:mm:ss.SSSZ",
+      "yyyy-MM-dd HH:mm:ss,SSSZ", "yyyy-MM-dd HH:mm:ss.SSS", "yyyy-MM-dd HH:mm:ss,SSS",
+      "yyyy-MM-dd HH:mm:ssZ", "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mmZ", "yyyy-MM-dd HH:mm", "yyyy-MM-dd"};
+  private static final List<DateTimeFormatter> DATE_FORMATTERS = new ArrayList<>();
+
+  static {
+    for (String format : DATE_FORMATS) {
+      // Joda's Z accepts both "Z" and "+0000"; java.time needs explicit offset patterns for that
+      String pattern = format.replace("Z", "[XXX][XX]");
+      DATE_FORMATTERS.add(new DateTimeFormatterBuilder()
+          .appendPattern(pattern)
+          .parseDefaulting(ChronoField.HOUR_OF_DAY, 0)
+          .toFormatter(Locale.ROOT));
+    }
+  }
+
+  /**
+   * The value classes distinguished by the typeMapping of AddSchemaFieldsUpdateProcessorFactory,
+   * ordered so that widening moves to a higher ordinal
+   */
+  enum Inferred {
+    BOOLEAN("booleans"), LONG("tlongs"), DOUBLE("tdoubles"), DATE("tdates"), STRING("strings");
+
+    final String fieldType;
+
+    Inferred(String fieldType) {
+      this.fieldType = fieldType;
+    }
+
+    Inferred widen(Inferred other) {
+      if (this == other) return this;
+      if ((this == LONG && other == DOUBLE) || (this == DOUBLE && other == LONG)) return DOUBLE;
+      return STRING;
+    }
+  }
+
+  /**
+   * Outcome of one bulk load
+   */
+  public static class LoadResult {
+    public final String mode;
+    public final long docs;
+    public final long inferenceMs;
+    public final long schemaMs;
+    public final long loadMs;
+
+    LoadResult(String mode, long docs, long inferenceMs, long schemaMs, long loadMs) {
+      this.mode = mode;
+      this.docs = docs;
+      this.inferenceMs = inferenceMs;
+      this.schemaMs = schemaMs;
+      this.loadMs = loadMs;
+    }
+
+    public double loadDocsPerSec() {
+      return loadMs == 0 ? 0 : docs * 1000.0 / loadMs;
+    }
+
+    /**
+     * throughput including sampling and the schema update
+     */
+    public double totalDocsPerSec() {
+      long total = inferenceMs + schemaMs + loadMs;
+      return total == 0 ? 0 : docs * 1000.0 / total;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT, "%s: %d docs, inference %d ms, schema %d ms, load %d ms, %.1f docs/s (%.1f docs/s overall)",
+          mode, docs, inferenceMs, schemaMs, loadMs, loadDocsPerSec(), totalDocsPerSec());
+    }
+  }
+
+  private final Map<String, Inferred> inferred = new LinkedHashMap<>();
+
+  /**
+   * Feed sample documents
+   */
+  public SchemaPreInference sample(Iterator<SolrInputDocument> docs, int maxDocs) {
+    for (int i = 0; i < maxDocs && docs.hasNext(); i++) {
+      sample(docs.next());
+    }
+    return this;
+  }
+
+  public SchemaPreInference sample(SolrInputDocument doc) {
+    for (SolrInputField field : doc) {
+      Inferred type = null;
+      for (Object value : field) {
+        if (value == null || (value instanceof CharSequence && value.toString().trim().isEmpty())) {
+          continue; // RemoveBlankFieldUpdateProcessorFactory
+        }
+        Inferred valueType = infer(value);
+        type = type == null ? valueType : type.widen(valueType);
+      }
+      if (type != null) {
+        inferred.merge(mutateFieldName(field.getName()), type, Inferred::widen);
+      }
+    }
+    return this;
+  }
+
+  static String mutateFieldName(String name) {
+    return FIELD_NAME_PATTERN.matcher(name).replaceAll(FIELD_NAME_REPLACEMENT);
+  }
+
+  static Inferred infer(Object value) {
+    if (value instanceof Boolean) return Inferred.BOOLEAN;
+    if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      return Inferred.LONG;
+    }
+    if (value instanceof Number) return Inferred.DOUBLE;
+    if (value instanceof Date) return Inferred.DATE;
+    if (!(value instanceof CharSequence)) return Inferred.STRING;
+
+    // the Parse*FieldUpdateProcessorFactory sequence: boolean, long, double, date
+    String s = value.toString().trim();
+    if (s.equalsIgnoreCase("true") || s.equalsIgnoreCase("false")) return Inferred.BOOLEAN;
+    try {
+      Long.parseLong(s);
+      return Inferred.LONG;
+    } catch (NumberFormatException e) {
+      // not a long
+    }
+    try {
+      Double.parseDouble(s);
+      return Inferred.DOUBLE;
+    } catch (NumberFormatException e) {
+      // not a double
+    }
+    for (DateTimeFormatter formatter : DATE_FORMATTERS) {
+      try {
+        formatter.parse(s);
+        return Inferred.DATE;
+      } catch (DateTimeParseException e) {
+        // try the next format
+      }
+    }
+    return Inferred.STRING;
+  }
+
+  /**
+   * @return inferred field name to field type, for every sampled field
+   */
+  public Map<String, String> getFieldTypes() {
+    Map<String, String> types = new LinkedHashMap<>();
+    for (Map.Entry<String, Inferred> entry : inferred.entrySet()) {
+      types.put(entry.getKey(), entry.getValue().fieldType);
+    }
+    return types;
+  }
+
+  /**
+   * Add every sampled field that the collection's schema does not already cover, explicitly or through
+   * a dynamic field, in one Schema API call
+   *
+   * @return the names of the fields added
+   */
+  public List<String> apply(SolrClient client, String collection) throws Exception {
+    Set<String> explicit = new HashSet<>();
+    for (Map<String, Object> field : new SchemaRequest.Fields().process(client, collection).getFields()) {
+      explicit.add((String) field.get("name"));
+    }
+    List<String> dynamic = new ArrayList<>();
+    SchemaResponse.DynamicFieldsResponse dynamicFields = new SchemaRequest.DynamicFields().process(client, collection);
+    for (Map<String, Object> field : dynamicFields.getDynamicFields()) {
+      dynamic.add((String) field.get("name"));
+    }
+
+    List<SchemaRequest.Update> updates = new ArrayList<>();
+    List<String> added = new ArrayList<>();
+    for (Map.Entry<String, Inferred> entry : inferred.entrySet()) {
+      String name = entry.getKey();
+      if (explicit.contains(name) || matchesDynamic(name, dynamic)) continue;
+      Map<String, Object> attributes = new LinkedHashMap<>();
+      attributes.put("name", name);
+      attributes.put("type", entry.getValue().fieldType);
+      updates.add(new SchemaRequest.AddField(attributes));
+      added.add(name);
+    }
+    if (!updates.isEmpty()) {
+      NamedList<Object> response = new SchemaRequest.MultiUpdate(updates).process(client, collection).getResponse();
+      Object errors = response.get("errors");
+      if (errors != null) {
+        throw new IllegalStateException("Schema update failed: " + errors);
+      }
+    }
+    log.info("Added {} fields to the schema of {}: {}", added.size(), collection, added);
+    return added;
+  }
+
+  static boolean matchesDynamic(String name, List<String> patterns) {
+    for (String pattern : patterns) {
+      if (pattern.startsWith("*") ? name.endsWith(pattern.substring(1))
+          : pattern.endsWith("*") && name.startsWith(pattern.substring(0, pattern.length() - 1))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Index {@code docs} into {@code collection} in batches, optionally through another update chain
+   *
+   * @return the number of documents sent
+   */
+  static long load(SolrClient client, String collection, Iterator<SolrInputDocument> docs,
+                   int batchSize, String updateChain) throws Exception {
+    long count = 0;
+    List<SolrInputDocument> batch = new ArrayList<>(batchSize);
+    while (docs.hasNext()) {
+      batch.add(docs.next());
+      if (batch.size() == batchSize || !docs.hasNext()) {
+        UpdateRequest request = new UpdateRequest();
+        if (updateChain != null) {
+          ModifiableSolrParams params = new ModifiableSolrParams();
+          params.set("update.chain", updateChain);
+          request.setParams(params);
+        }
+        request.add(batch);
+        request.process(client, collection);
+        count += batch.size();
+        batch.clear();
+      }
+    }
+    client.commit(collection);
+    return count;
+  }
+
+  /**
+   * Load the same documents into two new collections, once through the field guessing chain and once
+   * after pre-inference, and report the throughput of both. Each collection gets its own copy of
+   * {@code configName}, so the fields guessed by the first run are not in the schema of the second and
+   * the base config set stays untouched; collections and copies are deleted afterwards.
+   *
+   * @param docs       supplies the document stream; called once per run and must yield the same documents
+   * @param sampleSize the number of leading documents inference looks at
+   */
+  public static List<LoadResult> compare(MicroSolrCloudCluster cluster, String configName, int numShards,
+                                         int replicationFactor, Supplier<Iterator<SolrInputDocument>> docs,
+                                         int sampleSize, int batchSize) throws Exception {
+    SolrClient client = cluster.getSolrClient();
+    String suffix = Long.toString(System.currentTimeMillis(), 36);
+    List<LoadResult> results = new ArrayList<>();
+
+    String guessing = "guessing_" + suffix;
+    createWithOwnConfig(cluster, guessing, configName, numShards, replicationFactor);
+    try {
+      long start = System.nanoTime();
+      long count = load(client, guessing, docs.get(), batchSize, null);
+      results.add(new LoadResult("field guessing", count, 0, 0, millisSince(start)));
+    } finally {
+      deleteWithOwnConfig(cluster, guessing, configName);
+    }
+
+    String preinferred = "preinferred_" + suffix;
+    createWithOwnConfig(cluster, preinferred, configName, numShards, replicationFactor);
+    try {
+      long start = System.nanoTime();
+      SchemaPreInference inference = new SchemaPreInference().sample(docs.get(), sampleSize);
+      long inferenceMs = millisSince(start);
+      start = System.nanoTime();
+      inference.apply(client, preinferred);
+      long schemaMs = millisSince(start);
+      start = System.nanoTime();
+      long count = load(client, preinferred, docs.get(), batchSize, NO_GUESSING_CHAIN);
+      results.add(new LoadResult("pre-inferred", count, inferenceMs, schemaMs, millisSince(start)));
+    } finally {
+      deleteWithOwnConfig(cluster, preinferred, configName);
+    }
+
+    for (LoadResult result : results) {
+      log.info("{}", result);
+    }
+    return results;
+  }
+
+  private static void createWithOwnConfig(MicroSolrCloudCluster cluster, String collection, String baseConfigName,
+                                          int numShards, int replicationFactor) throws Exception {
+    ConfigSetVariant copy = new ConfigSetVariant(collection);
+    copy.install(cluster.getZkClient(), baseConfigName);
+    CollectionAdminRequest.createCollection(collection, copy.configName(baseConfigName), numShards, replicationFactor)
+        .process(cluster.getSolrClient());
+  }
+
+  private static void deleteWithOwnConfig(MicroSolrCloudCluster cluster, String collection, String baseConfigName)
+      throws Exception {
+    try {
+      CollectionAdminRequest.deleteCollection(collection).process(cluster.getSolrClient());
+    } finally {
+      new ZkConfigManager(cluster.getZkClient()).deleteConfigDir(new ConfigSetVariant(collection).configName(baseConfigName));
+    }
+  }
+
+  private static long millisSince(long startNanos) {
+    return (System.nanoTime() - startNanos) / 1_000_000;
+  }
+}
@@ -0,0 +1,342 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SolrjNamedThreadFactory;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrEventListener;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.ResultContext;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records, for every new searcher opened by any core of a {@link MicroSolrCloudCluster}, when it was
+ * opened, how long each cache took to autowarm, how long the warming queries took and how long it
+ * was until the searcher got registered, i.e. until the commit became visible to queries.
+ * <p>
+ * The probe registers a {@code newSearcher} listener on every core, picking up cores created after it
+ * started. Solr runs that listener on the core's searcher executor after autowarming and after the
+ * listeners from solrconfig.xml, and the probe uses it to replay its own list of warming queries
+ * against the new searcher, timing each one, the same way {@code QuerySenderListener} does. Comparing
+ * autowarm times and warming query times across autowarm counts gives the data to pick them from.
+ */
+public class SearcherWarmupProbe implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private static final String[] CACHES = {"filterCache", "queryResultCache", "documentCache", "fieldValueCache"};
+
+  /**
+   * Warm-up timings of one new searcher
+   */
+  public static class WarmupEvent {
+    public final String nodeName;
+    public final String collection;
+    public final String coreName;
+    public final long openedAt;
+    /**
+     * total autowarm time of all caches, as reported by the searcher
+     */
+    public final long autowarmMs;
+    /**
+     * autowarm time and resulting size of each cache, keyed by cache name
+     */
+    public final Map<String, Long> cacheWarmupMs;
+    public final Map<String, Long> cacheSize;
+    /**
+     * execution time of each replayed warming query, in the order configured
+     */
+    public final long[] warmingQueryMs;
+    /**
+     * time from the searcher being opened until it was registered, or -1 if it never was
+     */
+    private volatile long registerMs = -1;
+
+    WarmupEvent(String nodeName, String collection, String coreName, long openedAt, long autowarmMs,
+                Map<String, Long> cacheWarmupMs, Map<String, Long> cacheSize, long[] warmingQueryMs) {
+      this.nodeName = nodeName;
+      this.collection = collection;
+      this.coreName = coreName;
+      this.openedAt = openedAt;
+      this.autowarmMs = autowarmMs;
+      this.cacheWarmupMs = cacheWarmupMs;
+      this.cacheSize = cacheSize;
+      this.warmingQueryMs = warmingQueryMs;
+    }
+
+    public long getWarmingQueriesMs() {
+      long total = 0;
+      for (long ms : warmingQueryMs) total += ms;
+      return total;
+    }
+
+    public long getRegisterMs() {
+      return registerMs;
+    }
+  }
+
+  /**
+   * An event whose searcher has not been registered yet
+   */
+  private static class Pending {
+    final WarmupEvent event;
+    final SolrIndexSearcher searcher;
+
+    Pending(WarmupEvent event, SolrIndexSearcher searcher) {
+      this.event = event;
+      this.searcher = searcher;
+    }
+  }
+
+  private final MicroSolrCloudCluster cluster;
+  private final List<SolrParams> warmingQueries = new ArrayList<>();
+  private final RingBuffer<WarmupEvent> events;
+  private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+  private final Set<SolrCore> probedCores = Collections.newSetFromMap(new WeakHashMap<>());
+  private volatile boolean active = true;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * @param cluster  the cluster to probe
+   * @param capacity the number of events retained
+   */
+  public SearcherWarmupProbe(MicroSolrCloudCluster cluster, int capacity) {
+    this.cluster = Objects.requireNonNull(cluster);
+    this.events = new RingBuffer<>(capacity);
+  }
+
+  /**
+   * Replay {@code queries}, in order, against every new searcher before it is registered. They are
+   * executed locally on the core, so {@code distrib=false} is implied.
+   */
+  public SearcherWarmupProbe withWarmingQueries(List<? extends SolrParams> queries) {
+    warmingQueries.clear();
+    warmingQueries.addAll(queries);
+    return this;
+  }
+
+  /**
+   * Start listening on the cores of the cluster; new cores are picked up every {@code pollMs}
+   */
+  public synchronized SearcherWarmupProbe start(long pollMs) {
+    if (scheduler != null) {
+      throw new IllegalStateException("Warm-up probe already started");
+    }
+    attachToCores();
+    scheduler = Executors.newSingleThreadScheduledExecutor(new SolrjNamedThreadFactory("warmup-probe"));
+    scheduler.scheduleWithFixedDelay(this::pollQuietly, pollMs, pollMs, TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  /**
+   * Stop recording. Solr cannot unregister listeners, so those already added stay on their cores
+   * as no-ops until the cores close.
+   */
+  @Override
+  public synchronized void close() {
+    active = false;
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      try {
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      scheduler = null;
+    }
+    completePending();
+    pending.clear();
+  }
+
+  private void pollQuietly() {
+    try {
+      attachToCores();
+      completePending();
+    } catch (Exception e) {
+      log.warn("Error polling searcher warm-up", e);
+    }
+  }
+
+  private void attachToCores() {
+    for (JettySolrRunner jetty : cluster.getJettySolrRunners()) {
+      CoreContainer cores = jetty.getCoreContainer();
+      if (cores == null || cores.isShutDown()) continue;
+      for (SolrCore core : cores.getCores()) {
+        synchronized (probedCores) {
+          if (!probedCores.add(core)) continue;
+        }
+        core.registerNewSearcherListener(new Listener(jetty.getNodeName(), core));
+      }
+    }
+  }
+
+  private void completePending() {
+    for (Iterator<Pending> it = pending.iterator(); it.hasNext(); ) {
+      Pending p = it.next();
+      Object registeredAt = p.searcher.getStatistics().get("registeredAt");
+      if (registeredAt instanceof Date) {
+        p.event.registerMs = ((Date) registeredAt).getTime() - p.event.openedAt;
+        it.remove();
+      } else if (p.searcher.getIndexReader().getRefCount() <= 0) {
+        // closed without being registered, superseded by a newer searcher
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * @return the recorded events, oldest first; events whose searcher is still warming are included
+   * with a register time of -1
+   */
+  public List<WarmupEvent> getEvents() {
+    completePending();
+    return events.snapshot();
+  }
+
+  public void clear() {
+    events.clear();
+  }
+
+  /**
+   * Write the recorded events as CSV, one row per new searcher
+   */
+  public void writeCsv(Writer out) throws IOException {
+    StringBuilder header = new StringBuilder("opened_at,node,collection,core,autowarm_ms");
+    for (String cache : CACHES) {
+      header.append(',').append(cache).append("_warmup_ms,").append(cache).append("_size");
+    }
+    out.write(header.append(",warming_queries,warming_queries_ms,register_ms\n").toString());
+    for (WarmupEvent e : getEvents()) {
+      StringBuilder row = new StringBuilder();
+      row.append(e.openedAt).append(',').append(e.nodeName).append(',').append(e.collection)
+          .append(',').append(e.coreName).append(',').append(e.autowarmMs);
+      for (String cache : CACHES) {
+        row.append(',').append(e.cacheWarmupMs.getOrDefault(cache, -1L))
+            .append(',').append(e.cacheSize.getOrDefault(cache, -1L));
+      }
+      row.append(',').append(e.warmingQueryMs.length).append(',').append(e.getWarmingQueriesMs())
+          .append(',').append(e.getRegisterMs());
+      out.write(row.append('\n').toString());
+    }
+    out.flush();
+  }
+
+  private static long toLong(Object value) {
+    return value instanceof Number ? ((Number) value).longValue() : -1;
+  }
+
+  private class Listener implements SolrEventListener {
+    private final String nodeName;
+    private final SolrCore core;
+
+    Listener(String nodeName, SolrCore core) {
+      this.nodeName = nodeName;
+      this.core = core;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void init(NamedList args) {
+    }
+
+    @Override
+    public void postCommit() {
+    }
+
+    @Override
+    public void postSoftCommit() {
+    }
+
+    @Override
+    public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+      if (!active) return;
+      Map<String, Long> cacheWarmupMs = new LinkedHashMap<>();
+      Map<String, Long> cacheSize = new LinkedHashMap<>();
+      for (String name : CACHES) {
+        SolrCache<?, ?> cache = newSearcher.getCache(name);
+        if (cache == null) continue;
+        NamedList<?> stats = cache.getStatistics();
+        cacheWarmupMs.put(name, toLong(stats.get("warmupTime")));
+        cacheSize.put(name, (long) cache.size());
+      }
+      long[] queryMs = new long[warmingQueries.size()];
+      for (int i = 0; i < queryMs.length; i++) {
+        long start = System.nanoTime();
+        execute(newSearcher, warmingQueries.get(i));
+        queryMs[i] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      }
+      WarmupEvent event = new WarmupEvent(nodeName, core.getCoreDescriptor().getCollectionName(), core.getName(),
+          newSearcher.getOpenTimeStamp().getTime(), toLong(newSearcher.getStatistics().get("warmupTime")),
+          cacheWarmupMs, cacheSize, queryMs);
+      events.add(event);
+      pending.add(new Pending(event, newSearcher));
+    }
+
+    /**
+     * Run one query against {@code searcher} and load the returned documents, like QuerySenderListener
+     */
+    private void execute(SolrIndexSearcher searcher, SolrParams query) {
+      ModifiableSolrParams params = new ModifiableSolrParams(query);
+      params.set(CommonParams.DISTRIB, false);
+      SolrQueryRequest req = new LocalSolrQueryRequest(core, params) {
+        @Override
+        public SolrIndexSearcher getSearcher() {
+          return searcher;
+        }
+
+        @Override
+        public void close() {
+        }
+      };
+      SolrQueryResponse rsp = new SolrQueryResponse();
+      try {
+        SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));
+        core.execute(core.getRequestHandler(params.get(CommonParams.QT)), req, rsp);
+        NamedList<?> values = rsp.getValues();
+        for (int i = 0; i < values.size(); i++) {
+          Object o = values.getVal(i);
+          if (o instanceof ResultContext) {
+            o = ((ResultContext) o).getDocList();
+          }
+          if (o instanceof DocList) {
+            for (DocIterator it = ((DocList) o).iterator(); it.hasNext(); ) {
+              searcher.doc(it.nextDoc());
+            }
+          }
+        }
+      } catch (Exception e) {
+        // a failing warming query must not prevent the searcher from being registered
+        log.warn("Warming query {} failed on {}", query, core.getName(), e);
+      } finally {
+        SolrRequestInfo.clearRequestInfo();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "SearcherWarmupProbe listener";
+    }
+  }
+}
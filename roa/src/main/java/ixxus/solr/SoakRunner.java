@@ -0,0 +1,277 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.SolrjNamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a mixed indexing and query load against a collection for hours, keeping the embedded
+ * ZooKeeper data dir bounded and watching for slow leaks while it runs.
+ * <p>
+ * Indexing cycles over a fixed id space, so the index reaches a steady size and further load turns
+ * into updates, deletes and merges rather than growth. Batches are sent with commitWithin, so new
+ * searchers keep opening and the query load sees the index change. The ZooKeeper snapshots and transaction logs
+ * are purged on a schedule. A {@link ResourceLeakTracker} and a {@link ZkSessionTracker} sample
+ * throughout, and what grew steadily is logged at every report and returned in the result.
+ */
+public class SoakRunner {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * Outcome of a soak run
+   */
+  public static class Result {
+    public final LatencyStats indexLatency = new LatencyStats();
+    public final LatencyStats queryLatency = new LatencyStats();
+    public long wallMs;
+    /**
+     * documents in acknowledged batches
+     */
+    public long docsIndexed;
+    public int zkPurges;
+    public long zkBytesPurged;
+    /**
+     * JVM resources that were growing steadily at the end of the run
+     */
+    public List<ResourceLeakTracker.Growth> growth = Collections.emptyList();
+    /**
+     * ZooKeeper session counts that were growing monotonically at the end of the run
+     */
+    public List<ZkSessionTracker.Leak> sessionLeaks = Collections.emptyList();
+
+    public boolean isLeakFree() {
+      return growth.isEmpty() && sessionLeaks.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT, "%d ms, %d docs indexed, index %s, query %s, %d ZK purges freed %d bytes, "
+              + "growing resources %s, growing ZK sessions %s", wallMs, docsIndexed, indexLatency, queryLatency,
+          zkPurges, zkBytesPurged, growth, sessionLeaks);
+    }
+  }
+
+  private final MicroSolrCloudCluster cluster;
+  private final String collection;
+  private SyntheticDocGenerator docs = SyntheticDocGenerator.allDynamicTypes(0).withIdPrefix("soak");
+  private List<SolrParams> queries = Collections.singletonList(new SolrQuery("*:*"));
+  private int indexThreads = 2;
+  private int queryThreads = 2;
+  private int batchSize = 100;
+  private long maxDocs = 100_000;
+  private int commitWithinMs = 1000;
+  private long purgeIntervalMs = TimeUnit.MINUTES.toMillis(10);
+  private int snapshotsToRetain = 3;
+  private long sampleIntervalMs = TimeUnit.MINUTES.toMillis(1);
+  private int sampleCapacity = 24 * 60;
+  private int growthWindow = 10;
+  private long reportIntervalMs = TimeUnit.MINUTES.toMillis(10);
+
+  public SoakRunner(MicroSolrCloudCluster cluster, String collection) {
+    this.cluster = Objects.requireNonNull(cluster);
+    this.collection = Objects.requireNonNull(collection);
+  }
+
+  public SoakRunner withDocs(SyntheticDocGenerator docs) {
+    this.docs = Objects.requireNonNull(docs);
+    return this;
+  }
+
+  /**
+   * Queries the query threads send in turn; {@code *:*} by default
+   */
+  public SoakRunner withQueries(List<? extends SolrParams> queries) {
+    if (queries.isEmpty()) {
+      throw new IllegalArgumentException("At least one query is needed");
+    }
+    this.queries = new ArrayList<>(queries);
+    return this;
+  }
+
+  /**
+   * Threads sending batches of {@code batchSize} documents, and threads sending queries; 2, 2 and 100 by default
+   */
+  public SoakRunner withLoad(int indexThreads, int queryThreads, int batchSize) {
+    this.indexThreads = indexThreads;
+    this.queryThreads = queryThreads;
+    this.batchSize = batchSize;
+    return this;
+  }
+
+  /**
+   * Size of the id space indexing cycles over, 100000 by default
+   */
+  public SoakRunner withMaxDocs(long maxDocs) {
+    this.maxDocs = maxDocs;
+    return this;
+  }
+
+  /**
+   * The commitWithin of every batch, 1000 ms by default; with the default update handler settings it
+   * causes soft commits
+   */
+  public SoakRunner withCommitWithinMs(int commitWithinMs) {
+    if (commitWithinMs <= 0) {
+      throw new IllegalArgumentException("commitWithin must be positive: " + commitWithinMs);
+    }
+    this.commitWithinMs = commitWithinMs;
+    return this;
+  }
+
+  /**
+   * Purge the ZooKeeper data dir every {@code intervalMs}, keeping {@code snapshotsToRetain} snapshots
+   * (at least 3); every 10 minutes keeping 3 by default. An interval of 0 disables purging.
+   */
+  public SoakRunner withZkPurge(long intervalMs, int snapshotsToRetain) {
+    if (snapshotsToRetain < 3) {
+      throw new IllegalArgumentException("ZooKeeper needs at least 3 snapshots retained: " + snapshotsToRetain);
+    }
+    this.purgeIntervalMs = intervalMs;
+    this.snapshotsToRetain = snapshotsToRetain;
+    return this;
+  }
+
+  /**
+   * Sample resources every {@code intervalMs}, retaining {@code capacity} samples and judging growth
+   * over the last {@code growthWindow}; every minute, for a day, over 10 samples by default
+   */
+  public SoakRunner withSampling(long intervalMs, int capacity, int growthWindow) {
+    this.sampleIntervalMs = intervalMs;
+    this.sampleCapacity = capacity;
+    this.growthWindow = growthWindow;
+    return this;
+  }
+
+  /**
+   * Log progress and growing resources every {@code reportIntervalMs}, 10 minutes by default
+   */
+  public SoakRunner withReportIntervalMs(long reportIntervalMs) {
+    this.reportIntervalMs = reportIntervalMs;
+    return this;
+  }
+
+  /**
+   * Run the soak for {@code durationMs}
+   */
+  public Result run(long durationMs) throws Exception {
+    Result result = new Result();
+    AtomicLong nextDoc = new AtomicLong();
+    AtomicLong acknowledged = new AtomicLong();
+    ResourceLeakTracker resources = new ResourceLeakTracker(cluster, sampleCapacity, sampleIntervalMs)
+        .withGrowthWindow(growthWindow).start();
+    ZkSessionTracker sessions = new ZkSessionTracker(cluster, sampleCapacity, sampleIntervalMs)
+        .withLeakWindow(growthWindow, 1).withReportEvery(0).start();
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new SolrjNamedThreadFactory("soak-scheduler"));
+    ExecutorService load = ExecutorUtil.newMDCAwareFixedThreadPool(indexThreads + queryThreads,
+        new SolrjNamedThreadFactory("soak-load"));
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(durationMs);
+    try {
+      if (purgeIntervalMs > 0) {
+        scheduler.scheduleWithFixedDelay(() -> purge(result), purgeIntervalMs, purgeIntervalMs, TimeUnit.MILLISECONDS);
+      }
+      scheduler.scheduleWithFixedDelay(() -> report(result, resources, sessions, start),
+          reportIntervalMs, reportIntervalMs, TimeUnit.MILLISECONDS);
+      for (int i = 0; i < indexThreads; i++) {
+        load.submit(() -> indexLoop(result, nextDoc, acknowledged, deadline));
+      }
+      for (int i = 0; i < queryThreads; i++) {
+        final int offset = i;
+        load.submit(() -> queryLoop(result, offset, deadline));
+      }
+      // the load threads stop at the deadline by themselves
+      load.shutdown();
+      load.awaitTermination(durationMs + TimeUnit.MINUTES.toMillis(1), TimeUnit.MILLISECONDS);
+    } finally {
+      ExecutorUtil.shutdownAndAwaitTermination(load);
+      scheduler.shutdownNow();
+      scheduler.awaitTermination(1, TimeUnit.MINUTES);
+      resources.close();
+      sessions.close();
+    }
+    result.wallMs = MicroSolrCloudCluster.elapsedMs(start);
+    result.docsIndexed = acknowledged.get();
+    result.growth = resources.getGrowth();
+    result.sessionLeaks = sessions.getLeaks();
+    log.info("Soak of {} finished: {}", collection, result);
+    return result;
+  }
+
+  private void indexLoop(Result result, AtomicLong nextDoc, AtomicLong acknowledged, long deadline) {
+    CloudSolrClient client = cluster.getSolrClient();
+    while (System.nanoTime() < deadline) {
+      List<SolrInputDocument> batch = new ArrayList<>(batchSize);
+      long first = nextDoc.getAndAdd(batchSize);
+      for (long i = first; i < first + batchSize; i++) {
+        batch.add(docs.doc(i % maxDocs));
+      }
+      long t0 = System.nanoTime();
+      try {
+        UpdateRequest request = new UpdateRequest();
+        request.add(batch);
+        request.setCommitWithin(commitWithinMs);
+        request.process(client, collection);
+        acknowledged.addAndGet(batch.size());
+        result.indexLatency.recordSince(t0);
+      } catch (Exception e) {
+        result.indexLatency.recordError();
+        log.debug("Soak update failed", e);
+      }
+    }
+  }
+
+  private void queryLoop(Result result, int offset, long deadline) {
+    CloudSolrClient client = cluster.getSolrClient();
+    for (long i = offset; System.nanoTime() < deadline; i++) {
+      SolrParams query = queries.get((int) (i % queries.size()));
+      long t0 = System.nanoTime();
+      try {
+        client.query(collection, query);
+        result.queryLatency.recordSince(t0);
+      } catch (Exception e) {
+        result.queryLatency.recordError();
+        log.debug("Soak query failed", e);
+      }
+    }
+  }
+
+  private void purge(Result result) {
+    try {
+      long freed = cluster.getZkServer().purgeTxnLogs(snapshotsToRetain);
+      synchronized (result) {
+        result.zkPurges++;
+        result.zkBytesPurged += freed;
+      }
+    } catch (Exception e) {
+      log.warn("Could not purge the ZooKeeper data dir", e);
+    }
+  }
+
+  private void report(Result result, ResourceLeakTracker resources, ZkSessionTracker sessions, long start) {
+    log.info("Soak of {} at {} ms: index {}, query {}", collection, MicroSolrCloudCluster.elapsedMs(start),
+        result.indexLatency, result.queryLatency);
+    List<ResourceLeakTracker.Growth> growth = resources.getGrowth();
+    if (!growth.isEmpty()) {
+      log.warn("Resources growing steadily: {}", growth);
+    }
+    List<ZkSessionTracker.Leak> leaks = sessions.getLeaks();
+    if (!leaks.isEmpty()) {
+      log.warn("ZooKeeper sessions growing monotonically: {}", leaks);
+    }
+  }
+}
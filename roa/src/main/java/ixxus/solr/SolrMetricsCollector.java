@@ -0,0 +1,326 @@
+package ixxus.solr;
+
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SolrjNamedThreadFactory;
+import org.apache.solr.common.util.Utils;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoMBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically samples request, cache, indexing and commit statistics of every core hosted by
+ * the Jettys of a {@link MicroSolrCloudCluster} into a fixed-size {@link RingBuffer}.
+ * <p>
+ * The values are read in-process from the same metric registries that back {@code /admin/metrics}
+ * and from the core info registry (the core MBeans), so sampling costs a few map lookups per core
+ * and no HTTP round trips. Counters are stored raw; rates and hit ratios are derived on export.
+ */
+public class SolrMetricsCollector implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * The statistics recorded for every core on every sample
+   */
+  public enum CoreMetric {
+    SELECT_REQUESTS("QUERY./select.requests"),
+    SELECT_ERRORS("QUERY./select.errors"),
+    UPDATE_REQUESTS("UPDATE./update.requests"),
+    UPDATE_ERRORS("UPDATE./update.errors"),
+    DOCS_ADDED("UPDATE.updateHandler.cumulativeAdds"),
+    DOCS_PENDING("UPDATE.updateHandler.docsPending"),
+    COMMITS("UPDATE.updateHandler.commits"),
+    SOFT_AUTO_COMMITS("UPDATE.updateHandler.softAutoCommits"),
+    FILTER_CACHE_LOOKUPS("filterCache", "cumulative_lookups"),
+    FILTER_CACHE_HITS("filterCache", "cumulative_hits"),
+    QUERY_RESULT_CACHE_LOOKUPS("queryResultCache", "cumulative_lookups"),
+    QUERY_RESULT_CACHE_HITS("queryResultCache", "cumulative_hits"),
+    DOCUMENT_CACHE_LOOKUPS("documentCache", "cumulative_lookups"),
+    DOCUMENT_CACHE_HITS("documentCache", "cumulative_hits"),
+    SEARCHER_WARMUP_MS("searcher", "warmupTime"),
+    SEARCHER_NUM_DOCS("searcher", "numDocs");
+
+    /**
+     * metric registry name, or null when the value comes from the info registry
+     */
+    final String metricName;
+    final String infoBean;
+    final String infoStat;
+
+    CoreMetric(String metricName) {
+      this.metricName = metricName;
+      this.infoBean = null;
+      this.infoStat = null;
+    }
+
+    CoreMetric(String infoBean, String infoStat) {
+      this.metricName = null;
+      this.infoBean = infoBean;
+      this.infoStat = infoStat;
+    }
+  }
+
+  private static final CoreMetric[] METRICS = CoreMetric.values();
+
+  /**
+   * One sample of one core. Missing values are recorded as -1.
+   */
+  public static class Sample {
+    public final long timestamp;
+    public final String nodeName;
+    public final String collection;
+    public final String coreName;
+    private final long[] values;
+
+    Sample(long timestamp, String nodeName, String collection, String coreName, long[] values) {
+      this.timestamp = timestamp;
+      this.nodeName = nodeName;
+      this.collection = collection;
+      this.coreName = coreName;
+      this.values = values;
+    }
+
+    public long get(CoreMetric metric) {
+      return values[metric.ordinal()];
+    }
+  }
+
+  private final MicroSolrCloudCluster cluster;
+  private final RingBuffer<Sample> samples;
+  private final long intervalMs;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * @param cluster    the cluster to sample
+   * @param capacity   the number of per-core samples retained
+   * @param intervalMs the sampling interval in milliseconds
+   */
+  public SolrMetricsCollector(MicroSolrCloudCluster cluster, int capacity, long intervalMs) {
+    this.cluster = Objects.requireNonNull(cluster);
+    this.samples = new RingBuffer<>(capacity);
+    this.intervalMs = intervalMs;
+  }
+
+  /**
+   * Start sampling in the background
+   */
+  public synchronized SolrMetricsCollector start() {
+    if (scheduler != null) {
+      throw new IllegalStateException("Metrics collector already started");
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(new SolrjNamedThreadFactory("metrics-collector"));
+    scheduler.scheduleAtFixedRate(this::sampleQuietly, 0, intervalMs, TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  /**
+   * Stop sampling; the samples collected so far remain available
+   */
+  @Override
+  public synchronized void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      try {
+        scheduler.awaitTermination(intervalMs + 1000, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      scheduler = null;
+    }
+  }
+
+  private void sampleQuietly() {
+    try {
+      sample();
+    } catch (Exception e) {
+      // a core closing under our feet must not kill the schedule
+      log.warn("Error sampling metrics", e);
+    }
+  }
+
+  /**
+   * Take one sample of every core in the cluster now
+   */
+  public void sample() {
+    for (Sample sample : read(cluster)) {
+      samples.add(sample);
+    }
+  }
+
+  /**
+   * Read the current values of every core in the cluster, without recording them
+   */
+  public static List<Sample> read(MicroSolrCloudCluster cluster) {
+    long now = System.currentTimeMillis();
+    List<Sample> result = new ArrayList<>();
+    for (JettySolrRunner jetty : cluster.getJettySolrRunners()) {
+      CoreContainer cores = jetty.getCoreContainer();
+      if (cores == null || cores.isShutDown()) continue;
+      for (SolrCore core : cores.getCores()) {
+        result.add(new Sample(now, jetty.getNodeName(), core.getCoreDescriptor().getCollectionName(),
+            core.getName(), read(cores, core)));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Sum a metric over the samples of one collection, ignoring missing values
+   */
+  public static long sum(List<Sample> samples, String collection, CoreMetric metric) {
+    long total = 0;
+    for (Sample sample : samples) {
+      if (collection.equals(sample.collection) && sample.get(metric) > 0) {
+        total += sample.get(metric);
+      }
+    }
+    return total;
+  }
+
+  private static long[] read(CoreContainer cores, SolrCore core) {
+    MetricRegistry registry = cores.getMetricManager().registry(core.getCoreMetricManager().getRegistryName());
+    Map<String, Metric> metrics = registry.getMetrics();
+    Map<String, SolrInfoMBean> infoRegistry = core.getInfoRegistry();
+    long[] values = new long[METRICS.length];
+    for (CoreMetric m : METRICS) {
+      values[m.ordinal()] = m.metricName != null
+          ? metricValue(metrics.get(m.metricName))
+          : infoValue(infoRegistry.get(m.infoBean), m.infoStat);
+    }
+    return values;
+  }
+
+  private static long metricValue(Metric metric) {
+    if (metric instanceof Counting) {
+      return ((Counting) metric).getCount();
+    }
+    if (metric instanceof Gauge) {
+      return toLong(((Gauge<?>) metric).getValue());
+    }
+    return -1;
+  }
+
+  private static long infoValue(SolrInfoMBean bean, String stat) {
+    if (bean == null) return -1;
+    NamedList<?> stats = bean.getStatistics();
+    return stats == null ? -1 : toLong(stats.get(stat));
+  }
+
+  private static long toLong(Object value) {
+    return value instanceof Number ? ((Number) value).longValue() : -1;
+  }
+
+  /**
+   * @return the retained samples, oldest first
+   */
+  public List<Sample> getSamples() {
+    return samples.snapshot();
+  }
+
+  public void clear() {
+    samples.clear();
+  }
+
+  /**
+   * Write the retained samples as CSV, one row per core and sample. Besides the raw counters every
+   * row carries the select, update and add rates per second and the cache hit ratios over the
+   * interval since the previous sample of the same core.
+   */
+  public void writeCsv(Writer out) throws IOException {
+    StringBuilder header = new StringBuilder("timestamp,node,collection,core");
+    for (CoreMetric m : METRICS) {
+      header.append(',').append(m.name().toLowerCase(Locale.ROOT));
+    }
+    header.append(",select_per_sec,update_per_sec,adds_per_sec")
+        .append(",filter_cache_hit_ratio,query_result_cache_hit_ratio,document_cache_hit_ratio\n");
+    out.write(header.toString());
+
+    Map<String, Sample> previous = new HashMap<>();
+    for (Sample s : samples.snapshot()) {
+      Sample prev = previous.put(s.nodeName + '/' + s.coreName, s);
+      StringBuilder row = new StringBuilder();
+      row.append(s.timestamp).append(',').append(s.nodeName).append(',').append(s.collection).append(',').append(s.coreName);
+      for (CoreMetric m : METRICS) {
+        row.append(',').append(s.get(m));
+      }
+      for (double d : derived(prev, s)) {
+        row.append(',');
+        if (!Double.isNaN(d)) row.append(String.format(Locale.ROOT, "%.3f", d));
+      }
+      out.write(row.append('\n').toString());
+    }
+    out.flush();
+  }
+
+  /**
+   * Write the retained samples as a JSON array of objects, carrying the same columns as {@link #writeCsv(Writer)}
+   */
+  public void writeJson(Writer out) throws IOException {
+    List<Map<String, Object>> rows = new ArrayList<>();
+    Map<String, Sample> previous = new HashMap<>();
+    for (Sample s : samples.snapshot()) {
+      Sample prev = previous.put(s.nodeName + '/' + s.coreName, s);
+      Map<String, Object> row = new LinkedHashMap<>();
+      row.put("timestamp", s.timestamp);
+      row.put("node", s.nodeName);
+      row.put("collection", s.collection);
+      row.put("core", s.coreName);
+      for (CoreMetric m : METRICS) {
+        row.put(m.name().toLowerCase(Locale.ROOT), s.get(m));
+      }
+      double[] d = derived(prev, s);
+      putIfNumber(row, "select_per_sec", d[0]);
+      putIfNumber(row, "update_per_sec", d[1]);
+      putIfNumber(row, "adds_per_sec", d[2]);
+      putIfNumber(row, "filter_cache_hit_ratio", d[3]);
+      putIfNumber(row, "query_result_cache_hit_ratio", d[4]);
+      putIfNumber(row, "document_cache_hit_ratio", d[5]);
+      rows.add(row);
+    }
+    out.write(Utils.toJSONString(rows));
+    out.flush();
+  }
+
+  private static void putIfNumber(Map<String, Object> row, String key, double value) {
+    if (!Double.isNaN(value)) row.put(key, value);
+  }
+
+  private static double[] derived(Sample prev, Sample s) {
+    double[] d = new double[6];
+    Arrays.fill(d, Double.NaN);
+    if (prev == null || s.timestamp <= prev.timestamp) return d;
+    double seconds = (s.timestamp - prev.timestamp) / 1000.0;
+    d[0] = delta(prev, s, CoreMetric.SELECT_REQUESTS) / seconds;
+    d[1] = delta(prev, s, CoreMetric.UPDATE_REQUESTS) / seconds;
+    d[2] = delta(prev, s, CoreMetric.DOCS_ADDED) / seconds;
+    d[3] = ratio(delta(prev, s, CoreMetric.FILTER_CACHE_HITS), delta(prev, s, CoreMetric.FILTER_CACHE_LOOKUPS));
+    d[4] = ratio(delta(prev, s, CoreMetric.QUERY_RESULT_CACHE_HITS), delta(prev, s, CoreMetric.QUERY_RESULT_CACHE_LOOKUPS));
+    d[5] = ratio(delta(prev, s, CoreMetric.DOCUMENT_CACHE_HITS), delta(prev, s, CoreMetric.DOCUMENT_CACHE_LOOKUPS));
+    return d;
+  }
+
+  private static double delta(Sample prev, Sample s, CoreMetric m) {
+    long a = prev.get(m), b = s.get(m);
+    return a < 0 || b < 0 ? Double.NaN : b - a;
+  }
+
+  private static double ratio(double hits, double lookups) {
+    return lookups > 0 ? hits / lookups : Double.NaN;
+  }
+}
@@ -0,0 +1,391 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.request.JavaBinUpdateRequestCodec;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Deterministic generator of synthetic documents for the dynamic fields declared in the
+ * {@code data_driven_schema_configs} managed-schema.
+ * <p>
+ * Document {@code i} is a pure function of the seed and {@code i}: nothing is kept between documents
+ * and text is built from a vocabulary that is computed rather than stored, so memory stays flat no
+ * matter how many documents are produced, and any range of documents can be regenerated (or produced
+ * in parallel) on its own.
+ * <pre>
+ *   SyntheticDocGenerator gen = new SyntheticDocGenerator(42)
+ *       .withField(new FieldSpec("title", FieldKind.TEXT).tokens(3, 12, LengthDistribution.GAUSSIAN))
+ *       .withField(new FieldSpec("tag", FieldKind.STRING).cardinality(500).values(1, 5))
+ *       .withField(new FieldSpec("price", FieldKind.POINT_DOUBLE));
+ *   gen.stream(0, 1_000_000).forEach(...);
+ * </pre>
+ */
+public class SyntheticDocGenerator {
+
+  /**
+   * The dynamic field families of the managed-schema, with their single and multi valued suffixes
+   */
+  public enum FieldKind {
+    INT("_i", "_is", ValueType.INT),
+    LONG("_l", "_ls", ValueType.LONG),
+    FLOAT("_f", "_fs", ValueType.FLOAT),
+    DOUBLE("_d", "_ds", ValueType.DOUBLE),
+    BOOLEAN("_b", "_bs", ValueType.BOOLEAN),
+    STRING("_s", "_ss", ValueType.STRING),
+    TEXT("_txt", "_txt", ValueType.TEXT),
+    DATE("_dt", "_dts", ValueType.DATE),
+    POINT_INT("_pi", "_pis", ValueType.INT),
+    POINT_LONG("_pl", "_pls", ValueType.LONG),
+    POINT_FLOAT("_pf", "_pfs", ValueType.FLOAT),
+    POINT_DOUBLE("_pd", "_pds", ValueType.DOUBLE),
+    POINT_DATE("_pdt", "_pdts", ValueType.DATE),
+    TRIE_INT("_ti", "_tis", ValueType.INT),
+    TRIE_LONG("_tl", "_tls", ValueType.LONG),
+    TRIE_FLOAT("_tf", "_tfs", ValueType.FLOAT),
+    TRIE_DOUBLE("_td", "_tds", ValueType.DOUBLE),
+    TRIE_DATE("_tdt", "_tdts", ValueType.DATE),
+    LOCATION("_p", null, ValueType.LAT_LON),
+    LOCATION_RPT("_srpt", null, ValueType.LAT_LON),
+    CURRENCY("_c", null, ValueType.CURRENCY);
+
+    public final String singleSuffix;
+    public final String multiSuffix;
+    final ValueType valueType;
+
+    FieldKind(String singleSuffix, String multiSuffix, ValueType valueType) {
+      this.singleSuffix = singleSuffix;
+      this.multiSuffix = multiSuffix;
+      this.valueType = valueType;
+    }
+  }
+
+  enum ValueType {INT, LONG, FLOAT, DOUBLE, BOOLEAN, STRING, TEXT, DATE, LAT_LON, CURRENCY}
+
+  /**
+   * Shape of the distribution that picks the number of tokens of a text value between its bounds
+   */
+  public enum LengthDistribution {
+    UNIFORM,
+    /**
+     * normal, centred between the bounds with the bounds at three standard deviations
+     */
+    GAUSSIAN,
+    /**
+     * mostly short values with a long tail up to the maximum
+     */
+    EXPONENTIAL
+  }
+
+  /**
+   * Describes one generated field
+   */
+  public static class FieldSpec {
+    final String baseName;
+    final FieldKind kind;
+    int cardinality = 1000;
+    int minValues = 1;
+    int maxValues = 1;
+    int minTokens = 5;
+    int maxTokens = 50;
+    LengthDistribution lengthDistribution = LengthDistribution.UNIFORM;
+    double presence = 1.0;
+
+    /**
+     * @param baseName the field name without the dynamic field suffix
+     * @param kind     the dynamic field family
+     */
+    public FieldSpec(String baseName, FieldKind kind) {
+      this.baseName = Objects.requireNonNull(baseName);
+      this.kind = Objects.requireNonNull(kind);
+    }
+
+    /**
+     * The number of distinct values (distinct terms, for text)
+     */
+    public FieldSpec cardinality(int cardinality) {
+      if (cardinality <= 0) throw new IllegalArgumentException("cardinality must be positive");
+      this.cardinality = cardinality;
+      return this;
+    }
+
+    /**
+     * The range of the number of values per document; anything above one uses the multi valued field
+     */
+    public FieldSpec values(int min, int max) {
+      if (min < 1 || max < min) throw new IllegalArgumentException("invalid value count range " + min + ".." + max);
+      if (max > 1 && kind.multiSuffix == null) {
+        throw new IllegalArgumentException(kind + " has no multi valued dynamic field");
+      }
+      this.minValues = min;
+      this.maxValues = max;
+      return this;
+    }
+
+    /**
+     * The range and distribution of the number of tokens of a text value
+     */
+    public FieldSpec tokens(int min, int max, LengthDistribution distribution) {
+      if (min < 1 || max < min) throw new IllegalArgumentException("invalid token range " + min + ".." + max);
+      this.minTokens = min;
+      this.maxTokens = max;
+      this.lengthDistribution = Objects.requireNonNull(distribution);
+      return this;
+    }
+
+    /**
+     * The probability that a document has this field at all
+     */
+    public FieldSpec presence(double presence) {
+      if (presence < 0 || presence > 1) throw new IllegalArgumentException("presence must be within [0, 1]");
+      this.presence = presence;
+      return this;
+    }
+
+    public String fieldName() {
+      return baseName + (maxValues > 1 ? kind.multiSuffix : kind.singleSuffix);
+    }
+  }
+
+  private static final String[] CURRENCIES = {"USD", "EUR", "GBP", "JPY", "CAD", "AUD"};
+  // all of length two, so words decode uniquely and the vocabulary really has the requested cardinality
+  private static final String[] SYLLABLES = {
+      "ka", "lo", "mi", "ne", "ru", "ta", "vo", "si", "en", "da", "pe", "qu", "zo", "bi", "tu", "ga",
+      "or", "fi", "le", "sa", "xa", "we", "hu", "ip", "yo", "ce", "do", "um", "ja", "ke", "os", "ba"};
+  private static final long DATE_BASE = 946684800000L; // 2000-01-01T00:00:00Z
+  private static final long DATE_RANGE = 20L * 365 * 24 * 3600 * 1000;
+
+  private final long seed;
+  private final List<FieldSpec> fields = new ArrayList<>();
+  private String idPrefix = "doc";
+  private double zipfExponent = 1.0;
+
+  /**
+   * @param seed the seed; equal seeds and field specs produce identical documents
+   */
+  public SyntheticDocGenerator(long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * A generator with one field of every kind, using default settings
+   */
+  public static SyntheticDocGenerator allDynamicTypes(long seed) {
+    SyntheticDocGenerator generator = new SyntheticDocGenerator(seed);
+    for (FieldKind kind : FieldKind.values()) {
+      generator.withField(new FieldSpec(kind.name().toLowerCase(Locale.ROOT), kind));
+    }
+    return generator;
+  }
+
+  public SyntheticDocGenerator withField(FieldSpec spec) {
+    fields.add(spec);
+    return this;
+  }
+
+  public SyntheticDocGenerator withIdPrefix(String idPrefix) {
+    this.idPrefix = idPrefix;
+    return this;
+  }
+
+  /**
+   * Skew of the term frequencies in text and of string values: 0 is uniform, 1 (the default) is
+   * roughly natural-language like
+   */
+  public SyntheticDocGenerator withZipfExponent(double zipfExponent) {
+    this.zipfExponent = zipfExponent;
+    return this;
+  }
+
+  public List<FieldSpec> getFields() {
+    return Collections.unmodifiableList(fields);
+  }
+
+  /**
+   * @return document number {@code i}
+   */
+  public SolrInputDocument doc(long i) {
+    SplittableRandom random = new SplittableRandom(mix(seed, i));
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("id", idPrefix + i);
+    for (FieldSpec spec : fields) {
+      if (spec.presence < 1.0 && random.nextDouble() >= spec.presence) continue;
+      int count = spec.minValues == spec.maxValues ? spec.minValues : random.nextInt(spec.minValues, spec.maxValues + 1);
+      String name = spec.fieldName();
+      for (int v = 0; v < count; v++) {
+        doc.addField(name, value(spec, random));
+      }
+    }
+    return doc;
+  }
+
+  /**
+   * Lazily produce documents {@code from} to {@code from + count - 1}
+   */
+  public Iterator<SolrInputDocument> iterator(long from, long count) {
+    return new Iterator<SolrInputDocument>() {
+      private long next = from;
+
+      @Override
+      public boolean hasNext() {
+        return next < from + count;
+      }
+
+      @Override
+      public SolrInputDocument next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return doc(next++);
+      }
+    };
+  }
+
+  /**
+   * Lazily produce documents {@code from} to {@code from + count - 1}; the stream may be made parallel
+   */
+  public Stream<SolrInputDocument> stream(long from, long count) {
+    return LongStream.range(from, from + count).mapToObj(this::doc);
+  }
+
+  /**
+   * Lazily produce javabin-encoded update requests of {@code batchSize} documents each, ready to be
+   * posted with content type {@code application/javabin}. Only one batch is held in memory at a time.
+   */
+  public Iterator<byte[]> javabinBatches(long from, long count, int batchSize) {
+    return new Iterator<byte[]>() {
+      private long next = from;
+
+      @Override
+      public boolean hasNext() {
+        return next < from + count;
+      }
+
+      @Override
+      public byte[] next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        long size = Math.min(batchSize, from + count - next);
+        byte[] batch = encode(next, size);
+        next += size;
+        return batch;
+      }
+    };
+  }
+
+  private byte[] encode(long from, long count) {
+    UpdateRequest request = new UpdateRequest();
+    request.setDocIterator(iterator(from, count));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      new JavaBinUpdateRequestCodec().marshal(request, out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  private Object value(FieldSpec spec, SplittableRandom random) {
+    switch (spec.kind.valueType) {
+      case INT:
+        return random.nextInt(spec.cardinality);
+      case LONG:
+        return (long) random.nextInt(spec.cardinality) * 1_000_003L;
+      case FLOAT:
+        return random.nextInt(spec.cardinality) / 100.0f;
+      case DOUBLE:
+        return random.nextInt(spec.cardinality) / 1000.0;
+      case BOOLEAN:
+        return random.nextBoolean();
+      case STRING:
+        return word(zipf(random, spec.cardinality));
+      case TEXT:
+        return text(spec, random);
+      case DATE:
+        // cardinality distinct instants spread over twenty years
+        return new Date(DATE_BASE + DATE_RANGE / spec.cardinality * random.nextInt(spec.cardinality));
+      case LAT_LON:
+        return String.format(Locale.ROOT, "%.5f,%.5f",
+            random.nextDouble(-90.0, 90.0), random.nextDouble(-180.0, 180.0));
+      case CURRENCY:
+        return String.format(Locale.ROOT, "%d.%02d,%s",
+            random.nextInt(spec.cardinality), random.nextInt(100), CURRENCIES[random.nextInt(CURRENCIES.length)]);
+      default:
+        throw new IllegalStateException("Unknown value type " + spec.kind.valueType);
+    }
+  }
+
+  private String text(FieldSpec spec, SplittableRandom random) {
+    int tokens = tokenCount(spec, random);
+    StringBuilder sb = new StringBuilder(tokens * 8);
+    for (int t = 0; t < tokens; t++) {
+      if (t > 0) sb.append(' ');
+      sb.append(word(zipf(random, spec.cardinality)));
+    }
+    return sb.toString();
+  }
+
+  private static int tokenCount(FieldSpec spec, SplittableRandom random) {
+    int min = spec.minTokens, max = spec.maxTokens;
+    if (min == max) return min;
+    double x;
+    switch (spec.lengthDistribution) {
+      case GAUSSIAN:
+        x = 0.5 + gaussian(random) / 6.0;
+        break;
+      case EXPONENTIAL:
+        x = -Math.log(1.0 - random.nextDouble()) / 5.0;
+        break;
+      default:
+        x = random.nextDouble();
+    }
+    x = Math.max(0.0, Math.min(1.0, x));
+    return min + (int) Math.round(x * (max - min));
+  }
+
+  private static double gaussian(SplittableRandom random) {
+    // Box-Muller; SplittableRandom has no nextGaussian
+    double u = 1.0 - random.nextDouble();
+    return Math.sqrt(-2.0 * Math.log(u)) * Math.cos(2.0 * Math.PI * random.nextDouble());
+  }
+
+  /**
+   * Approximate Zipf rank in {@code [0, n)} by inverting the continuous power law, without any table
+   */
+  private int zipf(SplittableRandom random, int n) {
+    if (zipfExponent <= 0.0 || n == 1) return random.nextInt(n);
+    double u = random.nextDouble();
+    double rank;
+    if (Math.abs(zipfExponent - 1.0) < 1e-9) {
+      rank = Math.pow(n + 1, u);
+    } else {
+      double a = 1.0 - zipfExponent;
+      rank = Math.pow(u * (Math.pow(n + 1, a) - 1.0) + 1.0, 1.0 / a);
+    }
+    return Math.min(n - 1, Math.max(0, (int) rank - 1));
+  }
+
+  /**
+   * The {@code rank}-th word of the virtual vocabulary: the rank written in base 32 with syllables as digits
+   */
+  static String word(int rank) {
+    StringBuilder sb = new StringBuilder();
+    int r = rank;
+    do {
+      sb.append(SYLLABLES[r & 31]);
+      r >>>= 5;
+    } while (r != 0);
+    return sb.toString();
+  }
+
+  private static long mix(long seed, long i) {
+    // SplitMix64 finaliser, so neighbouring documents get unrelated streams
+    long z = seed + (i + 1) * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -0,0 +1,276 @@
+package ixxus.solr;
+
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.common.util.SolrjNamedThreadFactory;
+import org.apache.solr.core.CoreContainer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically samples the watches, ephemeral nodes and outstanding requests every ZooKeeper
+ * session holds on the embedded {@link ZkTestServer}, and flags sessions whose counts only grow.
+ * <p>
+ * Sessions are named after the Jetty node that owns them, or {@code solrClient} for the cluster's
+ * own client, as long as that node was running at some sample; other sessions are shown by id. A
+ * session's history is dropped once the server no longer knows it.
+ */
+public class ZkSessionTracker implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * The counts tracked for every session
+   */
+  public enum SessionMetric {
+    WATCHES, EPHEMERALS, OUTSTANDING_REQUESTS
+  }
+
+  /**
+   * One sample of one session
+   */
+  public static class Sample {
+    public final long timestamp;
+    public final long sessionId;
+    public final boolean connected;
+    private final long[] values;
+
+    Sample(long timestamp, ZkTestServer.SessionStats stats) {
+      this.timestamp = timestamp;
+      this.sessionId = stats.sessionId;
+      this.connected = stats.connected;
+      this.values = new long[]{stats.watches, stats.ephemerals, stats.outstandingRequests};
+    }
+
+    public long get(SessionMetric metric) {
+      return values[metric.ordinal()];
+    }
+  }
+
+  /**
+   * A count of one session that grew at every sample of the leak window
+   */
+  public static class Leak {
+    public final long sessionId;
+    public final String name;
+    public final SessionMetric metric;
+    public final long from;
+    public final long to;
+    public final long sinceMs;
+
+    Leak(long sessionId, String name, SessionMetric metric, long from, long to, long sinceMs) {
+      this.sessionId = sessionId;
+      this.name = name;
+      this.metric = metric;
+      this.from = from;
+      this.to = to;
+      this.sinceMs = sinceMs;
+    }
+
+    @Override
+    public String toString() {
+      return name + " " + metric + " " + from + " -> " + to + " over " + sinceMs + " ms";
+    }
+  }
+
+  private final MicroSolrCloudCluster cluster;
+  private final int capacity;
+  private final long intervalMs;
+  private final Map<Long, RingBuffer<Sample>> history = new ConcurrentHashMap<>();
+  private final Map<Long, String> names = new ConcurrentHashMap<>();
+  private int leakWindow = 10;
+  private long minGrowth = 1;
+  private int reportEvery = 10;
+  private long samplesTaken;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * @param cluster    the cluster whose ZooKeeper to sample
+   * @param capacity   the number of samples retained per session
+   * @param intervalMs the sampling interval in milliseconds
+   */
+  public ZkSessionTracker(MicroSolrCloudCluster cluster, int capacity, long intervalMs) {
+    this.cluster = Objects.requireNonNull(cluster);
+    this.capacity = capacity;
+    this.intervalMs = intervalMs;
+  }
+
+  /**
+   * Flag a count as leaking when it never decreased over the last {@code samples} samples and grew by
+   * at least {@code minGrowth} over them. Defaults to 10 samples and a growth of 1.
+   */
+  public ZkSessionTracker withLeakWindow(int samples, long minGrowth) {
+    if (samples < 2 || samples > capacity) {
+      throw new IllegalArgumentException("Leak window must be between 2 and the capacity " + capacity + ": " + samples);
+    }
+    this.leakWindow = samples;
+    this.minGrowth = minGrowth;
+    return this;
+  }
+
+  /**
+   * Log the leak report every {@code samples} samples, if it is not empty. Defaults to 10.
+   */
+  public ZkSessionTracker withReportEvery(int samples) {
+    this.reportEvery = samples;
+    return this;
+  }
+
+  /**
+   * Start sampling in the background
+   */
+  public synchronized ZkSessionTracker start() {
+    if (scheduler != null) {
+      throw new IllegalStateException("Session tracker already started");
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(new SolrjNamedThreadFactory("zk-session-tracker"));
+    scheduler.scheduleAtFixedRate(this::sampleQuietly, 0, intervalMs, TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  /**
+   * Stop sampling; the samples collected so far remain available
+   */
+  @Override
+  public synchronized void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  private void sampleQuietly() {
+    try {
+      sample();
+      if (reportEvery > 0 && ++samplesTaken % reportEvery == 0) {
+        List<Leak> leaks = getLeaks();
+        if (!leaks.isEmpty()) {
+          log.warn("ZooKeeper sessions growing monotonically:\n  {}", joinLines(leaks));
+        }
+      }
+    } catch (Exception e) {
+      // the server restarting under our feet must not kill the schedule
+      log.warn("Error sampling ZooKeeper sessions", e);
+    }
+  }
+
+  /**
+   * Take one sample of every session now
+   */
+  public void sample() {
+    nameSessions();
+    long now = System.currentTimeMillis();
+    Map<Long, ZkTestServer.SessionStats> stats = cluster.getZkServer().getSessionStats();
+    history.keySet().retainAll(stats.keySet());
+    for (ZkTestServer.SessionStats session : stats.values()) {
+      history.computeIfAbsent(session.sessionId, id -> new RingBuffer<>(capacity)).add(new Sample(now, session));
+    }
+  }
+
+  private void nameSessions() {
+    for (JettySolrRunner jetty : cluster.getJettySolrRunners()) {
+      CoreContainer cores = jetty.getCoreContainer();
+      if (cores == null || cores.isShutDown() || cores.getZkController() == null) continue;
+      names.put(cores.getZkController().getZkClient().getSolrZooKeeper().getSessionId(), jetty.getNodeName());
+    }
+    CloudSolrClient client = cluster.getSolrClient();
+    if (client.getZkStateReader() != null) {
+      names.put(client.getZkStateReader().getZkClient().getSolrZooKeeper().getSessionId(), "solrClient");
+    }
+  }
+
+  /**
+   * @return the name of a session's owner, or its id in hex when the owner is unknown
+   */
+  public String getName(long sessionId) {
+    String name = names.get(sessionId);
+    return name != null ? name : "0x" + Long.toHexString(sessionId);
+  }
+
+  /**
+   * @return the latest sample of every session the server currently knows, by session id
+   */
+  public Map<Long, Sample> getLatest() {
+    Map<Long, Sample> latest = new TreeMap<>();
+    for (Map.Entry<Long, RingBuffer<Sample>> entry : history.entrySet()) {
+      List<Sample> samples = entry.getValue().snapshot();
+      if (!samples.isEmpty()) latest.put(entry.getKey(), samples.get(samples.size() - 1));
+    }
+    return latest;
+  }
+
+  /**
+   * @return the counts that grew monotonically over the leak window, see {@link #withLeakWindow(int, long)}
+   */
+  public List<Leak> getLeaks() {
+    List<Leak> leaks = new ArrayList<>();
+    for (Map.Entry<Long, RingBuffer<Sample>> entry : history.entrySet()) {
+      List<Sample> samples = entry.getValue().snapshot();
+      if (samples.size() < leakWindow) continue;
+      List<Sample> window = samples.subList(samples.size() - leakWindow, samples.size());
+      for (SessionMetric metric : SessionMetric.values()) {
+        if (isGrowing(window, metric)) {
+          Sample first = window.get(0);
+          Sample last = window.get(window.size() - 1);
+          leaks.add(new Leak(entry.getKey(), getName(entry.getKey()), metric, first.get(metric), last.get(metric),
+              last.timestamp - first.timestamp));
+        }
+      }
+    }
+    return leaks;
+  }
+
+  private boolean isGrowing(List<Sample> window, SessionMetric metric) {
+    for (int i = 1; i < window.size(); i++) {
+      if (window.get(i).get(metric) < window.get(i - 1).get(metric)) return false;
+    }
+    return window.get(window.size() - 1).get(metric) - window.get(0).get(metric) >= minGrowth;
+  }
+
+  /**
+   * Write the retained samples as CSV, one row per session and sample
+   */
+  public void writeCsv(Writer out) throws IOException {
+    out.write("timestamp,session,name,connected,watches,ephemerals,outstanding_requests\n");
+    for (Map.Entry<Long, RingBuffer<Sample>> entry : new TreeMap<>(history).entrySet()) {
+      String session = "0x" + Long.toHexString(entry.getKey());
+      String name = getName(entry.getKey());
+      for (Sample s : entry.getValue().snapshot()) {
+        out.write(s.timestamp + "," + session + "," + name + "," + s.connected + "," + s.get(SessionMetric.WATCHES)
+            + "," + s.get(SessionMetric.EPHEMERALS) + "," + s.get(SessionMetric.OUTSTANDING_REQUESTS) + "\n");
+      }
+    }
+    out.flush();
+  }
+
+  private static String joinLines(List<?> lines) {
+    StringBuilder sb = new StringBuilder();
+    for (Object line : lines) {
+      if (sb.length() > 0) sb.append("\n  ");
+      sb.append(line);
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("ZooKeeper sessions:");
+    for (Sample s : getLatest().values()) {
+      sb.append("\n  ").append(getName(s.sessionId)).append(s.connected ? "" : " (disconnected)")
+          .append(" watches=").append(s.get(SessionMetric.WATCHES))
+          .append(" ephemerals=").append(s.get(SessionMetric.EPHEMERALS))
+          .append(" outstanding=").append(s.get(SessionMetric.OUTSTANDING_REQUESTS));
+    }
+    return sb.toString();
+  }
+}
@@ -3,15 +3,18 @@ package ixxus.solr;
 import com.google.common.util.concurrent.AtomicLongMap;
 import org.apache.solr.common.cloud.SolrZkClient;
 import org.apache.solr.util.TimeOut;
+import org.apache.jute.Record;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.jmx.ManagedUtil;
 import org.apache.zookeeper.server.*;
 import org.apache.zookeeper.server.SessionTracker.Session;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.apache.zookeeper.server.quorum.QuorumPeerConfig.ConfigException;
+import org.apache.zookeeper.txn.TxnHeader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,8 +31,12 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 public class ZkTestServer {
@@ -47,6 +54,41 @@ public class ZkTestServer {
 
   private int theTickTime = TICK_TIME;
 
+  private final List<TxnListener> txnListeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * Notified of every write applied to the database, on the ZooKeeper request processing thread,
+   * so implementations must be quick and must not call back into ZooKeeper
+   */
+  public interface TxnListener {
+    /**
+     * @param time      the transaction time, in ms since the epoch
+     * @param opCode    the operation, one of {@link org.apache.zookeeper.ZooDefs.OpCode}
+     * @param path      the path written, with the sequence number of sequential nodes; null for
+     *                  session operations
+     * @param sessionId the session that issued the write
+     */
+    void txnApplied(long time, int opCode, String path, long sessionId);
+  }
+
+  /**
+   * What one client session holds on the server at a point in time
+   */
+  public static class SessionStats {
+    public final long sessionId;
+    public int watches;
+    public int ephemerals;
+    public long outstandingRequests;
+    /**
+     * whether the session has a live connection to the server
+     */
+    public boolean connected;
+
+    SessionStats(long sessionId) {
+      this.sessionId = sessionId;
+    }
+  }
+
   static public enum LimitViolationAction {
     IGNORE,
     REPORT,
@@ -253,6 +295,32 @@ public class ZkTestServer {
         limiter.childrenLimit.updateForWatch(path, watcher);
         return super.getChildren(path, stat, watcher);
       }
+
+      @Override
+      public DataTree.ProcessTxnResult processTxn(TxnHeader hdr, Record txn) {
+        DataTree.ProcessTxnResult rc = super.processTxn(hdr, txn);
+        if (!txnListeners.isEmpty() && rc.err == 0) {
+          if (rc.multiResult != null) {
+            for (DataTree.ProcessTxnResult sub : rc.multiResult) {
+              fireTxnApplied(hdr, sub.type, sub.path);
+            }
+          } else {
+            fireTxnApplied(hdr, rc.type, rc.path);
+          }
+        }
+        return rc;
+      }
+
+      private void fireTxnApplied(TxnHeader hdr, int type, String path) {
+        if (type == ZooDefs.OpCode.error) return;
+        for (TxnListener listener : txnListeners) {
+          try {
+            listener.txnApplied(hdr.getTime(), type, path, hdr.getClientId());
+          } catch (RuntimeException e) {
+            log.warn("Error in txn listener {}", listener, e);
+          }
+        }
+      }
     }
 
     /**
@@ -426,6 +494,52 @@ public class ZkTestServer {
     });
   }
 
+  public void addTxnListener(TxnListener listener) {
+    txnListeners.add(listener);
+  }
+
+  public void removeTxnListener(TxnListener listener) {
+    txnListeners.remove(listener);
+  }
+
+  /**
+   * Count the watches, ephemeral nodes and outstanding requests of every session known to the server.
+   * Watch counts are taken from the same per-session dump as the {@code wchc} four letter word, so
+   * this walks every watch and is meant for periodic sampling, not for hot paths.
+   */
+  public Map<Long, SessionStats> getSessionStats() {
+    Map<Long, SessionStats> stats = new HashMap<>();
+    DataTree dataTree = getZKDatabase().getDataTree();
+    StringWriter dump = new StringWriter();
+    dataTree.dumpWatches(new PrintWriter(dump), false);
+    SessionStats current = null;
+    for (String line : dump.toString().split("\\R")) {
+      if (line.startsWith("0x")) {
+        current = stats.computeIfAbsent(Long.parseUnsignedLong(line.substring(2).trim(), 16), SessionStats::new);
+      } else if (line.startsWith("\t") && current != null) {
+        current.watches++;
+      }
+    }
+    for (Map.Entry<Long, HashSet<String>> entry : dataTree.getEphemeralsMap().entrySet()) {
+      synchronized (entry.getValue()) {
+        stats.computeIfAbsent(entry.getKey(), SessionStats::new).ephemerals = entry.getValue().size();
+      }
+    }
+    Iterable<ServerCnxn> connections = zkServer.cnxnFactory.getConnections();
+    // the NIO factory hands out its connection set, which it guards with its own monitor
+    synchronized (connections) {
+      for (ServerCnxn cnxn : connections) {
+        if (!(cnxn instanceof NIOServerCnxn)) continue;
+        long sessionId = ((NIOServerCnxn) cnxn).getSessionId();
+        if (sessionId == 0) continue; // not yet established
+        SessionStats session = stats.computeIfAbsent(sessionId, SessionStats::new);
+        session.outstandingRequests = cnxn.getOutstandingRequests();
+        session.connected = true;
+      }
+    }
+    return stats;
+  }
+
   public ZKDatabase getZKDatabase() {
     return zkServer.zooKeeperServer.getZKDatabase();
   }
@@ -604,6 +718,35 @@ public class ZkTestServer {
     return zkDir;
   }
 
+  /**
+   * Delete all but the newest {@code retain} snapshots of the data dir, with the transaction logs
+   * only they needed, as the server's own autopurge would. Safe while the server runs.
+   *
+   * @param retain snapshots to keep, at least 3
+   * @return the bytes freed in the data dir
+   */
+  public long purgeTxnLogs(int retain) throws IOException {
+    File dir = new File(zkDir);
+    long before = sizeOf(dir);
+    PurgeTxnLog.purge(dir, dir, retain);
+    long freed = before - sizeOf(dir);
+    log.info("Purged ZooKeeper data dir {}, freed {} bytes", zkDir, freed);
+    return freed;
+  }
+
+  /**
+   * @return the bytes used by the files under {@code file}
+   */
+  static long sizeOf(File file) {
+    File[] children = file.listFiles();
+    if (children == null) return file.length();
+    long size = 0;
+    for (File child : children) {
+      size += sizeOf(child);
+    }
+    return size;
+  }
+
   public void setViolationReportAction(ZkTestServer.LimitViolationAction violationReportAction) {
     zkServer.setViolationReportAction(violationReportAction);
   }
@@ -1,7 +1,17 @@
 package ixxus.solr
 
 import java.nio.file.Path
+import java.util.concurrent.TimeUnit
+
 import com.typesafe.scalalogging.StrictLogging
+import org.apache.solr.client.solrj.request.CollectionAdminRequest
+import org.apache.solr.common.SolrInputDocument
+import org.apache.solr.common.cloud.ClusterStateUtil
+import org.apache.solr.common.util.{ExecutorUtil, SolrjNamedThreadFactory}
+
+import scala.collection.JavaConverters._
+import scala.concurrent.{ExecutionContext, ExecutionContextExecutorService, Future, blocking}
+import scala.util.control.NonFatal
 
 case class MicroSolrCloud(configPath: Path,
                           configName: String = "data_driven_schema_configs",
@@ -22,4 +32,119 @@ case class MicroSolrCloud(configPath: Path,
 
   def shutdown() = cluster.shutdown()
 
+  /**
+    * Create a collection of this cluster's config and complete once all its replicas are active
+    */
+  def createCollection(name: String, numShards: Int = 1, replicationFactor: Int = 1)
+                      (implicit ec: ExecutionContext): Future[String] = Future {
+    blocking {
+      CollectionAdminRequest.createCollection(name, configName, numShards, replicationFactor)
+        .setMaxShardsPerNode(numShards * replicationFactor)
+        .process(cluster.getSolrClient)
+      if (!ClusterStateUtil.waitForAllActiveAndLiveReplicas(cluster.getSolrClient.getZkStateReader, name,
+        TimeUnit.MINUTES.toMillis(2).toInt)) {
+        throw new IllegalStateException(s"Collection $name did not become active")
+      }
+      name
+    }
+  }
+
+  def deleteCollection(name: String)(implicit ec: ExecutionContext): Future[Unit] = Future {
+    blocking {
+      CollectionAdminRequest.deleteCollection(name).process(cluster.getSolrClient)
+      ()
+    }
+  }
+
+  /**
+    * Send `docs` to `collection` in batches of `batchSize`, optionally committing at the end
+    *
+    * @return the number of documents sent
+    */
+  def index(collection: String, docs: Iterator[SolrInputDocument], batchSize: Int = 1000, commit: Boolean = true)
+           (implicit ec: ExecutionContext): Future[Long] = Future {
+    blocking {
+      val client = cluster.getSolrClient
+      var count = 0L
+      docs.grouped(batchSize).foreach { batch =>
+        client.add(collection, batch.asJava)
+        count += batch.size
+      }
+      if (commit) client.commit(collection)
+      logger.debug(s"Indexed $count documents into $collection")
+      count
+    }
+  }
+
+  def shutdownAsync()(implicit ec: ExecutionContext): Future[Unit] = Future {
+    blocking(shutdown())
+  }
+
+  /**
+    * Create a collection, run `use` with its name and delete it again however `use` completes
+    */
+  def withCollection[A](name: String, numShards: Int = 1, replicationFactor: Int = 1)
+                       (use: String => Future[A])(implicit ec: ExecutionContext): Future[A] =
+    MicroSolrCloud.bracket(createCollection(name, numShards, replicationFactor))(deleteCollection)(use)
+
+}
+
+/**
+  * Non-blocking lifecycle of [[MicroSolrCloud]]: every operation returns a `Future` running on the
+  * implicit `ExecutionContext`, so fixtures can start several clusters and collections concurrently.
+  * The operations block their thread for the duration (they are marked `blocking`); [[blockingContext]]
+  * is a pool sized for that.
+  *
+  * Solr nodes find ZooKeeper through the JVM-wide `zkHost` system property, so clusters in one JVM
+  * start their nodes one cluster at a time: concurrent [[start]]s run ZooKeeper and config uploads
+  * in parallel but queue for the node startup.
+  */
+object MicroSolrCloud {
+
+  /**
+    * An unbounded pool of named threads suited to the blocking cluster operations;
+    * shut it down when done
+    */
+  def blockingContext(): ExecutionContextExecutorService =
+    ExecutionContext.fromExecutorService(
+      ExecutorUtil.newMDCAwareCachedThreadPool(new SolrjNamedThreadFactory("micro-solr-cloud")))
+
+  /**
+    * Start a cluster without blocking the calling thread
+    */
+  def start(configPath: Path,
+            configName: String = "data_driven_schema_configs",
+            nodeCount: Int = 1)(implicit ec: ExecutionContext): Future[MicroSolrCloud] = Future {
+    blocking(MicroSolrCloud(configPath, configName, nodeCount))
+  }
+
+  /**
+    * Start a cluster, run `use` with it and shut it down again however `use` completes
+    */
+  def withCluster[A](configPath: Path,
+                     configName: String = "data_driven_schema_configs",
+                     nodeCount: Int = 1)
+                    (use: MicroSolrCloud => Future[A])(implicit ec: ExecutionContext): Future[A] =
+    bracket(start(configPath, configName, nodeCount))(_.shutdownAsync())(use)
+
+  /**
+    * Acquire a resource, use it and release it, also when `use` throws or its future fails. A failure
+    * to release fails the result unless `use` already failed, in which case it is added as suppressed.
+    */
+  def bracket[R, A](acquire: => Future[R])(release: R => Future[Unit])(use: R => Future[A])
+                   (implicit ec: ExecutionContext): Future[A] =
+    acquire.flatMap { resource =>
+      val used = try use(resource) catch {
+        case NonFatal(e) => Future.failed(e)
+      }
+      used.recoverWith {
+        case NonFatal(e) =>
+          val released = try release(resource) catch {
+            case NonFatal(r) => Future.failed(r)
+          }
+          released
+            .recover { case NonFatal(r) => e.addSuppressed(r) }
+            .flatMap(_ => Future.failed(e))
+      }.flatMap(a => release(resource).map(_ => a))
+    }
 }